@@ -1,82 +1,1022 @@
 package org.jmeifert.camber.data;
 
+import org.jmeifert.camber.file.GroupStore;
+import org.jmeifert.camber.file.Log;
 import org.jmeifert.camber.security.SHAutil;
 import org.jmeifert.camber.util.ChatMap;
 import org.jmeifert.camber.util.Format;
-import java.util.Vector;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Group is initialized with a name and password (which it then hashes) and contains a cache of recent messages.
  * It provides functionality related to adding and getting messages, as well as verifying user credentials.
+ * Each topic has its own buffer, and all of them share the group's cache budget. A topic's buffer starts out small
+ * and is replaced by a larger one as the topic grows. Messages are added one writer at a time, while reads take
+ * lock-free snapshots of the buffers.
  */
 public class Group {
     private final int GROUP_MESSAGE_CACHE_SIZE = ChatMap.GROUP_MESSAGE_CACHE_SIZE;
     private final int MAX_MESSAGES_TO_OUTPUT = ChatMap.MAX_MESSAGES_TO_OUTPUT;
+    private final int TOPIC_IDLE_TIMEOUT = ChatMap.TOPIC_IDLE_TIMEOUT;
+    private final int MAX_TOPICS = ChatMap.MAX_TOPICS;
+    private static final int MIN_BUFFER_CAPACITY = 16; // Capacity each topic's buffer starts out with (count)
+    private static final int SLOT_SIZE = 8; // Estimated heap used by each slot of a topic's buffer (bytes)
+    private static final int BUFFER_OVERHEAD = 96; // Estimated heap used by a topic's buffer besides its slots (bytes)
+    // Estimated heap used by a topic's registry entries besides its name: its TopicInfo and map entries (bytes)
+    private static final int TOPIC_OVERHEAD = 192;
+    private static final int USER_OVERHEAD = 96; // Estimated heap used by a shared user besides its name (bytes)
+    private static final int WINDOW_OVERHEAD = 96; // Estimated heap used by a rendered window besides its text (bytes)
     private String hashedGroupPassword;
     private String groupName;
-    private Vector<Message> messages = new Vector<>();
+    private final ConcurrentHashMap<String, MessageRing> topicBuffers = new ConcurrentHashMap<>();
+    private int cachedMessages = 0; // Across all topics, guarded by the write lock
+    private volatile long cachedBytes = 0; // Estimated size of the cached messages, changed under the write lock
+    // Estimated size of the topic buffers and the topic and user registries, changed under the write lock
+    private volatile long structureBytes = 0;
+    private final ConcurrentHashMap<String, TopicInfo> topics = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, RenderedWindow> renderedWindows = new ConcurrentHashMap<>();
+    // Shared user names, counted by how many cached messages use them. Guarded by the write lock.
+    private final HashMap<String, SharedUser> users = new HashMap<>();
+    private final SearchIndex searchIndex = new SearchIndex(); // Indexes the cached messages
+    private volatile long lastSeq = 0;
+    // Serializes writers. Explicit lock instead of synchronized, so waiting virtual threads do not pin their carrier.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ConcurrentHashMap<String, CopyOnWriteArraySet<Listener>> listeners = new ConcurrentHashMap<>();
+    private final boolean closeWhenIdle;
+    private volatile int members = 0; // Sessions that have joined, changed under the write lock
+    private volatile long lastActivity = System.currentTimeMillis();
+    private volatile boolean closed = false;
+    private GroupStore store = null; // Null unless the group is saved to disk
+    private volatile long snapshotSeq = 0; // Sequence number of the last message in the latest snapshot
+    private volatile RetentionPolicy retention = RetentionPolicy.UNLIMITED; // For the group as a whole
+    private final ConcurrentHashMap<String, RetentionPolicy> topicRetention = new ConcurrentHashMap<>();
+    // Oldest sequence number each topic still retains in the log, set when retention evicts from it
+    private final ConcurrentHashMap<String, Long> retainedFrom = new ConcurrentHashMap<>();
 
     /**
-     * Creates a group with the given name and password.
+     * A Listener is notified of every message added to a topic it is subscribed to.
+     */
+    public interface Listener {
+        /**
+         * Called with the group's write lock held, so implementations must return quickly and must not block.
+         * @param message Message that was added
+         */
+        void onMessage(Message message);
+    }
+
+    /**
+     * A SharedUser is a user name shared by the cached messages sent by that user, and the number of them.
+     */
+    private static class SharedUser {
+        final String name;
+        int messages = 0;
+
+        SharedUser(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * A RenderedWindow is a topic's recent messages, formatted for clients. It is rendered once per version of
+     * the topic's buffer and shared by every session that asks for that version.
+     */
+    private static class RenderedWindow {
+        final MessageRing buffer;
+        final long version;
+        final CompletableFuture<String> text = new CompletableFuture<>();
+        volatile int length = 0; // Length of the text once rendered
+
+        RenderedWindow(MessageRing buffer, long version) {
+            this.buffer = buffer;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Creates a group with the given name and password, which stays open until it is removed.
      * @param groupName The group's name
      * @param groupPassword The group's password
      * @throws IllegalArgumentException Throws an IllegalArgumentException if the group parameters are invalid
      */
     public Group(String groupName, String groupPassword) throws IllegalArgumentException {
+        this(groupName, groupPassword, false);
+    }
+
+    /**
+     * Creates a group with the given name and password.
+     * @param groupName The group's name
+     * @param groupPassword The group's password
+     * @param closeWhenIdle Whether the group may be closed once nobody has used it for a while
+     * @throws IllegalArgumentException Throws an IllegalArgumentException if the group parameters are invalid
+     */
+    public Group(String groupName, String groupPassword, boolean closeWhenIdle) throws IllegalArgumentException {
         if (!Format.isValidName(groupName) || !Format.isValidName(groupPassword)) {
             throw new IllegalArgumentException("Invalid group parameter(s).");
         }
         this.groupName = groupName;
         this.hashedGroupPassword = SHAutil.getHash(groupPassword);
+        this.closeWhenIdle = closeWhenIdle;
+    }
+
+    /**
+     * Creates a group from its saved settings.
+     * @param store The group's store on disk
+     */
+    private Group(GroupStore store) {
+        this.groupName = store.getName();
+        this.hashedGroupPassword = store.getHashedPassword();
+        this.closeWhenIdle = store.isCloseWhenIdle();
+        this.store = store;
+        for (String i : store.getSettings()) {
+            String[] setting = i.split(" ", 5);
+            try {
+                if (setting[0].equals("retention") && setting.length == 4) {
+                    retention = RetentionPolicy.parse(setting[1] + " " + setting[2] + " " + setting[3]);
+                } else if (setting[0].equals("retention") && setting.length == 5) {
+                    topicRetention.put(setting[4], RetentionPolicy.parse(setting[1] + " " + setting[2] + " " +
+                            setting[3]));
+                } else {
+                    Log.log("Group: Ignoring unknown setting of group '{}': {}", groupName, i, 1);
+                }
+            } catch (IllegalArgumentException e) {
+                Log.log("Group: Ignoring malformed setting of group '{}': {}", groupName, i, 1);
+            }
+        }
+    }
+
+    /**
+     * Loads a saved group. Its cache is restored from the latest snapshot, and then only the part of its message
+     * log written after the snapshot is replayed.
+     * @param dir Directory the group's files are kept in
+     * @return The group
+     * @throws IOException If the group's files could not be read
+     */
+    static Group load(Path dir) throws IOException {
+        Group group = new Group(GroupStore.open(dir));
+        group.writeLock.lock();
+        try {
+            byte[] snapshot = group.store.loadSnapshot();
+            if (snapshot != null) {
+                try {
+                    group.restoreSnapshot(snapshot);
+                } catch (IOException e) {
+                    Log.log("Group: Ignoring unreadable snapshot of group '{}'.", group.groupName, 1);
+                    group.clearCache();
+                }
+            }
+            group.store.replay((seq, time, topic, user, body) ->
+                    group.cache(new Message(seq, time, topic, user, body)), group.lastSeq);
+        } finally {
+            group.writeLock.unlock();
+        }
+        return group;
+    }
+
+    /**
+     * Saves a snapshot of the group's cache, topics and sequence number if the group is saved to disk and has
+     * changed since the last snapshot.
+     */
+    void saveSnapshot() {
+        if (store == null || closed) {
+            return;
+        }
+        long seq;
+        byte[] snapshot;
+        writeLock.lock();
+        try {
+            seq = lastSeq;
+            if (seq == snapshotSeq) {
+                return;
+            }
+            snapshot = encodeSnapshot();
+        } catch (IOException e) {
+            throw new RuntimeException("Group: Could not write snapshot to memory - You should NOT be seeing this!");
+        } finally {
+            writeLock.unlock();
+        }
+        try {
+            store.sync(seq); // Everything in a snapshot must be in the log too
+            store.saveSnapshot(snapshot);
+            snapshotSeq = seq;
+        } catch (IOException e) {
+            Log.log("Group: Failed to save snapshot of group '{}'. - {}", groupName, e.getMessage(), 2);
+        }
+    }
+
+    /**
+     * Encodes the group's cache, topics and sequence number. Caller must hold the write lock.
+     * @return The snapshot
+     * @throws IOException Never, since it is written to memory
+     */
+    private byte[] encodeSnapshot() throws IOException {
+        ArrayList<Message> cached = new ArrayList<>(cachedMessages);
+        for (MessageRing i : topicBuffers.values()) {
+            cached.addAll(i.snapshot(GROUP_MESSAGE_CACHE_SIZE));
+        }
+        cached.sort(Comparator.comparingLong(Message::getSeq));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(lastSeq);
+        out.writeInt(topics.size());
+        for (TopicInfo i : topics.values()) {
+            out.writeUTF(i.getName());
+            out.writeLong(i.getMessageCount());
+            out.writeLong(i.getLastActivity());
+            out.writeLong(i.getLastSeq());
+        }
+        out.writeInt(cached.size());
+        for (Message i : cached) {
+            out.writeLong(i.getSeq());
+            out.writeLong(i.getTime());
+            out.writeUTF(i.getTopic());
+            out.writeUTF(i.getUser());
+            out.writeInt(i.getBodyBytes().length);
+            out.write(i.getBodyBytes());
+        }
+        out.writeInt(retainedFrom.size());
+        for (Map.Entry<String, Long> i : retainedFrom.entrySet()) {
+            out.writeUTF(i.getKey());
+            out.writeLong(i.getValue());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Restores the group's cache, topics and sequence number from a snapshot. Caller must hold the write lock.
+     * @param snapshot The snapshot
+     * @throws IOException If the snapshot is malformed
+     */
+    private void restoreSnapshot(byte[] snapshot) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+        long seq = in.readLong();
+        ArrayList<TopicInfo> savedTopics = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            savedTopics.add(new TopicInfo(in.readUTF(), in.readLong(), in.readLong(), in.readLong()));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            long messageSeq = in.readLong();
+            long time = in.readLong();
+            String topic = in.readUTF();
+            String user = in.readUTF();
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            cache(new Message(messageSeq, time, topic, user, body));
+        }
+        for (TopicInfo i : savedTopics) { // Replaces the counts made while caching the messages above
+            if (topics.put(i.getName(), i) == null) { // A topic with no cached messages
+                structureBytes += TOPIC_OVERHEAD + 2L * i.getName().length();
+            }
+        }
+        if (in.available() > 0) { // Snapshots saved before retention boundaries were kept end here
+            for (int i = in.readInt(); i > 0; i--) {
+                retainedFrom.put(in.readUTF(), in.readLong());
+            }
+        }
+        lastSeq = seq;
+        snapshotSeq = seq;
     }
 
     /**
-     * Adds a message to the group's message cache.
+     * Starts saving the group to disk. Must be called before the group is used.
+     * @param dir Directory to keep the group's files in (must not exist yet)
+     * @throws IOException If the group's files could not be created
+     */
+    void save(Path dir) throws IOException {
+        store = GroupStore.create(dir, groupName, hashedGroupPassword, closeWhenIdle);
+    }
+
+    /**
+     * Deletes the group's files, if it is saved to disk. The group must already be closed.
+     */
+    void deleteFiles() {
+        if (store != null) {
+            try {
+                store.delete();
+            } catch (IOException e) {
+                Log.log("Group: Failed to delete files of group '{}'. - {}", groupName, e.getMessage(), 2);
+            }
+        }
+    }
+
+    /**
+     * Adds a message to the group's message cache, assigning it the group's next sequence number.
+     * If the group is saved to disk, this returns once the message has been written.
+     * @param message Message to add
+     */
+    public void addMessage(Message message) {
+        writeLock.lock();
+        try {
+            append(message);
+        } finally {
+            writeLock.unlock();
+        }
+        sync(message.getSeq());
+    }
+
+    /**
+     * Adds several messages to the group's message cache under a single acquisition of the group's lock.
+     * @param batch Messages to add, in order
+     */
+    public void addMessages(List<Message> batch) {
+        writeLock.lock();
+        try {
+            for (Message i : batch) {
+                append(i);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (!batch.isEmpty()) {
+            sync(batch.get(batch.size() - 1).getSeq());
+        }
+    }
+
+    /**
+     * Waits until a message is on disk, if the group is saved to disk. Called without the write lock held, so
+     * other messages can be added meanwhile and written to disk together with this one.
+     * @param seq Sequence number of the message to wait for
+     */
+    private void sync(long seq) {
+        if (store != null && seq > 0) {
+            try {
+                store.sync(seq);
+            } catch (IOException e) {
+                Log.log("Group: Failed to save messages of group '{}'. - {}", groupName, e.getMessage(), 2);
+            }
+        }
+    }
+
+    /**
+     * Adds a message to the cache and the log, and notifies its topic's listeners. Caller must hold the write lock.
+     * @param message Message to add
+     */
+    private void append(Message message) {
+        if (closed) {
+            return;
+        }
+        message.setSeq(lastSeq + 1);
+        cache(message);
+        if (store != null) {
+            store.append(message.getSeq(), message.getTime(), message.getTopic(), message.getUser(),
+                    message.getBodyBytes());
+        }
+        CopyOnWriteArraySet<Listener> topicListeners = listeners.get(message.getTopic());
+        if (topicListeners != null) { // Notify under the lock so listeners see messages in order
+            for (Listener i : topicListeners) {
+                i.onMessage(message);
+            }
+        }
+    }
+
+    /**
+     * Adds a message that already has a sequence number to the cache. Caller must hold the write lock.
      * @param message Message to add
      */
-    public synchronized void addMessage(Message message) {
-        messages.add(message);
-        if (messages.size() > GROUP_MESSAGE_CACHE_SIZE) {
-            messages.remove(0);
+    private void cache(Message message) {
+        TopicInfo topicInfo = topics.get(message.getTopic());
+        if (topicInfo == null) {
+            topicInfo = new TopicInfo(message.getTopic());
+            topics.put(topicInfo.getName(), topicInfo);
+            structureBytes += TOPIC_OVERHEAD + 2L * topicInfo.getName().length();
+        }
+        SharedUser user = users.get(message.getUser());
+        if (user == null) {
+            user = new SharedUser(message.getUser());
+            users.put(user.name, user);
+            structureBytes += USER_OVERHEAD + 2L * user.name.length();
+        }
+        user.messages++;
+        message.share(topicInfo.getName(), user.name); // Before publishing
+        MessageRing buffer = topicBuffers.get(message.getTopic());
+        if (buffer == null) {
+            buffer = new MessageRing(Math.min(MIN_BUFFER_CAPACITY, GROUP_MESSAGE_CACHE_SIZE));
+            topicBuffers.put(topicInfo.getName(), buffer);
+            structureBytes += BUFFER_OVERHEAD + (long) buffer.getCapacity() * SLOT_SIZE;
+        }
+        if (cachedMessages >= GROUP_MESSAGE_CACHE_SIZE) { // Make room first, so the buffer never overwrites itself
+            evict(buffer);
         }
+        if (buffer.size() == buffer.getCapacity()) { // Room in the cache, but not in this buffer yet
+            buffer = resize(topicInfo.getName(), buffer, Math.min(2 * buffer.getCapacity(), GROUP_MESSAGE_CACHE_SIZE));
+        }
+        buffer.append(message);
+        cachedMessages++;
+        cachedBytes += message.getSize();
+        searchIndex.add(message);
+        topicInfo.record(message);
+        lastActivity = message.getTime();
+        lastSeq = message.getSeq();
     }
 
     /**
-     * Returns all the recent messages tagged with a specific topic.
+     * Replaces a topic's buffer with one of a different capacity holding the same messages. Caller must hold the
+     * write lock.
+     * @param topic The topic
+     * @param buffer The topic's buffer
+     * @param capacity Capacity of the new buffer (at least the number of messages in the topic)
+     * @return The new buffer
+     */
+    private MessageRing resize(String topic, MessageRing buffer, int capacity) {
+        MessageRing resized = buffer.resize(capacity);
+        topicBuffers.put(topic, resized);
+        renderedWindows.remove(topic); // Rendered from the old buffer
+        structureBytes += (long) (capacity - buffer.getCapacity()) * SLOT_SIZE;
+        return resized;
+    }
+
+    /**
+     * Replaces topic buffers that are mostly empty, after messages have been evicted from them, with smaller ones.
+     * Caller must hold the write lock.
+     */
+    private void compactBuffers() {
+        for (Map.Entry<String, MessageRing> i : topicBuffers.entrySet()) {
+            MessageRing buffer = i.getValue();
+            if (buffer.getCapacity() > MIN_BUFFER_CAPACITY && buffer.size() <= buffer.getCapacity() / 4) {
+                resize(i.getKey(), buffer, Math.max(MIN_BUFFER_CAPACITY, 2 * buffer.size()));
+            }
+        }
+    }
+
+    /**
+     * Evicts one message to make room within the cache budget. A topic holding at least its fair share of the
+     * budget gives up its own oldest message, so a noisy topic can't push out a quiet topic's history.
+     * Caller must hold the write lock.
+     * @param written Buffer of the topic about to be written to
+     */
+    private void evict(MessageRing written) {
+        MessageRing victim = written;
+        if (written.size() < Math.max(1, GROUP_MESSAGE_CACHE_SIZE / topicBuffers.size())) { // Find the largest topic
+            for (MessageRing i : topicBuffers.values()) {
+                if (i.size() > victim.size()) {
+                    victim = i;
+                }
+            }
+        }
+        evictOldest(victim, written);
+    }
+
+    /**
+     * Evicts a topic's oldest message. If that empties the topic, its buffer is dropped, but the topic stays in the
+     * topic list until expireTopics() drops it. Users are dropped once none of their messages are cached.
+     * Caller must hold the write lock.
+     * @param victim Buffer of the topic to evict from
+     * @param written Buffer of the topic about to be written to, which is kept even if emptied (may be null)
+     * @return The evicted message
+     */
+    private Message evictOldest(MessageRing victim, MessageRing written) {
+        Message evicted = victim.evictOldest();
+        cachedMessages--;
+        cachedBytes -= evicted.getSize();
+        searchIndex.remove(evicted);
+        SharedUser user = users.get(evicted.getUser());
+        if (user != null && --user.messages == 0) {
+            users.remove(user.name);
+            structureBytes -= USER_OVERHEAD + 2L * user.name.length();
+        }
+        if (victim.size() == 0 && victim != written && topicBuffers.remove(evicted.getTopic(), victim)) {
+            renderedWindows.remove(evicted.getTopic());
+            structureBytes -= BUFFER_OVERHEAD + (long) victim.getCapacity() * SLOT_SIZE;
+        }
+        return evicted;
+    }
+
+    /**
+     * Records that retention has evicted a message, so the log is no longer read back past it. Caller must hold
+     * the write lock.
+     * @param evicted The evicted message
+     */
+    private void retainAfter(Message evicted) {
+        if (store != null) {
+            retainedFrom.merge(evicted.getTopic(), evicted.getSeq() + 1, Math::max);
+        }
+    }
+
+    /**
+     * @param topic The topic
+     * @param now Current time (ms since the epoch)
+     * @return Time of the oldest message the topic's retention policy still keeps (0 if it has no age limit)
+     */
+    private long retainedSince(String topic, long now) {
+        long maxAge = topicRetention.getOrDefault(topic, retention).getMaxAge();
+        return maxAge > 0 ? now - maxAge : 0;
+    }
+
+    /**
+     * Evicts cached messages beyond the group's and its topics' retention policies, oldest first. Each topic is
+     * held to its own policy, or the group's if it has none, and then the group as a whole is held to the group's
+     * policy by evicting from its largest topics.
+     * @param max Max number of messages to evict, so the write lock is only held briefly
+     * @return Number of messages evicted
+     */
+    int applyRetention(int max) {
+        writeLock.lock();
+        try {
+            if (closed) {
+                return 0;
+            }
+            long now = System.currentTimeMillis();
+            int evicted = 0;
+            for (Map.Entry<String, MessageRing> i : topicBuffers.entrySet()) {
+                RetentionPolicy policy = topicRetention.getOrDefault(i.getKey(), retention);
+                MessageRing buffer = i.getValue();
+                while (evicted < max && policy.isExceeded(buffer.size(), buffer.getBytes(), buffer.oldest(), now)) {
+                    retainAfter(evictOldest(buffer, null));
+                    evicted++;
+                }
+            }
+            while (evicted < max && retention.isExceeded(cachedMessages, cachedBytes, null, now)) {
+                MessageRing victim = null;
+                for (MessageRing i : topicBuffers.values()) {
+                    if (victim == null || i.getBytes() > victim.getBytes()) {
+                        victim = i;
+                    }
+                }
+                retainAfter(evictOldest(victim, null));
+                evicted++;
+            }
+            if (evicted > 0) {
+                compactBuffers();
+            }
+            return evicted;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Drops topics with no cached messages from the topic list once they have been idle for TOPIC_IDLE_TIMEOUT, and
+     * then the least recently active of them while the list holds more than MAX_TOPICS. Topics with cached messages
+     * are always kept.
+     * @return Number of topics dropped
+     */
+    int expireTopics() {
+        writeLock.lock();
+        try {
+            long idleSince = System.currentTimeMillis() - TOPIC_IDLE_TIMEOUT;
+            ArrayList<TopicInfo> empty = new ArrayList<>();
+            for (TopicInfo i : topics.values()) {
+                if (!topicBuffers.containsKey(i.getName())) {
+                    empty.add(i);
+                }
+            }
+            empty.sort(Comparator.comparingLong(TopicInfo::getLastActivity));
+            int dropped = 0;
+            for (TopicInfo i : empty) {
+                if (i.getLastActivity() >= idleSince && topics.size() <= MAX_TOPICS) {
+                    break;
+                }
+                topics.remove(i.getName());
+                structureBytes -= TOPIC_OVERHEAD + 2L * i.getName().length();
+                dropped++;
+            }
+            return dropped;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the oldest segments of the group's log once every message in them is beyond the retention of its
+     * topic, whether by age or by the messages retention has since evicted from the topic.
+     * @return Number of segments deleted
+     */
+    int trimLog() {
+        if (store == null || closed || (retainedFrom.isEmpty() && retention.getMaxAge() == 0 &&
+                topicRetention.values().stream().allMatch(i -> i.getMaxAge() == 0))) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            int deleted = store.deleteSegments((seq, time, topic) ->
+                    seq < retainedFrom.getOrDefault(topic, 0L) || time < retainedSince(topic, now));
+            if (deleted > 0) {
+                long firstSeq = store.getFirstSeq();
+                retainedFrom.values().removeIf(i -> i <= firstSeq); // Nothing left in the log to hold back
+            }
+            return deleted;
+        } catch (IOException e) {
+            Log.log("Group: Failed to trim log of group '{}'. - {}", groupName, e.getMessage(), 2);
+            return 0;
+        }
+    }
+
+    /**
+     * Frees memory for the rest of the server by dropping the group's rendered windows and then evicting its oldest
+     * cached messages, whatever their topic.
+     * @param bytes Amount of memory to free (bytes)
+     * @param max Max number of messages to evict, so the write lock is only held briefly
+     * @return Estimated amount of memory freed (bytes)
+     */
+    long shrink(long bytes, int max) {
+        writeLock.lock();
+        try {
+            long before = getCachedBytes();
+            renderedWindows.clear(); // Cheapest to give up, since they are rendered again when next asked for
+            long freed = before - getCachedBytes();
+            for (int evicted = 0; evicted < max && freed < bytes && cachedMessages > 0; evicted++) {
+                MessageRing victim = null;
+                for (MessageRing i : topicBuffers.values()) {
+                    Message oldest = i.oldest();
+                    if (oldest != null && (victim == null || oldest.getSeq() < victim.oldest().getSeq())) {
+                        victim = i;
+                    }
+                }
+                if (victim == null) {
+                    break;
+                }
+                evictOldest(victim, null);
+                freed = before - getCachedBytes();
+            }
+            compactBuffers();
+            return before - getCachedBytes();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the retention policy of the group or one of its topics, and saves it if the group is saved to disk.
+     * Messages beyond it are evicted by the next retention sweep.
+     * @param topic Topic to set the policy of, or null for the group as a whole
+     * @param policy The policy, or null to make the topic follow the group's policy again
+     */
+    public void setRetention(String topic, RetentionPolicy policy) {
+        writeLock.lock();
+        try {
+            if (topic == null) {
+                retention = policy == null ? RetentionPolicy.UNLIMITED : policy;
+            } else if (policy == null) {
+                topicRetention.remove(topic);
+            } else {
+                topicRetention.put(topic, policy);
+            }
+            if (store != null) {
+                ArrayList<String> settings = new ArrayList<>();
+                settings.add("retention " + retention);
+                for (Map.Entry<String, RetentionPolicy> i : topicRetention.entrySet()) {
+                    settings.add("retention " + i.getValue() + " " + i.getKey());
+                }
+                try {
+                    store.saveSettings(settings);
+                } catch (IOException e) {
+                    Log.log("Group: Failed to save settings of group '{}'. - {}", groupName, e.getMessage(), 2);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @param topic A topic, or null for the group as a whole
+     * @return The retention policy the topic (or group) is held to
+     */
+    public RetentionPolicy getRetention(String topic) {
+        return topic == null ? retention : topicRetention.getOrDefault(topic, retention);
+    }
+
+    /**
+     * Adds a session to the group's members. A group is never closed for being idle while it has members.
+     * @return False if the group has already been closed
+     */
+    public boolean join() {
+        writeLock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            members++;
+            lastActivity = System.currentTimeMillis();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a session that previously joined from the group's members.
+     */
+    public void leave() {
+        writeLock.lock();
+        try {
+            members--;
+            lastActivity = System.currentTimeMillis();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the group if it may be closed when idle, has no members, and has not been used recently.
+     * @param idleTimeout How long the group must have gone unused (ms)
+     * @return True if the group was closed
+     */
+    public boolean closeIfIdle(long idleTimeout) {
+        writeLock.lock();
+        try {
+            if (!closeWhenIdle || members > 0 || System.currentTimeMillis() - lastActivity < idleTimeout) {
+                return false;
+            }
+            close();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the group, dropping its messages, topics and listeners. Sessions in a closed group are disconnected
+     * the next time they make a request.
+     */
+    public void close() {
+        writeLock.lock();
+        try {
+            closed = true;
+            listeners.clear();
+            clearCache();
+            if (store != null) {
+                store.close();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Drops every cached message and topic. Caller must hold the write lock.
+     */
+    private void clearCache() {
+        topicBuffers.clear();
+        topics.clear();
+        renderedWindows.clear();
+        users.clear();
+        searchIndex.clear();
+        cachedMessages = 0;
+        cachedBytes = 0;
+        structureBytes = 0;
+    }
+
+    /**
+     * @return True if the group has been closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return Estimated memory used by the group's cache (bytes): its messages, topic buffers, topic and user
+     *         registries, and rendered windows
+     */
+    public long getCachedBytes() {
+        long rendered = 0;
+        for (RenderedWindow i : renderedWindows.values()) {
+            rendered += WINDOW_OVERHEAD + 2L * i.length;
+        }
+        return cachedBytes + structureBytes + rendered;
+    }
+
+    /**
+     * @return When the group was last used (ms since the epoch)
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * @return Number of sessions in the group
+     */
+    public int getMemberCount() {
+        return members;
+    }
+
+    /**
+     * Subscribes a listener to new messages in a topic.
+     * @param topic Topic to subscribe to
+     * @param listener Listener to notify
+     */
+    public void subscribe(String topic, Listener listener) {
+        if (closed) {
+            return;
+        }
+        listeners.computeIfAbsent(topic, k -> new CopyOnWriteArraySet<>()).add(listener);
+    }
+
+    /**
+     * Unsubscribes a listener from a topic.
+     * @param topic Topic to unsubscribe from
+     * @param listener Listener to stop notifying
+     */
+    public void unsubscribe(String topic, Listener listener) {
+        listeners.computeIfPresent(topic, (k, v) -> {
+            v.remove(listener);
+            return v.isEmpty() ? null : v;
+        });
+    }
+
+    /**
+     * Returns all the recent messages tagged with a specific topic. The formatted messages are cached until the
+     * topic changes, so sessions reading the same topic share one rendering.
      * @param topic Topic to return recent messages from
      * @return Recent messages tagged with specified topic
      */
     public String getMessages(String topic) {
-        Vector<String> msgsInTopic = new Vector<>();
-        for (Message i : messages) { // take only this topic's messages
-            if (i.getTopic().equals(topic)) {
-                msgsInTopic.add(i.toString());
+        MessageRing buffer = topicBuffers.get(topic);
+        if (buffer == null) {
+            return "";
+        }
+        long version = buffer.getVersion(); // Read before rendering, so the rendering is at least this new
+        RenderedWindow window = renderedWindows.get(topic);
+        if (window == null || window.buffer != buffer || window.version < version) {
+            RenderedWindow mine = new RenderedWindow(buffer, version);
+            window = renderedWindows.merge(topic, mine, (cached, v) ->
+                    (cached.buffer == buffer && cached.version >= version) ? cached : mine);
+            if (window == mine) { // Render it ourselves - anyone else asking for this version waits for us
+                try {
+                    StringBuilder output = new StringBuilder();
+                    for (Message i : buffer.snapshot(MAX_MESSAGES_TO_OUTPUT)) { // format nicely
+                        output.append(i.toString()).append("\n");
+                    }
+                    mine.length = output.length();
+                    mine.text.complete(output.toString());
+                } catch (RuntimeException e) {
+                    renderedWindows.remove(topic, mine);
+                    mine.text.completeExceptionally(e);
+                    throw e;
+                }
             }
         }
-        while(msgsInTopic.size() > MAX_MESSAGES_TO_OUTPUT) { // trim extra messages
-            msgsInTopic.remove(0);
+        return window.text.join();
+    }
+
+    /**
+     * Takes a snapshot of a topic's newest messages.
+     * @param topic Topic to take messages from
+     * @param seq Only take messages with a sequence number greater than this
+     * @return Up to MAX_MESSAGES_TO_OUTPUT messages, oldest first
+     */
+    private List<Message> snapshot(String topic, long seq) {
+        MessageRing buffer = topicBuffers.get(topic);
+        if (buffer == null) {
+            return new ArrayList<>(0);
+        }
+        return buffer.snapshotSince(seq, MAX_MESSAGES_TO_OUTPUT);
+    }
+
+    /**
+     * Returns the recent messages tagged with each of several topics.
+     * @param topics Topics to return recent messages from
+     * @return Recent messages for each topic, keyed by topic in the order given
+     */
+    public Map<String, String> getMessages(List<String> topics) {
+        LinkedHashMap<String, String> output = new LinkedHashMap<>();
+        for (String i : topics) {
+            output.put(i, getMessages(i));
         }
+        return output;
+    }
+
+    /**
+     * Returns the recent messages tagged with a specific topic that are newer than a given sequence number.
+     * @param topic Topic to return recent messages from
+     * @param seq Sequence number of the last message already seen
+     * @return The group's latest sequence number on the first line, followed by the matching messages
+     */
+    public String getMessagesSince(String topic, long seq) {
+        long highWater = lastSeq; // Read before the snapshot, so the snapshot holds everything up to it
         StringBuilder output = new StringBuilder();
-        for (String i : msgsInTopic) { // format nicely
-            output.append(i).append("\n");
+        output.append(highWater).append("\n");
+        for (Message i : snapshot(topic, seq)) { // oldest first
+            if (i.getSeq() <= highWater) {
+                output.append(i.toString()).append("\n");
+            }
         }
         return output.toString();
     }
 
+    /**
+     * Returns a page of a topic's messages older than a sequence number. Messages still in the cache are read from
+     * it, and if the group is saved to disk, older messages are read from its log, back to the oldest message the
+     * topic's retention policy keeps.
+     * @param topic Topic to return messages from
+     * @param beforeSeq Sequence number to page back from (0 for the newest messages)
+     * @return Sequence number of the oldest message returned on the first line (0 if there are none),
+     *         followed by up to MAX_MESSAGES_TO_OUTPUT messages, oldest first
+     */
+    public String getHistory(String topic, long beforeSeq) {
+        long before = beforeSeq > 0 ? beforeSeq : Long.MAX_VALUE;
+        List<Message> page = new ArrayList<>();
+        long cachedFrom = before; // Everything in the topic from here up is in the cache
+        MessageRing buffer = topicBuffers.get(topic);
+        if (buffer != null) {
+            List<Message> cached = buffer.snapshot(GROUP_MESSAGE_CACHE_SIZE);
+            if (!cached.isEmpty()) {
+                cachedFrom = Math.min(before, cached.get(0).getSeq());
+            }
+            for (Message i : cached) {
+                if (i.getSeq() < before) {
+                    page.add(i);
+                }
+            }
+            page = page.subList(Math.max(0, page.size() - MAX_MESSAGES_TO_OUTPUT), page.size());
+        }
+        if (page.size() < MAX_MESSAGES_TO_OUTPUT && store != null) { // Page back into the log
+            ArrayList<Message> older = new ArrayList<>();
+            try {
+                store.readBefore(topic, cachedFrom, retainedFrom.getOrDefault(topic, 0L),
+                        retainedSince(topic, System.currentTimeMillis()), MAX_MESSAGES_TO_OUTPUT - page.size(),
+                        (seq, time, t, user, body) -> older.add(new Message(seq, time, t, user, body)));
+            } catch (IOException e) {
+                Log.log("Group: Failed to read history of group '{}'. - {}", groupName, e.getMessage(), 2);
+            }
+            older.addAll(page);
+            page = older;
+        }
+        StringBuilder output = new StringBuilder();
+        output.append(page.isEmpty() ? 0 : page.get(0).getSeq()).append("\n");
+        for (Message i : page) {
+            output.append(i.toString()).append("\n");
+        }
+        return output.toString();
+    }
+
+    /**
+     * Returns the page of a topic's messages sent up to a given time, so clients can jump back to a point in the
+     * topic's history and page back from there. If the group is saved to disk, its log's time index finds where to
+     * start, and otherwise the cache is searched.
+     * @param topic Topic to return messages from
+     * @param time Time to return messages up to (ms since the epoch)
+     * @return Sequence number of the oldest message returned on the first line (0 if there are none),
+     *         followed by up to MAX_MESSAGES_TO_OUTPUT messages sent at or before the time, oldest first
+     */
+    public String getHistoryAt(String topic, long time) {
+        long seq = 0; // Last message in the group sent at or before the time
+        if (store != null) {
+            try {
+                seq = store.seqAtTime(time);
+            } catch (IOException e) {
+                Log.log("Group: Failed to read history of group '{}'. - {}", groupName, e.getMessage(), 2);
+            }
+        }
+        MessageRing buffer = topicBuffers.get(topic);
+        if (buffer != null) { // Also covers messages not yet in the log's index
+            for (Message i : buffer.snapshot(GROUP_MESSAGE_CACHE_SIZE)) {
+                if (i.getTime() <= time) {
+                    seq = Math.max(seq, i.getSeq());
+                }
+            }
+        }
+        return getHistory(topic, seq + 1);
+    }
+
+    /**
+     * Searches the group's cached messages.
+     * @param query The search, made of words, "quoted phrases", and topic:, user: and since: filters
+     * @return Up to MAX_MESSAGES_TO_OUTPUT of the newest matching messages, oldest first
+     * @throws IllegalArgumentException If the search is malformed
+     */
+    public String search(String query) throws IllegalArgumentException {
+        StringBuilder output = new StringBuilder();
+        for (Message i : searchIndex.search(SearchIndex.Query.parse(query), MAX_MESSAGES_TO_OUTPUT)) {
+            output.append(i.toString()).append("\n");
+        }
+        return output.toString();
+    }
+
+    /**
+     * @return Sequence number of the newest message in the group (0 if there are none)
+     */
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
     /**
      * @return All recent messages from the group
      */
     public String getMessages() {
-        Vector<String> msgsInTopic = new Vector<>();
-        for(Message i : messages) { // take all topics' messages
-            msgsInTopic.add(i.toString());
-        }
-        while(msgsInTopic.size() > MAX_MESSAGES_TO_OUTPUT) { // trim extra messages
-            msgsInTopic.remove(0);
+        ArrayList<Message> recent = new ArrayList<>();
+        for (MessageRing i : topicBuffers.values()) { // take each topic's newest messages
+            recent.addAll(i.snapshot(MAX_MESSAGES_TO_OUTPUT));
         }
+        recent.sort(Comparator.comparingLong(Message::getSeq));
         StringBuilder output = new StringBuilder();
-        for (String i : msgsInTopic) { // format nicely
-            output.append(i).append("\n");
+        for (int i = Math.max(0, recent.size() - MAX_MESSAGES_TO_OUTPUT); i < recent.size(); i++) { // format nicely
+            output.append(recent.get(i).toString()).append("\n");
         }
         return output.toString();
     }
@@ -101,19 +1041,22 @@ public class Group {
     }
 
     /**
-     * @return Active topics in the Group
+     * @return Topics in the Group, most recently active first
      */
     public String getTopics() {
         StringBuilder output = new StringBuilder();
-        Vector<String> topics = new Vector<>();
-        for (Message i : messages) {
-            if (!topics.contains(i.getTopic())) {
-                topics.add(i.getTopic());
-            }
-        }
-        for(String i : topics) {
-            output.append("'").append(i).append("'").append("\n");
+        for(TopicInfo i : getTopicInfo()) {
+            output.append(i.toString()).append("\n");
         }
         return output.toString();
     }
+
+    /**
+     * @return Activity of every topic in the Group, most recently active first
+     */
+    public List<TopicInfo> getTopicInfo() {
+        ArrayList<TopicInfo> output = new ArrayList<>(topics.values());
+        output.sort(Comparator.comparingLong(TopicInfo::getLastSeq).reversed());
+        return output;
+    }
 }
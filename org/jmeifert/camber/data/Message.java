@@ -1,17 +1,34 @@
 package org.jmeifert.camber.data;
 
 import org.jmeifert.camber.util.Format;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
+import java.util.Locale;
 
 /**
  * Message represents a message sent by a user. It includes information about the message's contents,
  * what group it was sent in, its topic, and when it was sent.
+ * Messages are kept compact, since groups cache a lot of them: the body is stored as UTF-8, the time as
+ * milliseconds since the epoch, and the topic and user are shared with other messages in the same group.
  */
 public class Message {
-    private String body;
-    private Date date;
+    // Same format as Date.toString(), but cached instead of rebuilt for every message
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US).withZone(ZoneId.systemDefault());
+    // Estimated heap used by a cached message besides its body: its object, body array header and entry in its
+    // group's search index (bytes)
+    private static final int OVERHEAD = 128;
+    // Estimated heap used by each term of a cached message in its group's search index (bytes)
+    private static final int TERM_OVERHEAD = 64;
+
+    private final byte[] body;
+    private final long time;
     private String user;
     private String topic;
+    private long seq;
 
     /**
      * Instantiates a Message.
@@ -25,22 +42,87 @@ public class Message {
         }
         this.topic = topic;
         this.user = user;
+        this.body = body.getBytes(StandardCharsets.UTF_8);
+        this.time = System.currentTimeMillis();
+    }
+
+    /**
+     * Instantiates a Message read back from storage, which was validated when it was first sent.
+     * @param seq The message's sequence number in its group
+     * @param time When the message was sent, in milliseconds since the epoch
+     * @param topic The topic the message is in
+     * @param user The user this message was sent by
+     * @param body The body of this message (UTF-8)
+     */
+    Message(long seq, long time, String topic, String user, byte[] body) {
+        this.seq = seq;
+        this.time = time;
+        this.topic = topic;
+        this.user = user;
         this.body = body;
-        this.date = new Date();
     }
 
     /**
      * @return The contents of this message.
      */
     public String getBody() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The contents of this message, as UTF-8. Must not be modified.
+     */
+    byte[] getBodyBytes() {
         return body;
     }
 
+    /**
+     * @return Estimated heap held by this message while cached (bytes). Its topic and user are shared, so they are
+     *         not counted.
+     */
+    int getSize() {
+        int terms = 0;
+        boolean inTerm = false;
+        for (byte i : body) { // Bodies are ASCII, so this counts the same terms as SearchIndex
+            boolean letterOrDigit = Character.isLetterOrDigit(i);
+            if (letterOrDigit && !inTerm) {
+                terms++;
+            }
+            inTerm = letterOrDigit;
+        }
+        return OVERHEAD + body.length + terms * TERM_OVERHEAD;
+    }
+
     /**
      * @return date The date this message was sent.
      */
     public Date getDate() {
-        return date;
+        return new Date(time);
+    }
+
+    /**
+     * @return time When this message was sent, in milliseconds since the epoch.
+     */
+    public long getTime() { return time; }
+
+    /**
+     * @return seq This message's sequence number in its group (0 until it is added to a group).
+     */
+    public long getSeq() { return seq; }
+
+    /**
+     * @param seq This message's sequence number in its group
+     */
+    void setSeq(long seq) { this.seq = seq; }
+
+    /**
+     * Replaces this message's topic and user with equal instances shared by the rest of its group.
+     * @param topic Shared instance of this message's topic
+     * @param user Shared instance of this message's user
+     */
+    void share(String topic, String user) {
+        this.topic = topic;
+        this.user = user;
     }
 
     /**
@@ -55,6 +137,15 @@ public class Message {
 
     @Override
     public String toString() {
-        return "{" + topic + "} (" + date.toString() + ") [" + user + "]: " + body;
+        return "{" + topic + "} (" + formatDate(time) + ") [" + user + "]: " + getBody();
+    }
+
+    /**
+     * Formats a time the way Date.toString() does, using a formatter shared by the whole data package.
+     * @param time Time to format, in milliseconds since the epoch
+     * @return The formatted time
+     */
+    static String formatDate(long time) {
+        return DATE_FORMAT.format(Instant.ofEpochMilli(time));
     }
 }
@@ -0,0 +1,150 @@
+package org.jmeifert.camber.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * MessageRing is a fixed-capacity ring buffer of messages, ordered oldest to newest. Appending overwrites the oldest
+ * message once the ring is full, in O(1), and the oldest messages can also be evicted early. There must only be one
+ * writer at a time, but any number of readers can take snapshots concurrently without locking, and they never block
+ * or slow down the writer.
+ */
+class MessageRing {
+    private final int capacity;
+    private final AtomicReferenceArray<Message> slots;
+    private volatile long count = 0; // Number of messages ever appended. Slot of position p is (p - 1) % capacity.
+    private volatile long first = 1; // Position of the oldest message still held
+    private volatile long version = 0; // Changes every time the held messages change
+    private volatile long bytes = 0; // Estimated size of the held messages
+
+    /**
+     * Instantiates a MessageRing.
+     * @param capacity Max number of messages to hold
+     */
+    MessageRing(int capacity) {
+        this.capacity = capacity;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Appends a message, overwriting the oldest one if the ring is full. Only one thread may append at a time.
+     * @param message Message to append
+     */
+    void append(Message message) {
+        long position = count + 1;
+        if (position - first >= capacity) { // Full - the oldest message is overwritten
+            first = position - capacity + 1;
+            bytes = bytes - slots.get((int) ((position - 1) % capacity)).getSize();
+        }
+        slots.set((int) ((position - 1) % capacity), message);
+        bytes = bytes + message.getSize();
+        count = position; // Publish
+        version = version + 1;
+    }
+
+    /**
+     * Evicts the oldest message. Only the thread that appends may evict.
+     * @return The evicted message, or null if the ring is empty
+     */
+    Message evictOldest() {
+        if (first > count) {
+            return null;
+        }
+        int slot = (int) ((first - 1) % capacity);
+        Message message = slots.get(slot);
+        slots.set(slot, null); // Let it be collected
+        first = first + 1;
+        bytes = bytes - message.getSize();
+        version = version + 1;
+        return message;
+    }
+
+    /**
+     * Takes a snapshot of the newest messages.
+     * @param max Max number of messages to return
+     * @return Up to max of the newest messages, oldest first
+     */
+    List<Message> snapshot(int max) {
+        return snapshotSince(0, max);
+    }
+
+    /**
+     * Takes a snapshot of the newest messages with a sequence number greater than the one given.
+     * @param seq Sequence number of the last message already seen
+     * @param max Max number of messages to return
+     * @return Up to max of the newest matching messages, oldest first
+     */
+    List<Message> snapshotSince(long seq, int max) {
+        long last = count;
+        long start = Math.max(first, last - Math.min(capacity, max) + 1);
+        if (start > last) {
+            return new ArrayList<>(0);
+        }
+        Message[] read = new Message[(int) (last - start + 1)];
+        for (long p = start; p <= last; p++) {
+            read[(int) (p - start)] = slots.get((int) ((p - 1) % capacity));
+        }
+        // Every slot we read was written at a position no later than one past the count we see now, so slots
+        // older than that position minus the capacity may have been overwritten while we read them.
+        long valid = Math.max(start, count + 2 - capacity);
+        ArrayList<Message> output = new ArrayList<>(read.length);
+        for (long p = valid; p <= last; p++) {
+            Message message = read[(int) (p - start)];
+            if (message != null && message.getSeq() > seq) { // Null if evicted while we read
+                output.add(message);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Copies the held messages into a new ring of a different capacity, for the writer to continue with. Readers
+     * of this ring are unaffected, since it is no longer written to. Only the thread that appends may call this.
+     * @param newCapacity Max number of messages the new ring holds (at least the number held now)
+     * @return The new ring, whose version is newer than this ring's
+     */
+    MessageRing resize(int newCapacity) {
+        MessageRing resized = new MessageRing(newCapacity);
+        for (long p = first; p <= count; p++) {
+            resized.append(slots.get((int) ((p - 1) % capacity)));
+        }
+        resized.version = version + 1;
+        return resized;
+    }
+
+    /**
+     * @return Max number of messages held
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Version of the held messages, which increases every time a message is appended or evicted
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The oldest message held, or null if the ring is empty. Only the thread that appends may call this.
+     */
+    Message oldest() {
+        return first > count ? null : slots.get((int) ((first - 1) % capacity));
+    }
+
+    /**
+     * @return Estimated size of the messages currently held (bytes)
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Number of messages currently held
+     */
+    int size() {
+        return (int) Math.max(0, count - first + 1);
+    }
+}
@@ -0,0 +1,89 @@
+package org.jmeifert.camber.data;
+
+/**
+ * RetentionPolicy limits how many cached messages a group or topic keeps, by count, by age and by size.
+ * Messages beyond any of its limits are evicted, oldest first, by the server's retention sweeper. A limit of 0 means
+ * no limit, and no policy keeps more than a group's cache can hold.
+ */
+public class RetentionPolicy {
+    public static final RetentionPolicy UNLIMITED = new RetentionPolicy(0, 0, 0);
+
+    private final int maxMessages;
+    private final long maxAge;
+    private final long maxBytes;
+
+    /**
+     * Instantiates a RetentionPolicy.
+     * @param maxMessages Max number of messages to keep (0 for no limit)
+     * @param maxAge Max age of messages to keep (ms, 0 for no limit)
+     * @param maxBytes Max size of messages to keep (bytes, 0 for no limit)
+     * @throws IllegalArgumentException If a limit is negative
+     */
+    public RetentionPolicy(int maxMessages, long maxAge, long maxBytes) throws IllegalArgumentException {
+        if (maxMessages < 0 || maxAge < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Invalid retention limit(s).");
+        }
+        this.maxMessages = maxMessages;
+        this.maxAge = maxAge;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Parses a policy in the form written by toString().
+     * @param policy The policy
+     * @return The parsed policy
+     * @throws IllegalArgumentException If the policy is malformed
+     */
+    public static RetentionPolicy parse(String policy) throws IllegalArgumentException {
+        String[] limits = policy.trim().split(" +");
+        if (limits.length != 3) {
+            throw new IllegalArgumentException("Invalid retention policy.");
+        }
+        return new RetentionPolicy(Integer.parseInt(limits[0]), Long.parseLong(limits[1]), Long.parseLong(limits[2]));
+    }
+
+    /**
+     * Checks whether messages held under this policy must be evicted.
+     * @param count Number of messages held
+     * @param bytes Size of the messages held (bytes)
+     * @param oldest Oldest message held, or null to ignore the age limit
+     * @param now Current time (ms since the epoch)
+     * @return True if the oldest message must be evicted
+     */
+    boolean isExceeded(int count, long bytes, Message oldest, long now) {
+        if (count == 0) {
+            return false;
+        }
+        return (maxMessages > 0 && count > maxMessages) || (maxBytes > 0 && bytes > maxBytes) ||
+                (maxAge > 0 && oldest != null && now - oldest.getTime() > maxAge);
+    }
+
+    /**
+     * @return Max number of messages to keep (0 for no limit)
+     */
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * @return Max age of messages to keep (ms, 0 for no limit)
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * @return Max size of messages to keep (bytes, 0 for no limit)
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return The policy's limits, separated by spaces: messages, age (ms) and size (bytes)
+     */
+    @Override
+    public String toString() {
+        return maxMessages + " " + maxAge + " " + maxBytes;
+    }
+}
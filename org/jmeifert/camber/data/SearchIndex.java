@@ -0,0 +1,271 @@
+package org.jmeifert.camber.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * SearchIndex is an inverted index of a group's cached messages, mapping each term to the sequence numbers of the
+ * messages containing it. It is updated as messages are cached and evicted, so a search only looks at messages that
+ * contain its rarest term and never scans the whole cache. Terms are runs of letters and digits, compared
+ * case-insensitively.
+ * There must only be one writer at a time, but any number of searches can run concurrently.
+ */
+class SearchIndex {
+    private final HashMap<String, TreeSet<Long>> postings = new HashMap<>();
+    private final TreeMap<Long, Message> messages = new TreeMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * A Query is a parsed search. Words must all appear in a message, "quoted phrases" must appear in order, and
+     * topic:, user: and since: filters narrow down the messages searched.
+     */
+    static class Query {
+        private final ArrayList<String> terms = new ArrayList<>(); // Every term of every word and phrase
+        private final ArrayList<List<String>> phrases = new ArrayList<>();
+        private String topic = null;
+        private String user = null;
+        private long since = 0; // Earliest time to match (ms since the epoch)
+
+        /**
+         * Parses a search, such as: deploy "build failed" topic:ops user:alice since:2h
+         * Durations for since: are a number followed by s, m, h or d.
+         * @param text The search
+         * @return The parsed query
+         * @throws IllegalArgumentException If the search is malformed or has nothing to search for
+         */
+        static Query parse(String text) throws IllegalArgumentException {
+            Query query = new Query();
+            int p = 0;
+            while (p < text.length()) {
+                if (text.charAt(p) == ' ') {
+                    p++;
+                } else if (text.charAt(p) == '"') { // Phrase
+                    int end = text.indexOf('"', p + 1);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("Unterminated phrase.");
+                    }
+                    List<String> phrase = tokenize(text.substring(p + 1, end));
+                    if (phrase.size() == 1) {
+                        query.terms.add(phrase.get(0));
+                    } else if (phrase.size() > 1) {
+                        query.terms.addAll(phrase);
+                        query.phrases.add(phrase);
+                    }
+                    p = end + 1;
+                } else { // Word or filter
+                    int end = text.indexOf(' ', p);
+                    end = end < 0 ? text.length() : end;
+                    query.parseWord(text.substring(p, end));
+                    p = end;
+                }
+            }
+            if (query.terms.isEmpty() && query.topic == null && query.user == null && query.since == 0) {
+                throw new IllegalArgumentException("Nothing to search for.");
+            }
+            return query;
+        }
+
+        /**
+         * Parses one unquoted word of a search.
+         * @param word The word
+         * @throws IllegalArgumentException If the word is a malformed filter
+         */
+        private void parseWord(String word) throws IllegalArgumentException {
+            if (word.startsWith("topic:") && word.length() > 6) {
+                topic = word.substring(6);
+            } else if (word.startsWith("user:") && word.length() > 5) {
+                user = word.substring(5);
+            } else if (word.startsWith("since:")) {
+                since = System.currentTimeMillis() - parseDuration(word.substring(6));
+            } else {
+                terms.addAll(tokenize(word));
+            }
+        }
+
+        /**
+         * Parses a duration such as 30m.
+         * @param duration The duration
+         * @return The duration (ms)
+         * @throws IllegalArgumentException If the duration is malformed
+         */
+        private static long parseDuration(String duration) throws IllegalArgumentException {
+            if (duration.length() < 2) {
+                throw new IllegalArgumentException("Invalid duration.");
+            }
+            long amount = Long.parseLong(duration.substring(0, duration.length() - 1));
+            switch (duration.charAt(duration.length() - 1)) {
+                case 's': return amount * 1000;
+                case 'm': return amount * 60 * 1000;
+                case 'h': return amount * 60 * 60 * 1000;
+                case 'd': return amount * 24 * 60 * 60 * 1000;
+                default: throw new IllegalArgumentException("Invalid duration.");
+            }
+        }
+
+        /**
+         * Checks a message against the query's filters and phrases. Its terms are already known to match.
+         * @param message The message
+         * @return True if the message matches
+         */
+        private boolean matches(Message message) {
+            if ((topic != null && !topic.equals(message.getTopic())) ||
+                    (user != null && !user.equals(message.getUser())) || message.getTime() < since) {
+                return false;
+            }
+            if (phrases.isEmpty()) {
+                return true;
+            }
+            List<String> words = tokenize(message.getBody());
+            for (List<String> i : phrases) {
+                if (indexOf(words, i) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Adds a message to the index.
+     * @param message The message
+     */
+    void add(Message message) {
+        lock.writeLock().lock();
+        try {
+            messages.put(message.getSeq(), message);
+            for (String i : new HashSet<>(tokenize(message.getBody()))) {
+                postings.computeIfAbsent(i, k -> new TreeSet<>()).add(message.getSeq());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a message from the index.
+     * @param message The message
+     */
+    void remove(Message message) {
+        lock.writeLock().lock();
+        try {
+            if (messages.remove(message.getSeq()) == null) {
+                return;
+            }
+            for (String i : tokenize(message.getBody())) {
+                TreeSet<Long> seqs = postings.get(i);
+                if (seqs != null && seqs.remove(message.getSeq()) && seqs.isEmpty()) {
+                    postings.remove(i);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every message from the index.
+     */
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            messages.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the newest messages matching a query.
+     * @param query The query
+     * @param max Max number of messages to find
+     * @return Matching messages, oldest first
+     */
+    List<Message> search(Query query, int max) {
+        ArrayList<Message> found = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Iterator<Long> candidates;
+            ArrayList<TreeSet<Long>> others = new ArrayList<>();
+            if (query.terms.isEmpty()) { // Filters only
+                candidates = messages.descendingKeySet().iterator();
+            } else {
+                TreeSet<Long> rarest = null;
+                for (String i : query.terms) {
+                    TreeSet<Long> seqs = postings.get(i);
+                    if (seqs == null) {
+                        return found;
+                    }
+                    if (rarest == null || seqs.size() < rarest.size()) {
+                        rarest = seqs;
+                    }
+                    others.add(seqs);
+                }
+                others.remove(rarest);
+                candidates = rarest.descendingIterator();
+            }
+            while (candidates.hasNext() && found.size() < max) {
+                long seq = candidates.next();
+                boolean inAll = true;
+                for (TreeSet<Long> i : others) {
+                    if (!i.contains(seq)) {
+                        inAll = false;
+                        break;
+                    }
+                }
+                Message message = messages.get(seq);
+                if (inAll && query.matches(message)) {
+                    found.add(message);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        ArrayList<Message> oldestFirst = new ArrayList<>(found.size());
+        for (int i = found.size() - 1; i >= 0; i--) {
+            oldestFirst.add(found.get(i));
+        }
+        return oldestFirst;
+    }
+
+    /**
+     * Splits text into lowercase terms.
+     * @param text The text
+     * @return The terms, in order
+     */
+    static List<String> tokenize(String text) {
+        ArrayList<String> terms = new ArrayList<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                term.append(Character.toLowerCase(c));
+            } else if (term.length() > 0) {
+                terms.add(term.toString());
+                term.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Finds a run of terms within a list of terms.
+     * @param words Terms to search
+     * @param phrase Run of terms to find
+     * @return Position of the run, or -1 if it is not found
+     */
+    private static int indexOf(List<String> words, List<String> phrase) {
+        for (int i = 0; i + phrase.size() <= words.size(); i++) {
+            if (words.subList(i, i + phrase.size()).equals(phrase)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
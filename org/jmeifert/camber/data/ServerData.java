@@ -1,53 +1,304 @@
 package org.jmeifert.camber.data;
 
+import org.jmeifert.camber.file.Log;
+import org.jmeifert.camber.security.TicketSuite;
+import org.jmeifert.camber.util.ChatMap;
 import org.jmeifert.camber.util.Format;
 
-import java.util.Vector;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Server passes an instance of ServerData to each ServerThread upon its instantiation.
  * ServerData contains Groups that ServerThreads can synchronously read from and write to.
+ * Groups are indexed by name in a concurrent hash map, so lookups never block and take the same time
+ * however many groups there are. Groups can be created and removed while the server is running.
+ * If given a data directory, ServerData saves every group to it and loads them back on startup.
+ * All groups' caches share one memory budget, which shrinks further while the heap is under pressure.
  */
 public class ServerData {
-    private Vector<Group> groups;
+    private final long CACHE_MEMORY_BUDGET = ChatMap.CACHE_MEMORY_BUDGET;
+    private final int HEAP_PRESSURE_LIMIT = ChatMap.HEAP_PRESSURE_LIMIT;
+    private final int HEAP_PRESSURE_SHRINK = ChatMap.HEAP_PRESSURE_SHRINK;
+    private final ConcurrentHashMap<String, Group> groups;
+    private final Path groupsDir; // Null if groups are only kept in memory
+    // Explicit lock instead of synchronized, so waiting virtual threads do not pin their carrier thread
+    private final ReentrantLock createLock = new ReentrantLock();
+    private long pressureCollections = -1; // Garbage collections seen when caches were last shrunk for pressure
+    private final TicketSuite tickets = new TicketSuite(); // Issues this server's session resumption tickets
 
     /**
-     * Instantiates a ServerData.
+     * Instantiates a ServerData that only keeps groups in memory.
      */
     public ServerData() {
-        groups = new Vector<>();
+        groups = new ConcurrentHashMap<>();
+        groupsDir = null;
+    }
+
+    /**
+     * Instantiates a ServerData that saves groups to disk, loading any groups saved there before.
+     * @param dataDir Directory to save data in
+     * @throws IOException If the data directory could not be read or created
+     */
+    public ServerData(Path dataDir) throws IOException {
+        groups = new ConcurrentHashMap<>();
+        groupsDir = dataDir.resolve("groups");
+        Files.createDirectories(groupsDir);
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(groupsDir)) {
+            for (Path i : dirs) {
+                try {
+                    Group group = Group.load(i);
+                    groups.put(group.getName(), group);
+                    Log.log("ServerData: Loaded group '{}' ({} messages).", group.getName(), group.getLastSeq(), 0);
+                } catch (IOException e) {
+                    Log.log("ServerData: Failed to load group from {}. - {}", i, e.getMessage(), 2);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a group, which stays open until it is removed.
+     * @param name Group name
+     * @param password Group password
+     * @throws IllegalArgumentException If the name is invalid or already exists.
+     */
+    public void createGroup(String name, String password) throws IllegalArgumentException {
+        createGroup(name, password, false);
     }
 
     /**
      * Creates a group.
      * @param name Group name
      * @param password Group password
+     * @param closeWhenIdle Whether the group is closed once nobody has used it for a while
      * @throws IllegalArgumentException If the name is invalid or already exists.
      */
-    public synchronized void createGroup(String name, String password) throws IllegalArgumentException {
+    public void createGroup(String name, String password, boolean closeWhenIdle) throws IllegalArgumentException {
         if (!Format.isSafeAscii(name) || !Format.isSafeAscii(password)) {
             throw new IllegalArgumentException();
         }
-        for (Group i : groups) {
-            if (i.getName().equals(name)) {
+        createLock.lock();
+        try {
+            if (groups.containsKey(name)) {
                 throw new IllegalArgumentException("Group already exists!");
             }
+            Group group = new Group(name, password, closeWhenIdle);
+            if (groupsDir != null) {
+                try {
+                    group.save(groupsDir.resolve(toDirName(name)));
+                } catch (IOException e) {
+                    System.err.println("ServerData: Failed to save group '" + name + "'.");
+                    throw new IllegalArgumentException("Group could not be saved!");
+                }
+            }
+            groups.put(name, group);
+        } finally {
+            createLock.unlock();
         }
-        groups.add(new Group(name, password));
+    }
+
+    /**
+     * Encodes a group name as a directory name that is safe on any file system.
+     * @param name Group name
+     * @return Directory name
+     */
+    private static String toDirName(String name) {
+        StringBuilder output = new StringBuilder();
+        for (byte i : name.getBytes(StandardCharsets.UTF_8)) {
+            output.append(String.format("%02x", i));
+        }
+        return output.toString();
     }
 
     /**
      * Returns the group with the given name.
      * @param name Name of the group to return
-     * @return The group with the given name
+     * @return The group with the given name, or null if there is none
      */
     public Group getGroup(String name) {
-        for (int i = 0; i < groups.size(); i++) {
-            if (groups.get(i).getName().equals(name)) {
-                return groups.get(i);
+        return groups.get(name);
+    }
+
+    /**
+     * @return The TicketSuite that issues and redeems this server's session resumption tickets
+     */
+    public TicketSuite getTickets() {
+        return tickets;
+    }
+
+    /**
+     * Removes and closes a group, deleting its files. Its members are disconnected the next time they make a request.
+     * @param name Name of the group to remove
+     * @return True if the group existed
+     */
+    public boolean removeGroup(String name) {
+        createLock.lock(); // So a group of the same name isn't created while the old one's files are deleted
+        try {
+            Group group = groups.remove(name);
+            if (group == null) {
+                return false;
             }
+            group.close();
+            group.deleteFiles();
+            return true;
+        } finally {
+            createLock.unlock();
         }
-        return null;
+    }
+
+    /**
+     * Removes and closes every group that may be closed when idle, has no members, and has not been used recently.
+     * @param idleTimeout How long a group must have gone unused (ms)
+     * @return Names of the groups that were closed
+     */
+    public List<String> closeIdleGroups(long idleTimeout) {
+        ArrayList<String> closed = new ArrayList<>();
+        for (Map.Entry<String, Group> i : groups.entrySet()) {
+            if (i.getValue().closeIfIdle(idleTimeout)) {
+                createLock.lock();
+                try {
+                    groups.remove(i.getKey(), i.getValue());
+                    i.getValue().deleteFiles();
+                } finally {
+                    createLock.unlock();
+                }
+                closed.add(i.getKey());
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * Closes every group, finishing any writes to disk. Used when the server shuts down.
+     */
+    public void close() {
+        for (Group i : groups.values()) {
+            i.saveSnapshot();
+            i.close();
+        }
+    }
+
+    /**
+     * Evicts cached messages beyond each group's retention policies, a batch at a time so no group's writers are
+     * held up for long. Then deletes the parts of each group's log that are beyond retention too, and drops topics
+     * that have long been idle from each group's topic list.
+     * @param batchSize Max number of messages to evict from a group at a time
+     * @return Number of messages evicted
+     */
+    public int applyRetention(int batchSize) {
+        int evicted = 0;
+        for (Group i : groups.values()) {
+            int batch;
+            do {
+                batch = i.applyRetention(batchSize);
+                evicted += batch;
+            } while (batch == batchSize);
+            i.trimLog();
+            i.expireTopics();
+        }
+        return evicted;
+    }
+
+    /**
+     * Shrinks groups' caches until they fit in the cache memory budget, or, while the heap is under pressure,
+     * until they have given up HEAP_PRESSURE_SHRINK percent of their memory. Pressure only shrinks the caches
+     * again once the heap has been collected since, so the shrinking has had a chance to take effect.
+     * The least recently used groups are shrunk first, a batch at a time so no group's writers are held up for long.
+     * Only called by one thread at a time.
+     * @param batchSize Max number of messages to evict from a group at a time
+     * @return Estimated amount of memory freed (bytes)
+     */
+    public long enforceCacheBudget(int batchSize) {
+        List<Group> byActivity = getGroups();
+        long total = 0;
+        for (Group i : byActivity) {
+            total += i.getCachedBytes();
+        }
+        long target = CACHE_MEMORY_BUDGET;
+        long collections = getCollectionCount();
+        if (collections != pressureCollections && getHeapPressure() >= HEAP_PRESSURE_LIMIT) {
+            target = Math.min(target, total - total * HEAP_PRESSURE_SHRINK / 100);
+            pressureCollections = collections;
+        }
+        if (total <= target) {
+            return 0;
+        }
+        byActivity.sort(Comparator.comparingLong(Group::getLastActivity));
+        long freed = 0;
+        for (Group i : byActivity) {
+            long batch;
+            do {
+                batch = i.shrink(total - freed - target, batchSize);
+                freed += batch;
+            } while (batch > 0 && total - freed > target);
+            if (total - freed <= target) {
+                break;
+            }
+        }
+        Log.log("ServerData: Shrank message caches by {} KiB to fit in {} KiB.", freed / 1024, target / 1024, 1);
+        return freed;
+    }
+
+    /**
+     * Measures how full the heap was after the most recent garbage collections, so garbage that is about to be
+     * collected is not mistaken for pressure.
+     * @return Heap in use after garbage collection (percent of the max heap size)
+     */
+    private static int getHeapPressure() {
+        long used = 0;
+        long max = 0;
+        for (MemoryPoolMXBean i : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage afterCollection = i.getCollectionUsage();
+            if (i.getType() != MemoryType.HEAP || afterCollection == null) {
+                continue;
+            }
+            used += afterCollection.getUsed();
+            max += i.getUsage().getMax() > 0 ? i.getUsage().getMax() : i.getUsage().getCommitted();
+        }
+        return max > 0 ? (int) (used * 100 / max) : 0;
+    }
+
+    /**
+     * @return Number of garbage collections run so far
+     */
+    private static long getCollectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean i : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, i.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * Saves a snapshot of every saved group that has changed since its last snapshot, so the server can restart
+     * without replaying their whole message logs.
+     */
+    public void saveSnapshots() {
+        for (Group i : groups.values()) {
+            i.saveSnapshot();
+        }
+    }
+
+    /**
+     * @return Every group on the server
+     */
+    public List<Group> getGroups() {
+        return new ArrayList<>(groups.values());
     }
 
 }
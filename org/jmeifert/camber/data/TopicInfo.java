@@ -0,0 +1,81 @@
+package org.jmeifert.camber.data;
+
+/**
+ * TopicInfo keeps track of a topic's activity in a group. It is updated by the group as messages are added, so
+ * listing topics never needs to look at message history.
+ */
+public class TopicInfo {
+    private final String name;
+    private volatile long messageCount = 0;
+    private volatile long lastActivity = 0;
+    private volatile long lastSeq = 0;
+
+    /**
+     * Instantiates a TopicInfo.
+     * @param name The topic's name
+     */
+    TopicInfo(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Instantiates a TopicInfo restored from a snapshot.
+     * @param name The topic's name
+     * @param messageCount Number of messages ever sent in the topic
+     * @param lastActivity When the last message was sent in the topic (ms since the epoch)
+     * @param lastSeq Sequence number of the last message sent in the topic
+     */
+    TopicInfo(String name, long messageCount, long lastActivity, long lastSeq) {
+        this.name = name;
+        this.messageCount = messageCount;
+        this.lastActivity = lastActivity;
+        this.lastSeq = lastSeq;
+    }
+
+    /**
+     * Records a message added to the topic. Only one thread may record at a time.
+     * @param message Message that was added
+     */
+    void record(Message message) {
+        messageCount = messageCount + 1;
+        lastActivity = message.getTime();
+        lastSeq = message.getSeq();
+    }
+
+    /**
+     * @return The topic's name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Number of messages ever sent in the topic
+     */
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * @return When the last message was sent in the topic, in milliseconds since the epoch
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * @return Sequence number of the last message sent in the topic
+     */
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * @return This TopicInfo as a string
+     */
+    @Override
+    public String toString() {
+        return "'" + name + "' - " + messageCount + (messageCount == 1 ? " message" : " messages") +
+                ", last active " + Message.formatDate(lastActivity);
+    }
+}
@@ -0,0 +1,686 @@
+package org.jmeifert.camber.file;
+
+import org.jmeifert.camber.util.ChatMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * GroupStore keeps a group's settings and message history on disk, in a directory of its own.
+ * Messages are appended to a write-ahead log split into segment files, named after the sequence number of the
+ * first message they hold. Every record carries a CRC32 checksum, so a record torn by a crash is detected and
+ * dropped when the log is replayed. The newest segment's file is preallocated to the full segment size, and the
+ * end of its records is found by replaying it; a segment is cut down to the end of its records once it is full.
+ * Appending only buffers the record. Writers then call sync() to wait until their records are on disk, and
+ * whichever writer gets to the disk first writes and syncs everything buffered so far for all of them,
+ * so the disk is synced once per batch of messages rather than once per message.
+ * The log doubles as the group's full history: segments are memory-mapped and indexed, so messages that have
+ * fallen out of the group's in-memory cache can still be read back a page at a time, and the oldest segments are
+ * deleted once every message in them is beyond the group's retention.
+ * The group also saves snapshots of its cache here from time to time, so that a restart only has to replay the
+ * part of the log written after the latest snapshot.
+ */
+public class GroupStore {
+    private static final int LOG_SEGMENT_SIZE = ChatMap.LOG_SEGMENT_SIZE;
+    private static final String META_FILE = "group.meta";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    private static final int SNAPSHOT_MAGIC = 0x43534e50; // "CSNP"
+    private static final int HEADER_SIZE = LogSegment.HEADER_SIZE;
+
+    /**
+     * A RecordHandler receives the messages read back from the log, oldest first.
+     */
+    public interface RecordHandler {
+        /**
+         * @param seq The message's sequence number
+         * @param time When the message was sent (ms since the epoch)
+         * @param topic The message's topic
+         * @param user The user who sent the message
+         * @param body The message's body (UTF-8)
+         */
+        void onRecord(long seq, long time, String topic, String user, byte[] body);
+    }
+
+    /**
+     * A RecordFilter picks out records in the log, such as those that are past the group's retention.
+     */
+    public interface RecordFilter {
+        /**
+         * @param seq The message's sequence number
+         * @param time When the message was sent (ms since the epoch)
+         * @param topic The message's topic
+         * @return True if the record is picked out
+         */
+        boolean test(long seq, long time, String topic);
+    }
+
+    private final Path dir;
+    private final String name;
+    private final String hashedPassword;
+    private final boolean closeWhenIdle;
+    private volatile List<String> settings; // Further lines of the group's settings, such as retention policies
+    private final CopyOnWriteArrayList<LogSegment> segments = new CopyOnWriteArrayList<>(); // Oldest first
+    private FileChannel segment; // Newest segment, open for appending
+    private long segmentSize = 0; // End of the records in the newest segment
+
+    // Records appended but not yet written, guarded by bufferLock
+    private final ReentrantLock bufferLock = new ReentrantLock();
+    private ByteBuffer buffered = ByteBuffer.allocate(64 * 1024);
+    private long bufferedSeq = 0; // Sequence number of the last buffered record
+
+    // Held while writing and syncing, guards segment and segmentSize
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private ByteBuffer flushing = ByteBuffer.allocate(64 * 1024);
+    private volatile long durableSeq = 0; // Sequence number of the last record on disk
+    private volatile boolean closed = false;
+    private IOException failure = null; // Set if writing ever fails, guarded by flushLock
+    private long replayedSeq = 0; // Sequence number of the last record read by replay
+    private final ReentrantLock snapshotLock = new ReentrantLock(); // Held while saving a snapshot or the settings
+
+    private GroupStore(Path dir, String name, String hashedPassword, boolean closeWhenIdle, List<String> settings) {
+        this.dir = dir;
+        this.name = name;
+        this.hashedPassword = hashedPassword;
+        this.closeWhenIdle = closeWhenIdle;
+        this.settings = settings;
+    }
+
+    /**
+     * Creates the store for a new group.
+     * @param dir Directory to keep the group's files in (must not exist yet)
+     * @param name The group's name
+     * @param hashedPassword Hash of the group's password
+     * @param closeWhenIdle Whether the group may be closed once nobody has used it for a while
+     * @return The new store, ready to append to
+     * @throws IOException If the group's files could not be created
+     */
+    public static GroupStore create(Path dir, String name, String hashedPassword, boolean closeWhenIdle)
+            throws IOException {
+        Files.createDirectory(dir);
+        GroupStore store = new GroupStore(dir, name, hashedPassword, closeWhenIdle, new ArrayList<>());
+        store.writeMeta();
+        store.openSegment(1);
+        return store;
+    }
+
+    /**
+     * Opens the store of an existing group. Its log must be replayed before anything is appended.
+     * @param dir Directory the group's files are kept in
+     * @return The store
+     * @throws IOException If the group's settings could not be read
+     */
+    public static GroupStore open(Path dir) throws IOException {
+        List<String> meta = Files.readAllLines(dir.resolve(META_FILE), StandardCharsets.UTF_8);
+        if (meta.size() < 3) {
+            throw new IOException("GroupStore: Malformed " + dir.resolve(META_FILE) + ".");
+        }
+        return new GroupStore(dir, meta.get(0), meta.get(1), Boolean.parseBoolean(meta.get(2)),
+                new ArrayList<>(meta.subList(3, meta.size())));
+    }
+
+    /**
+     * Replaces the group's further settings and saves them.
+     * @param settings Lines of settings, which must not contain line breaks
+     * @throws IOException If the settings could not be saved
+     */
+    public void saveSettings(List<String> settings) throws IOException {
+        snapshotLock.lock();
+        try {
+            this.settings = new ArrayList<>(settings);
+            writeMeta();
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Atomically writes the group's settings to its meta file.
+     * @throws IOException If the settings could not be written
+     */
+    private void writeMeta() throws IOException {
+        StringBuilder meta = new StringBuilder();
+        meta.append(name).append("\n").append(hashedPassword).append("\n").append(closeWhenIdle).append("\n");
+        for (String i : settings) {
+            meta.append(i).append("\n");
+        }
+        Path temp = dir.resolve(META_FILE + ".tmp");
+        Files.write(temp, meta.toString().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, dir.resolve(META_FILE), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(dir);
+    }
+
+    /**
+     * Reads the messages in the log after a sequence number back, oldest first, then opens the log for appending.
+     * Segments holding only older messages are not read. A torn or corrupt record ends the log: it is cut off there,
+     * along with anything after it.
+     * @param handler Handler to pass each message to
+     * @param afterSeq Sequence number of the last message already restored from a snapshot (0 if none)
+     * @return Sequence number of the last message in the log, or afterSeq if that is later
+     * @throws IOException If the log could not be read
+     */
+    public long replay(RecordHandler handler, long afterSeq) throws IOException {
+        List<Path> paths = listSegments();
+        replayedSeq = afterSeq;
+        long end = 0; // End of the records in the last segment replayed
+        for (int i = 0; i < paths.size(); i++) {
+            Path path = paths.get(i);
+            long firstSeq = parseFirstSeq(path);
+            if (i + 1 < paths.size() && parseFirstSeq(paths.get(i + 1)) <= afterSeq + 1) { // Already restored
+                segments.add(new LogSegment(path, firstSeq, Files.size(path)));
+                continue;
+            }
+            LogSegment logSegment = new LogSegment(path, firstSeq);
+            long validLength = replaySegment(logSegment, handler);
+            segments.add(logSegment);
+            end = validLength;
+            long length = Files.size(path);
+            if (validLength < length && !isPreallocated(path, validLength)) {
+                Log.log("GroupStore: Dropping damaged log in {} after offset {}.", path, validLength, 1);
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(validLength);
+                    channel.force(true);
+                }
+                for (int j = i + 1; j < paths.size(); j++) { // Nothing after a damaged record can be trusted
+                    Files.delete(paths.get(j));
+                }
+                break;
+            }
+        }
+        durableSeq = replayedSeq;
+        bufferedSeq = replayedSeq;
+        if (segments.isEmpty()) {
+            openSegment(replayedSeq + 1);
+        } else {
+            segment = FileChannel.open(segments.get(segments.size() - 1).getPath(), StandardOpenOption.WRITE);
+            segmentSize = end;
+            preallocate();
+        }
+        return replayedSeq;
+    }
+
+    /**
+     * Checks whether a segment ends in preallocated space that no record has been written to yet, rather than in a
+     * damaged record.
+     * @param path The segment's file
+     * @param offset End of the segment's intact records
+     * @return True if the header of the next record is all zeroes
+     * @throws IOException If the segment could not be read
+     */
+    private static boolean isPreallocated(Path path, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (header.hasRemaining() && channel.read(header, offset + header.position()) > 0) { }
+        }
+        for (int i = 0; i < header.position(); i++) {
+            if (header.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Saves a snapshot, replacing the previous one. Everything in the snapshot must already be in the log.
+     * @param data The snapshot
+     * @throws IOException If the snapshot could not be saved
+     */
+    public void saveSnapshot(byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ByteBuffer file = ByteBuffer.allocate(12 + data.length);
+        file.putInt(SNAPSHOT_MAGIC).putInt((int) crc.getValue()).putInt(data.length).put(data);
+        file.flip();
+        snapshotLock.lock();
+        try {
+            Path temp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (file.hasRemaining()) {
+                    channel.write(file);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(dir);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Loads the latest snapshot.
+     * @return The snapshot, or null if there is none or it is damaged
+     * @throws IOException If the snapshot could not be read
+     */
+    public byte[] loadSnapshot() throws IOException {
+        Path path = dir.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (file.remaining() < 12 || file.getInt() != SNAPSHOT_MAGIC) {
+            Log.log("GroupStore: Ignoring malformed snapshot {}.", path, 1);
+            return null;
+        }
+        int checksum = file.getInt();
+        int length = file.getInt();
+        if (length != file.remaining()) {
+            Log.log("GroupStore: Ignoring truncated snapshot {}.", path, 1);
+            return null;
+        }
+        byte[] data = new byte[length];
+        file.get(data);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if ((int) crc.getValue() != checksum) {
+            Log.log("GroupStore: Ignoring damaged snapshot {}.", path, 1);
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * Reads the messages in one segment and indexes them.
+     * @param logSegment Segment to read
+     * @param handler Handler to pass each message to
+     * @return Length of the segment up to the end of the last intact record
+     * @throws IOException If the segment could not be read
+     */
+    private long replaySegment(LogSegment logSegment, RecordHandler handler) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(logSegment.getPath(), StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        CRC32 crc = new CRC32();
+        int p = 0;
+        while (data.limit() - p >= HEADER_SIZE) {
+            int length = data.getInt(p);
+            if (length < LogSegment.MIN_RECORD_LENGTH || length > data.limit() - p - HEADER_SIZE) {
+                break; // Preallocated space (length 0) or a damaged record
+            }
+            ByteBuffer record = data.duplicate();
+            record.position(p + HEADER_SIZE).limit(p + HEADER_SIZE + length);
+            crc.reset();
+            crc.update(record);
+            if ((int) crc.getValue() != data.getInt(p + 4)) {
+                break;
+            }
+            long seq = data.getLong(p + LogSegment.SEQ_OFFSET);
+            if (seq > replayedSeq) { // Skip anything already read from an earlier segment
+                decode(data, p, handler);
+                replayedSeq = seq;
+            }
+            logSegment.add(seq, data.getLong(p + LogSegment.TIME_OFFSET), p, HEADER_SIZE + length);
+            p += HEADER_SIZE + length;
+        }
+        return p;
+    }
+
+    /**
+     * Reads up to a page of a topic's messages older than a sequence number, straight from the mapped log.
+     * Reading stops at the oldest message the topic still retains, so segments older than that are never scanned.
+     * @param topic Topic to read
+     * @param beforeSeq Only read messages with a lower sequence number than this
+     * @param fromSeq Only read messages with this sequence number or a higher one
+     * @param fromTime Only read messages sent at or after this time (ms since the epoch)
+     * @param max Max number of messages to read
+     * @param handler Handler to pass the newest matching messages to, oldest first
+     * @throws IOException If the log could not be read
+     */
+    public void readBefore(String topic, long beforeSeq, long fromSeq, long fromTime, int max,
+                           RecordHandler handler) throws IOException {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        ArrayList<ByteBuffer> found = new ArrayList<>();
+        List<LogSegment> snapshot = new ArrayList<>(segments);
+        for (int i = snapshot.size() - 1; i >= 0 && found.size() < max; i--) { // Newest segment first
+            if (snapshot.get(i).findBefore(topicBytes, beforeSeq, fromSeq, fromTime, max, found)) {
+                break;
+            }
+        }
+        for (int i = found.size() - 1; i >= 0; i--) {
+            decode(found.get(i), 0, handler);
+        }
+    }
+
+    /**
+     * Deletes the oldest segments, for as long as every record in them is picked out by a filter. The segment
+     * being appended to is never deleted.
+     * @param expired Filter picking out the records that are no longer retained
+     * @return Number of segments deleted
+     * @throws IOException If a segment could not be read or deleted
+     */
+    public int deleteSegments(RecordFilter expired) throws IOException {
+        ArrayList<LogSegment> deleted = new ArrayList<>();
+        List<LogSegment> snapshot = new ArrayList<>(segments);
+        for (int i = 0; i < snapshot.size() - 1 && snapshot.get(i).allMatch(expired); i++) { // Oldest first
+            deleted.add(snapshot.get(i));
+        }
+        if (deleted.isEmpty()) {
+            return 0;
+        }
+        segments.removeAll(deleted); // Readers that already took a snapshot keep their mappings
+        for (LogSegment i : deleted) {
+            Files.deleteIfExists(i.getPath());
+        }
+        syncDirectory(dir);
+        return deleted.size();
+    }
+
+    /**
+     * @return Sequence number of the first message still in the log
+     */
+    public long getFirstSeq() {
+        return segments.isEmpty() ? 0 : segments.get(0).getFirstSeq();
+    }
+
+    /**
+     * Finds the sequence number of the last message sent at or before a given time.
+     * @param time Time to look for (ms since the epoch)
+     * @return Sequence number of the last message no later than the time, or 0 if the log starts after it
+     * @throws IOException If the log could not be read
+     */
+    public long seqAtTime(long time) throws IOException {
+        List<LogSegment> snapshot = new ArrayList<>(segments);
+        for (int i = snapshot.size() - 1; i >= 0; i--) { // Newest segment first
+            long seq = snapshot.get(i).seqAtTime(time);
+            if (seq >= 0) {
+                return seq;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Decodes a record and passes it to a handler.
+     * @param data Buffer holding the record
+     * @param p Offset of the record
+     * @param handler Handler to pass the message to
+     */
+    private static void decode(ByteBuffer data, int p, RecordHandler handler) {
+        ByteBuffer record = data.duplicate();
+        record.position(p + LogSegment.SEQ_OFFSET);
+        long seq = record.getLong();
+        long time = record.getLong();
+        String topic = getString(record);
+        String user = getString(record);
+        byte[] body = new byte[record.getInt()];
+        record.get(body);
+        handler.onRecord(seq, time, topic, user, body);
+    }
+
+    /**
+     * Buffers a message to be written to the log. Messages must be appended in sequence order, by one thread at a
+     * time. The message is not on disk until sync() returns for its sequence number.
+     * @param seq The message's sequence number
+     * @param time When the message was sent (ms since the epoch)
+     * @param topic The message's topic
+     * @param user The user who sent the message
+     * @param body The message's body (UTF-8)
+     */
+    public void append(long seq, long time, String topic, String user, byte[] body) {
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        byte[] userBytes = user.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 8 + 2 + topicBytes.length + 2 + userBytes.length + 4 + body.length;
+        bufferLock.lock();
+        try {
+            buffered = ensureRemaining(buffered, HEADER_SIZE + length);
+            int start = buffered.position();
+            buffered.putInt(length);
+            buffered.putInt(0); // Checksum, filled in below
+            buffered.putLong(seq);
+            buffered.putLong(time);
+            buffered.putShort((short) topicBytes.length).put(topicBytes);
+            buffered.putShort((short) userBytes.length).put(userBytes);
+            buffered.putInt(body.length).put(body);
+            CRC32 crc = new CRC32();
+            crc.update(buffered.array(), start + HEADER_SIZE, length);
+            buffered.putInt(start + 4, (int) crc.getValue());
+            bufferedSeq = seq;
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a message and everything before it is on disk. If nobody else is writing to the disk, this
+     * writes and syncs every buffered message, including ones appended by other threads.
+     * @param seq Sequence number of the message to wait for
+     * @throws IOException If writing to the log failed
+     */
+    public void sync(long seq) throws IOException {
+        if (durableSeq >= seq) {
+            return;
+        }
+        flushLock.lock();
+        try {
+            if (durableSeq >= seq || closed) { // Synced by whoever held the lock before us
+                return;
+            }
+            if (failure != null) {
+                throw new IOException("GroupStore: Log in " + dir + " is unavailable after an earlier failure.");
+            }
+            try {
+                flush();
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Writes and syncs every buffered message. Caller must hold the flush lock.
+     * @throws IOException If writing to the log failed
+     */
+    private void flush() throws IOException {
+        long batchSeq;
+        bufferLock.lock();
+        try { // Swap buffers, so appending can go on while we write
+            ByteBuffer batch = buffered;
+            buffered = flushing;
+            flushing = batch;
+            batchSeq = bufferedSeq;
+        } finally {
+            bufferLock.unlock();
+        }
+        flushing.flip();
+        if (flushing.hasRemaining()) {
+            if (segmentSize >= LOG_SEGMENT_SIZE) { // Start a new segment, named after the batch's first message
+                segment.truncate(segmentSize); // Give back any preallocated space the records did not use
+                segment.force(true);
+                segment.close();
+                openSegment(flushing.getLong(flushing.position() + HEADER_SIZE));
+            }
+            long offset = segmentSize;
+            while (flushing.hasRemaining()) {
+                segmentSize += segment.write(flushing, segmentSize);
+            }
+            segment.force(false);
+            LogSegment active = segments.get(segments.size() - 1);
+            for (int p = 0; p < flushing.limit(); p += HEADER_SIZE + flushing.getInt(p)) { // Index the batch
+                active.add(flushing.getLong(p + LogSegment.SEQ_OFFSET),
+                        flushing.getLong(p + LogSegment.TIME_OFFSET), offset + p, HEADER_SIZE + flushing.getInt(p));
+            }
+        }
+        flushing.clear();
+        durableSeq = batchSeq;
+    }
+
+    /**
+     * Writes any buffered messages and closes the log.
+     */
+    public void close() {
+        flushLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (segment != null) {
+                if (failure == null) {
+                    flush();
+                }
+                segment.close();
+            }
+        } catch (IOException e) {
+            Log.log("GroupStore: Failed to close log in {}. - {}", dir, e.getMessage(), 2);
+        } finally {
+            closed = true;
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the log and deletes all of the group's files.
+     * @throws IOException If the files could not be deleted
+     */
+    public void delete() throws IOException {
+        close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path i : files) {
+                Files.delete(i);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * @return The group's name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Hash of the group's password
+     */
+    public String getHashedPassword() {
+        return hashedPassword;
+    }
+
+    /**
+     * @return Whether the group may be closed once nobody has used it for a while
+     */
+    public boolean isCloseWhenIdle() {
+        return closeWhenIdle;
+    }
+
+    /**
+     * @return The group's further settings, one per line
+     */
+    public List<String> getSettings() {
+        return settings;
+    }
+
+    /**
+     * Creates and opens a new segment for appending.
+     * @param firstSeq Sequence number of the first message it will hold
+     * @throws IOException If the segment could not be created
+     */
+    private void openSegment(long firstSeq) throws IOException {
+        Path path = dir.resolve(String.format("%020d", firstSeq) + SEGMENT_SUFFIX);
+        segment = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        segmentSize = 0;
+        preallocate();
+        segments.add(new LogSegment(path, firstSeq));
+        syncDirectory(dir);
+    }
+
+    /**
+     * Extends the newest segment's file to the full segment size, so it can be mapped once for reading. The space
+     * is filled with zeroes, which mark where the records end.
+     * @throws IOException If the file could not be extended
+     */
+    private void preallocate() throws IOException {
+        if (segment.size() < LOG_SEGMENT_SIZE) {
+            segment.write(ByteBuffer.allocate(1), LOG_SEGMENT_SIZE - 1);
+        }
+    }
+
+    /**
+     * @param path A segment's file
+     * @return Sequence number of the first message in the segment, from its name
+     * @throws IOException If the name is not a segment name
+     */
+    private static long parseFirstSeq(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("GroupStore: Unexpected file " + path + ".");
+        }
+    }
+
+    /**
+     * Syncs a directory, so that files just created in it survive a crash. Not every platform can open
+     * directories, in which case this does nothing.
+     * @param dir Directory to sync
+     */
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Best effort only
+        }
+    }
+
+    /**
+     * @return The log's segments, oldest first
+     * @throws IOException If the group's directory could not be listed
+     */
+    private List<Path> listSegments() throws IOException {
+        ArrayList<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            for (Path i : files) {
+                segments.add(i);
+            }
+        }
+        Collections.sort(segments); // Names are zero-padded, so they sort in sequence order
+        return segments;
+    }
+
+    /**
+     * Reads a length-prefixed string from a record.
+     * @param record Record to read from
+     * @return The string
+     */
+    private static String getString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getShort() & 0xFFFF];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Makes sure a buffer has room for more bytes, replacing it with a larger copy if it doesn't.
+     * @param buffer Buffer to check
+     * @param needed Number of bytes that need to fit
+     * @return The buffer, or a larger copy of it
+     */
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed) {
+            return buffer;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
@@ -1,19 +1,82 @@
 package org.jmeifert.camber.file;
 
 import org.jmeifert.camber.util.ChatMap;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Log records events without making the threads that log them wait on the console or disk. Each event is put in
+ * a slot of a fixed ring buffer, which allocates nothing, and a single drain thread formats the events and writes
+ * them out in batches: to the console, or to rotating files once a directory is set. If the buffer is full, the
+ * event is dropped and counted, and the drain thread reports how many were dropped.
+ * Messages may contain "{}" placeholders for details that are only turned into text on the drain thread, so
+ * callers should pass details that way rather than building the message themselves.
+ */
 public class Log {
     public static final int LOG_LEVEL = ChatMap.LOG_LEVEL;
+    private static final int LOG_BUFFER_SIZE = ChatMap.LOG_BUFFER_SIZE;
+    private static final int LOG_DRAIN_INTERVAL = ChatMap.LOG_DRAIN_INTERVAL;
+    private static final long LOG_FILE_SIZE = ChatMap.LOG_FILE_SIZE;
+    private static final int LOG_FILE_COUNT = ChatMap.LOG_FILE_COUNT;
+    private static final int MASK = LOG_BUFFER_SIZE - 1;
+    private static final String[] LABELS = {"[  OK  ] (", "[ WARN ] (", "[ERROR!] ("};
+    private static final String FILE_NAME = "camber";
+    private static final int MAX_BATCH_SIZE = 64 * 1024; // Batch size at which it is written out (chars)
+
+    // Ring buffer slots. Slot i holds event seq once published[i] == seq.
+    private static final int[] levels = new int[LOG_BUFFER_SIZE];
+    private static final int[] detailCounts = new int[LOG_BUFFER_SIZE];
+    private static final long[] times = new long[LOG_BUFFER_SIZE];
+    private static final String[] messages = new String[LOG_BUFFER_SIZE];
+    private static final Object[] firstDetails = new Object[LOG_BUFFER_SIZE];
+    private static final Object[] secondDetails = new Object[LOG_BUFFER_SIZE];
+    private static final AtomicLongArray published = new AtomicLongArray(LOG_BUFFER_SIZE);
+    private static final AtomicLong tail = new AtomicLong(0); // Next event to claim a slot for
+    private static volatile long head = 0; // Next event to drain, only advanced by the drain thread
+    private static final AtomicLong dropped = new AtomicLong(0);
+
+    // Only used by the drain thread, apart from setDirectory()
+    private static volatile Path directory = null; // Null to write to the console
+    private static Path openDirectory = null;
+    private static Writer writer = null;
+    private static long fileSize = 0;
+    private static long reportedDrops = 0;
+    private static long lastSecond = -1;
+    private static String lastDate = "";
+    private static final StringBuilder batch = new StringBuilder();
+
+    private static final Thread drainer;
+
+    static {
+        if (Integer.bitCount(LOG_BUFFER_SIZE) != 1) {
+            throw new RuntimeException("Log: Buffer size is not a power of two - You should NOT be seeing this error.");
+        }
+        for (int i = 0; i < LOG_BUFFER_SIZE; i++) {
+            published.set(i, -1);
+        }
+        drainer = new Thread(Log::drain, "Log-drain");
+        drainer.setDaemon(true);
+        drainer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "Log-flush"));
+    }
 
     /**
      * Logs an event. Default severity is 0 (OK).
      * @param message Message to log
      */
     public static void log(String message) {
-        if(LOG_LEVEL <= 0) {
-            System.out.println("[  OK  ] (" + new Date() + ") " + message);
-        }
+        append(message, null, null, 0, 0);
     }
 
     /**
@@ -22,13 +85,245 @@ public class Log {
      * @param level Event severity (0: OK, 1: WARN, 2: ERROR!)
      */
     public static void log(String message, int level) {
-        if (level < LOG_LEVEL) { return; }
-        if (level == 0) {
-            System.out.println("[  OK  ] (" + new Date() + ") " + message);
-        } else if (level == 1) {
-            System.out.println("[ WARN ] (" + new Date() + ") " + message);
-        } else {
-            System.out.println("[ERROR!] (" + new Date() + ") " + message);
+        append(message, null, null, 0, level);
+    }
+
+    /**
+     * Logs an event with a detail that is only turned into text if and when the event is written.
+     * @param message Message to log, with "{}" where the detail goes
+     * @param detail Detail to log
+     * @param level Event severity (0: OK, 1: WARN, 2: ERROR!)
+     */
+    public static void log(String message, Object detail, int level) {
+        append(message, detail, null, 1, level);
+    }
+
+    /**
+     * Logs an event with two details that are only turned into text if and when the event is written.
+     * @param message Message to log, with a "{}" where each detail goes, in order
+     * @param firstDetail First detail to log
+     * @param secondDetail Second detail to log
+     * @param level Event severity (0: OK, 1: WARN, 2: ERROR!)
+     */
+    public static void log(String message, Object firstDetail, Object secondDetail, int level) {
+        append(message, firstDetail, secondDetail, 2, level);
+    }
+
+    /**
+     * Puts an event in the next free slot of the buffer, or drops it if the buffer is full.
+     * @param message Message to log
+     * @param firstDetail First detail, or null
+     * @param secondDetail Second detail, or null
+     * @param detailCount Number of details given
+     * @param level Event severity
+     */
+    private static void append(String message, Object firstDetail, Object secondDetail, int detailCount,
+                               int level) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head >= LOG_BUFFER_SIZE) { // Full - the drain thread is behind
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+        int i = (int) seq & MASK;
+        levels[i] = level;
+        detailCounts[i] = detailCount;
+        times[i] = System.currentTimeMillis();
+        messages[i] = message;
+        firstDetails[i] = firstDetail;
+        secondDetails[i] = secondDetail;
+        published.set(i, seq); // Hands the slot to the drain thread
+        if (seq - head == LOG_BUFFER_SIZE / 2) { // Filling up - don't let the drain thread sleep through it
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    /**
+     * Checks whether events of a given severity are logged, so callers can skip building messages that would be
+     * thrown away.
+     * @param level Event severity (0: OK, 1: WARN, 2: ERROR!)
+     * @return True if events of this severity are logged
+     */
+    public static boolean isEnabled(int level) {
+        return level >= LOG_LEVEL;
+    }
+
+    /**
+     * Writes logged events to rotating files in a directory from now on, instead of to the console. The current
+     * file is named camber.log, and older ones camber.1.log, camber.2.log and so on.
+     * @param dir Directory to write log files to, or null to write to the console
+     * @throws IOException If the directory could not be created
+     */
+    public static void setDirectory(Path dir) throws IOException {
+        if (dir != null) {
+            Files.createDirectories(dir);
+        }
+        directory = dir;
+    }
+
+    /**
+     * @return Number of events dropped so far because the buffer was full
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits until every event logged before this call has been written, or until a drain interval has passed
+     * without any progress.
+     */
+    public static void flush() {
+        long target = tail.get();
+        long lastHead = -1;
+        while (head < target && lastHead != head) {
+            lastHead = head;
+            LockSupport.unpark(drainer);
+            LockSupport.parkNanos(LOG_DRAIN_INTERVAL * 1_000_000L);
+        }
+    }
+
+    /**
+     * Drains the buffer in batches, sleeping for a drain interval whenever it is empty. Runs on the drain thread.
+     */
+    private static void drain() {
+        while (true) {
+            long seq = head;
+            int i = (int) seq & MASK;
+            while (published.get(i) == seq && batch.length() < MAX_BATCH_SIZE) {
+                int lineStart = batch.length();
+                try {
+                    format(levels[i], times[i], messages[i], detailCounts[i], firstDetails[i], secondDetails[i]);
+                } catch (RuntimeException e) { // A detail that can't be turned into text must not stop the log
+                    batch.setLength(lineStart);
+                    format(2, times[i], "Log: Could not format event. - {}", 1, e, null);
+                }
+                messages[i] = null; // Don't keep the details alive until the slot is reused
+                firstDetails[i] = null;
+                secondDetails[i] = null;
+                head = ++seq; // Frees the slot
+                i = (int) seq & MASK;
+            }
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                format(1, System.currentTimeMillis(), "Log: Dropped {} events (buffer full).", 1,
+                        drops - reportedDrops, null);
+                reportedDrops = drops;
+            }
+            if (batch.length() > 0) {
+                write();
+            } else {
+                LockSupport.parkNanos(LOG_DRAIN_INTERVAL * 1_000_000L);
+            }
+        }
+    }
+
+    /**
+     * Formats an event and adds it to the batch being drained.
+     * @param level Event severity
+     * @param time Time of the event (ms since the epoch)
+     * @param message Message, with "{}" where each detail goes
+     * @param detailCount Number of details given
+     * @param firstDetail First detail, or null
+     * @param secondDetail Second detail, or null
+     */
+    private static void format(int level, long time, String message, int detailCount, Object firstDetail,
+                               Object secondDetail) {
+        if (time / 1000 != lastSecond) { // Events come in bursts, so most share the last event's second
+            lastSecond = time / 1000;
+            lastDate = new Date(time).toString();
+        }
+        batch.append(LABELS[Math.min(Math.max(level, 0), 2)]).append(lastDate).append(") ");
+        int from = 0;
+        int detail = 0;
+        int at;
+        while (detail < detailCount && (at = message.indexOf("{}", from)) >= 0) {
+            batch.append(message, from, at).append(detail == 0 ? firstDetail : secondDetail);
+            from = at + 2;
+            detail++;
+        }
+        batch.append(message, from, message.length()).append(System.lineSeparator());
+    }
+
+    /**
+     * Writes the drained batch to the console or the current log file, rotating the files if it is full.
+     */
+    private static void write() {
+        try {
+            if (directory != openDirectory) {
+                openFile();
+            }
+            if (writer == null) {
+                System.out.print(batch);
+                System.out.flush();
+            } else {
+                writer.append(batch);
+                writer.flush();
+                fileSize += batch.length();
+                if (fileSize >= LOG_FILE_SIZE) {
+                    rotate();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Log: Failed to write to log file, writing to the console instead. - " +
+                    e.getMessage());
+            System.out.print(batch);
+            closeFile();
+            directory = null;
+            openDirectory = null;
+        }
+        batch.setLength(0);
+    }
+
+    /**
+     * Opens the current log file in the directory set, appending to it if it exists.
+     * @throws IOException If the file could not be opened
+     */
+    private static void openFile() throws IOException {
+        closeFile();
+        openDirectory = directory;
+        if (openDirectory != null) {
+            Path file = openDirectory.resolve(FILE_NAME + ".log");
+            fileSize = Files.exists(file) ? Files.size(file) : 0;
+            writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND),
+                    StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Moves each log file one place back (dropping the oldest) and starts a new current file.
+     * @throws IOException If the files could not be moved or the new file could not be opened
+     */
+    private static void rotate() throws IOException {
+        closeFile();
+        Files.deleteIfExists(openDirectory.resolve(FILE_NAME + "." + (LOG_FILE_COUNT - 1) + ".log"));
+        for (int i = LOG_FILE_COUNT - 2; i >= 0; i--) {
+            Path older = openDirectory.resolve(i == 0 ? FILE_NAME + ".log" : FILE_NAME + "." + i + ".log");
+            if (Files.exists(older)) {
+                Files.move(older, openDirectory.resolve(FILE_NAME + "." + (i + 1) + ".log"),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        openDirectory = null;
+        openFile();
+    }
+
+    /**
+     * Closes the current log file, if one is open.
+     */
+    private static void closeFile() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                System.err.println("Log: Failed to close log file.");
+            }
+            writer = null;
         }
     }
 }
@@ -0,0 +1,332 @@
+package org.jmeifert.camber.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LogSegment is one segment file of a group's message log, memory-mapped for reading.
+ * It keeps a sparse index of the sequence number, time and offset of every INDEX_INTERVAL-th record, so reads can
+ * jump close to the records they want and never have to copy the rest of the segment onto the heap.
+ * Records are only ever added to the end of the newest segment, and everything before the end is never changed,
+ * so readers scan a mapping without holding any locks. The newest segment's file is preallocated, so it is mapped
+ * once at its full size and only the end of its records moves as they are added.
+ * Segments that did not need to be read at startup are only indexed once something reads from them.
+ */
+class LogSegment {
+    private static final int INDEX_INTERVAL = 64; // Records per index entry
+    static final int HEADER_SIZE = 8; // Record length and checksum
+    static final int SEQ_OFFSET = HEADER_SIZE; // Offsets of fields within a record
+    static final int TIME_OFFSET = HEADER_SIZE + 8;
+    static final int TOPIC_OFFSET = HEADER_SIZE + 16;
+    static final int MIN_RECORD_LENGTH = 8 + 8 + 2 + 2 + 4; // Record with an empty topic, user and body
+
+    private final Path path;
+    private final long firstSeq;
+
+    // Guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private MappedByteBuffer map = null;
+    private long length = 0; // Length of the complete records in the segment
+    private long[] indexSeqs = new long[16];
+    private long[] indexTimes = new long[16];
+    private long[] indexOffsets = new long[16];
+    private int indexSize = 0;
+    private int sinceIndexed = 0; // Records added since the last index entry
+    private boolean indexed = true; // False until a segment loaded without reading it has been indexed
+
+    /**
+     * Instantiates a LogSegment.
+     * @param path The segment's file
+     * @param firstSeq Sequence number of the first record the segment holds
+     */
+    LogSegment(Path path, long firstSeq) {
+        this.path = path;
+        this.firstSeq = firstSeq;
+    }
+
+    /**
+     * Instantiates a LogSegment for a complete segment that has not been read, to be indexed when it is first used.
+     * @param path The segment's file
+     * @param firstSeq Sequence number of the first record the segment holds
+     * @param length Length of the segment
+     */
+    LogSegment(Path path, long firstSeq, long length) {
+        this.path = path;
+        this.firstSeq = firstSeq;
+        this.length = length;
+        this.indexed = false;
+    }
+
+    /**
+     * Records that a record has been written to the end of the segment.
+     * @param seq The record's sequence number
+     * @param time The record's time (ms since the epoch)
+     * @param offset Offset of the record in the segment
+     * @param recordLength Length of the record, including its header
+     */
+    void add(long seq, long time, long offset, int recordLength) {
+        lock.lock();
+        try {
+            index(seq, time, offset, recordLength);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a record to the index. Caller must hold the lock.
+     * @param seq The record's sequence number
+     * @param time The record's time (ms since the epoch)
+     * @param offset Offset of the record in the segment
+     * @param recordLength Length of the record, including its header
+     */
+    private void index(long seq, long time, long offset, int recordLength) {
+        if (sinceIndexed == 0) {
+            if (indexSize == indexSeqs.length) {
+                indexSeqs = Arrays.copyOf(indexSeqs, indexSize * 2);
+                indexTimes = Arrays.copyOf(indexTimes, indexSize * 2);
+                indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+            }
+            indexSeqs[indexSize] = seq;
+            indexTimes[indexSize] = time;
+            indexOffsets[indexSize] = offset;
+            indexSize++;
+        }
+        sinceIndexed = (sinceIndexed + 1) % INDEX_INTERVAL;
+        length = offset + recordLength;
+    }
+
+    /**
+     * Indexes a segment that was loaded without being read. Indexing stops at preallocated space after the last
+     * record, or at the first record whose length does not fit in the segment, which is then treated as the end.
+     * Caller must hold the lock.
+     * @throws IOException If the segment could not be mapped
+     */
+    private void ensureIndexed() throws IOException {
+        if (indexed) {
+            return;
+        }
+        ByteBuffer data = view();
+        int end = data.limit();
+        length = 0;
+        int p = 0;
+        while (end - p >= HEADER_SIZE) {
+            int recordLength = data.getInt(p);
+            if (recordLength == 0) { // Preallocated space after the last record
+                break;
+            }
+            if (recordLength < MIN_RECORD_LENGTH || recordLength > end - p - HEADER_SIZE) {
+                Log.log("LogSegment: Ignoring damaged records after offset {} in {}.", p, path, 1);
+                break;
+            }
+            index(data.getLong(p + SEQ_OFFSET), data.getLong(p + TIME_OFFSET), p, HEADER_SIZE + recordLength);
+            p += HEADER_SIZE + recordLength;
+        }
+        indexed = true;
+    }
+
+    /**
+     * Maps the segment's complete records. The whole file is mapped, preallocated space included, so the newest
+     * segment is only mapped again if its records outgrow the space preallocated for them. Caller must hold the
+     * lock.
+     * @return Read-only view of the complete records
+     * @throws IOException If the segment could not be mapped
+     */
+    private ByteBuffer view() throws IOException {
+        if (map == null || map.capacity() < length) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // Stays valid after closing
+            }
+        }
+        ByteBuffer view = map.asReadOnlyBuffer();
+        view.limit((int) length);
+        return view;
+    }
+
+    /**
+     * Finds the newest records in a topic older than a sequence number, stopping at the oldest record still
+     * retained. Records are returned as views into the mapped segment, not copies.
+     * @param topic The topic's name (UTF-8)
+     * @param beforeSeq Only find records with a lower sequence number than this
+     * @param fromSeq Only find records with this sequence number or a higher one
+     * @param fromTime Only find records sent at or after this time (ms since the epoch)
+     * @param max Max number of records to find
+     * @param found List to add the records to, newest first
+     * @return True if the search reached a record older than fromSeq or fromTime, so older segments need not be
+     *         searched
+     * @throws IOException If the segment could not be mapped
+     */
+    boolean findBefore(byte[] topic, long beforeSeq, long fromSeq, long fromTime, int max, List<ByteBuffer> found)
+            throws IOException {
+        ByteBuffer data;
+        long[] seqs;
+        long[] times;
+        long[] offsets;
+        int entries;
+        lock.lock();
+        try { // Take a consistent snapshot, then scan without the lock
+            if (firstSeq >= beforeSeq) {
+                return false;
+            }
+            ensureIndexed();
+            if (indexSize == 0) {
+                return false;
+            }
+            data = view();
+            seqs = indexSeqs;
+            times = indexTimes;
+            offsets = indexOffsets;
+            entries = indexSize;
+        } finally {
+            lock.unlock();
+        }
+        int block = search(seqs, entries, beforeSeq);
+        ArrayList<ByteBuffer> inBlock = new ArrayList<>();
+        for (; block >= 0 && found.size() < max; block--) { // Newest block first
+            int start = (int) offsets[block];
+            int end = block + 1 < entries ? (int) offsets[block + 1] : data.limit();
+            inBlock.clear();
+            for (int p = start; p < end; p += HEADER_SIZE + data.getInt(p)) {
+                long seq = data.getLong(p + SEQ_OFFSET);
+                if (seq < beforeSeq && seq >= fromSeq && data.getLong(p + TIME_OFFSET) >= fromTime &&
+                        topicEquals(data, p, topic)) {
+                    ByteBuffer record = data.duplicate();
+                    record.position(p).limit(p + HEADER_SIZE + data.getInt(p));
+                    inBlock.add(record.slice());
+                }
+            }
+            for (int i = inBlock.size() - 1; i >= 0 && found.size() < max; i--) {
+                found.add(inBlock.get(i));
+            }
+            if (seqs[block] < fromSeq || times[block] < fromTime) { // Everything older is no longer retained
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether every record in the segment passes a filter, stopping at the first one that doesn't.
+     * @param filter Filter to check the records against
+     * @return True if every record passes
+     * @throws IOException If the segment could not be mapped
+     */
+    boolean allMatch(GroupStore.RecordFilter filter) throws IOException {
+        ByteBuffer data;
+        lock.lock();
+        try {
+            ensureIndexed();
+            data = view();
+        } finally {
+            lock.unlock();
+        }
+        for (int p = 0; p < data.limit(); p += HEADER_SIZE + data.getInt(p)) {
+            int topicLength = data.getShort(p + TOPIC_OFFSET) & 0xFFFF;
+            byte[] topic = new byte[topicLength];
+            ByteBuffer topicView = data.duplicate();
+            topicView.position(p + TOPIC_OFFSET + 2);
+            topicView.get(topic);
+            if (!filter.test(data.getLong(p + SEQ_OFFSET), data.getLong(p + TIME_OFFSET),
+                    new String(topic, StandardCharsets.UTF_8))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the sequence number of the last record sent at or before a given time. The index narrows it down to one
+     * block of records, which is then scanned.
+     * @param time Time to look for (ms since the epoch)
+     * @return Sequence number of the last record no later than the time, or -1 if the segment starts after it
+     * @throws IOException If the segment could not be mapped
+     */
+    long seqAtTime(long time) throws IOException {
+        ByteBuffer data;
+        int start;
+        int end;
+        lock.lock();
+        try {
+            ensureIndexed();
+            int block = search(indexTimes, indexSize, time + 1);
+            if (block < 0) {
+                return -1;
+            }
+            data = view();
+            start = (int) indexOffsets[block];
+            end = block + 1 < indexSize ? (int) indexOffsets[block + 1] : data.limit();
+        } finally {
+            lock.unlock();
+        }
+        long seq = -1;
+        for (int p = start; p < end && data.getLong(p + TIME_OFFSET) <= time; p += HEADER_SIZE + data.getInt(p)) {
+            seq = data.getLong(p + SEQ_OFFSET);
+        }
+        return seq;
+    }
+
+    /**
+     * Finds the last index entry lower than a value.
+     * @param values Index values, in ascending order
+     * @param size Number of index entries
+     * @param before Value to search below
+     * @return Position of the entry, or -1 if there is none
+     */
+    private static int search(long[] values, int size, long before) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < before) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Checks a record's topic without copying it.
+     * @param data Mapped records
+     * @param record Offset of the record
+     * @param topic Topic to compare against (UTF-8)
+     * @return True if the record is in the topic
+     */
+    private static boolean topicEquals(ByteBuffer data, int record, byte[] topic) {
+        int length = data.getShort(record + TOPIC_OFFSET) & 0xFFFF;
+        if (length != topic.length) {
+            return false;
+        }
+        int start = record + TOPIC_OFFSET + 2;
+        for (int i = 0; i < length; i++) {
+            if (data.get(start + i) != topic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Sequence number of the first record the segment holds
+     */
+    long getFirstSeq() {
+        return firstSeq;
+    }
+
+    /**
+     * @return The segment's file
+     */
+    Path getPath() {
+        return path;
+    }
+}
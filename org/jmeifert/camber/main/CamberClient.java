@@ -95,18 +95,35 @@ public class CamberClient {
 
         // Connected - Main Menu
         showMessages(c);
+        if(!c.subscribe(System.out::println)) { // New messages are printed as they arrive
+            System.out.println("-- Failed to subscribe to new messages. Press ENTER to refresh them.");
+        }
         while(true) {
             System.out.println("Enter your message below. (Type '/help' for help)");
             userMessage = scanner.nextLine();
             if(userMessage.equals("/help")) {
                 System.out.println("-- Help:\n" +
+                        "-- New messages in the active topic are shown as they arrive.\n" +
                         "-- Press ENTER at the message prompt to refresh recent messages.\n" +
+                        "-- '/h' - Show older messages from the active topic. (Repeat to go further back)\n" +
+                        "-- '/s' - Search recent messages. (Will prompt you for words, \"phrases\" and\n" +
+                        "--        filters such as topic:name, user:name or since:2h)\n" +
                         "-- '/lm' - List messages from all topics.\n" +
                         "-- '/lt' - List active topics.\n" +
                         "-- '/st' - Set active topic. (Will prompt you for it)\n" +
                         "-- '/quit' - Disconnect from the server and exit the program.\n");
             } else if(userMessage.equals("")) { // Refresh messages
                 showMessages(c);
+            } else if(userMessage.equals("/h")) { // Page back through older messages
+                System.out.println("-- Showing older messages:");
+                System.out.println(c.getOlderMessages());
+                System.out.println("-- Older messages displayed above.");
+            } else if(userMessage.equals("/s")) { // Search recent messages
+                System.out.println("-- Enter search: ");
+                userOption = scanner.nextLine();
+                System.out.println("-- Search results:");
+                System.out.println(c.search(userOption));
+                System.out.println("-- Search results displayed above.");
             } else if(userMessage.equals("/lm")) { // Get messages from all topics
                 showAllMessages(c);
             }  else if(userMessage.equals("/lt")) { // List active topics
@@ -130,9 +147,8 @@ public class CamberClient {
                 }
                 System.out.println("-- Disconnected.");
                 return;
-            } else { // Send message
+            } else { // Send message (it comes back to us as a pushed message)
                 c.sendMessage(userMessage);
-                showMessages(c);
             }
         }
     }
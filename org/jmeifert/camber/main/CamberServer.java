@@ -1,10 +1,18 @@
 package org.jmeifert.camber.main;
 
+import org.jmeifert.camber.data.Group;
+import org.jmeifert.camber.data.RetentionPolicy;
+import org.jmeifert.camber.data.ServerData;
+import org.jmeifert.camber.file.Log;
 import org.jmeifert.camber.net.Server;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 /**
  * The server for Camber. Usage: java -jar camberserver.jar [port: optional, int]
+ * [mode: optional, threaded|selector|virtual] [data directory: optional, path]
  */
 public class CamberServer {
     public static final String SPLASH_MESSAGE = "" +
@@ -15,16 +23,40 @@ public class CamberServer {
             "| https://github.com/lavajuno/camber     |\n" +
             "x----------------------------------------x\n";
     public static final int DEFAULT_PORT = 7450;
+    public static final String HELP_MESSAGE = "" +
+            "-- Commands:\n" +
+            "-- 'lg' - List groups\n" +
+            "-- 'cg [name] [password]' - Create group\n" +
+            "-- 'ct [name] [password]' - Create temporary group (closed when idle)\n" +
+            "-- 'rg [name]' - Remove group\n" +
+            "-- 'rp [group] [messages] [age (s)] [size (bytes)] [topic: optional]' - Set retention policy\n" +
+            "--     of a group, or of one of its topics (0 for no limit)\n" +
+            "-- 't' - Terminate\n";
+    public static final String USAGE = "Usage: java -jar camberserver.jar [port: optional, int] " +
+            "[mode: optional, threaded|selector|virtual] [data directory: optional, path]";
 
     public static void main(String[] args) {
         int port = DEFAULT_PORT;
+        Server.Modes mode = Server.Modes.threaded;
+        Path dataDir = null;
 
         // Handle args
-        if(args.length > 1) {
-            System.out.println("Usage: java -jar camberserver.jar [port: optional, int]");
+        if(args.length > 3) {
+            System.out.println(USAGE);
             return;
         }
-        if(args.length == 1) {
+        if(args.length == 3) {
+            dataDir = Paths.get(args[2]);
+        }
+        if(args.length >= 2) {
+            try {
+                mode = Server.Modes.valueOf(args[1]);
+            } catch(IllegalArgumentException e) {
+                System.out.println(USAGE);
+                return;
+            }
+        }
+        if(args.length >= 1) {
             try {
                 port = Integer.parseInt(args[0]);
                 if(port <= 1024) {
@@ -32,7 +64,7 @@ public class CamberServer {
                     return;
                 }
             } catch(NumberFormatException e) {
-                System.out.println("Usage: java -jar camberserver.jar [port: optional, int]");
+                System.out.println(USAGE);
                 return;
             }
         }
@@ -40,16 +72,67 @@ public class CamberServer {
         // Splash
         System.out.println(SPLASH_MESSAGE);
 
+        // Write logs next to the saved data rather than to the console
+        if(dataDir != null) {
+            try {
+                Log.setDirectory(dataDir.resolve("logs"));
+            } catch(IOException e) {
+                System.out.println("CamberServer: Could not create log directory, logging to the console.");
+            }
+        }
+
         // Start server
         Scanner scanner = new Scanner(System.in);
         String userInput;
-        Server sm = new Server(port);
+        Server sm = new Server(port, mode, dataDir);
         sm.start();
-        System.out.println("-- Server started on port " + port + ".");
-        System.out.println("-- Input 't' to terminate.");
+        System.out.println("-- Server started on port " + port + " (" + mode + " mode).");
+        if(dataDir != null) {
+            System.out.println("-- Saving groups and messages to " + dataDir + ".");
+            System.out.println("-- Writing logs to " + dataDir.resolve("logs") + ".");
+        }
+        System.out.println("-- Input 'h' for help, or 't' to terminate.");
+        ServerData serverData = sm.getServerData();
         while(true) {
             userInput = scanner.nextLine();
-            if(userInput.equals("t")) {
+            String[] command = userInput.trim().split(" +");
+            if(userInput.equals("h")) {
+                System.out.print(HELP_MESSAGE);
+            } else if(command[0].equals("lg") && command.length == 1) {
+                for(Group i : serverData.getGroups()) {
+                    System.out.println("-- '" + i.getName() + "' (" + i.getMemberCount() + " connected, " +
+                            i.getCachedBytes() / 1024 + " KiB cached)");
+                }
+            } else if((command[0].equals("cg") || command[0].equals("ct")) && command.length == 3) {
+                try {
+                    serverData.createGroup(command[1], command[2], command[0].equals("ct"));
+                    System.out.println("-- Created group '" + command[1] + "'.");
+                } catch(IllegalArgumentException e) {
+                    System.out.println("-- Could not create group (invalid or taken name, or invalid password).");
+                }
+            } else if(command[0].equals("rg") && command.length == 2) {
+                if(serverData.removeGroup(command[1])) {
+                    System.out.println("-- Removed group '" + command[1] + "'.");
+                } else {
+                    System.out.println("-- No such group.");
+                }
+            } else if(command[0].equals("rp") && command.length >= 5) {
+                Group group = serverData.getGroup(command[1]);
+                if(group == null) {
+                    System.out.println("-- No such group.");
+                    continue;
+                }
+                try {
+                    RetentionPolicy policy = new RetentionPolicy(Integer.parseInt(command[2]),
+                            Long.parseLong(command[3]) * 1000, Long.parseLong(command[4]));
+                    String topic = command.length > 5 ? userInput.trim().split(" +", 6)[5] : null;
+                    group.setRetention(topic, policy);
+                    System.out.println("-- Set retention policy of " +
+                            (topic == null ? "group '" + command[1] + "'." : "topic '" + topic + "'."));
+                } catch(IllegalArgumentException e) {
+                    System.out.println("-- Invalid retention policy.");
+                }
+            } else if(userInput.equals("t")) {
                 System.out.println("-- Shutting down server...");
                 sm.interrupt();
                 sm.close();
@@ -1,6 +1,7 @@
 package org.jmeifert.camber.main;
 
 import org.jmeifert.camber.net.Client;
+import org.jmeifert.camber.security.KeyPairPool;
 
 import java.util.Scanner;
 import java.util.Vector;
@@ -28,11 +29,18 @@ public class CamberStressTester {
         cmdstep = Integer.parseInt(scanner.nextLine());
         System.out.println("Iterations:");
         maxiters = Integer.parseInt(scanner.nextLine());
+        System.out.println("Key exchange (x25519/rsa):");
+        Client.KeyExchanges keyExchange = Client.KeyExchanges.valueOf(scanner.nextLine().trim());
+        if(keyExchange == Client.KeyExchanges.rsa) { // Generate key pairs while earlier clients connect
+            KeyPairPool.getShared().setDepth(nclients, nclients / 2);
+            KeyPairPool.getShared().prefill();
+        }
 
         System.out.println("Creating clients...");
         for(int i = 0; i < nclients; i++) {
             cs.add(new Client(DEFAULT_HOSTNAME, DEFAULT_PORT, DEFAULT_GROUP,
                     DEFAULT_PASSWORD, DEFAULT_NICKNAME + i));
+            cs.get(i).setKeyExchange(keyExchange);
             cs.get(i).open();
             Thread.sleep(cmdstep);
         }
@@ -0,0 +1,156 @@
+package org.jmeifert.camber.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * BinaryCodec is a compact, length-prefixed wire protocol. Each frame is a type byte, the correlation ID and the
+ * body's length as unsigned varints, and then the body itself. Connections switch to it after negotiating it in
+ * the handshake.
+ */
+class BinaryCodec implements Codec {
+    public static final int VERSION = 11;
+    // Handshake body offering (and accepting) this codec
+    public static final String HANDSHAKE_FLAG = "camber-binary/" + VERSION;
+    // Packed fields in a handshake (or response) that also carries an X25519 public key: this flag and the key
+    public static final int HANDSHAKE_FIELDS = 2;
+    // Largest body we are willing to read (bytes)
+    public static final int MAX_BODY_LENGTH = 16 * 1024 * 1024;
+
+    private static final Request.Types[] TYPES = Request.Types.values();
+    private static final byte[] EMPTY = new byte[0];
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final byte[] header = new byte[11]; // Type byte + two varints of up to 5 bytes
+
+    /**
+     * Instantiates a BinaryCodec. Both streams should be buffered.
+     * @param in Stream to read frames from
+     * @param out Stream to write frames to
+     */
+    BinaryCodec(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    @Override
+    public Request read() throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            throw new EOFException("BinaryCodec: Connection closed.");
+        }
+        if (type >= TYPES.length) {
+            throw new IOException("BinaryCodec: Unknown request type " + type + ".");
+        }
+        int id = readVarint();
+        int length = readVarint();
+        if (length > MAX_BODY_LENGTH) {
+            throw new IOException("BinaryCodec: Body too long (" + length + " bytes).");
+        }
+        byte[] body = EMPTY;
+        if (length > 0) {
+            body = new byte[length];
+            readFully(body);
+        }
+        Request request = new Request(TYPES[type], body);
+        request.setId(id);
+        return request;
+    }
+
+    @Override
+    public boolean hasRequest(ByteBuffer received) {
+        int p = received.position();
+        if (p >= received.limit()) {
+            return false;
+        }
+        p++; // Type byte
+        long value = 0;
+        for (int field = 0; field < 2; field++) { // Correlation ID, then the body's length
+            value = 0;
+            int b;
+            int shift = 0;
+            do {
+                if (shift > 28) { // Malformed, the read will say so
+                    return true;
+                }
+                if (p >= received.limit()) {
+                    return false;
+                }
+                b = received.get(p++);
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+        }
+        return value > MAX_BODY_LENGTH || received.limit() - p >= value;
+    }
+
+    @Override
+    public void write(Request request) throws IOException {
+        byte[] body = request.getBytes();
+        header[0] = (byte) request.getType().ordinal();
+        int n = writeVarint(header, 1, request.getId());
+        n = writeVarint(header, n, body.length);
+        out.write(header, 0, n);
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * Reads an unsigned varint (7 bits per byte, least significant group first).
+     * @return The value read
+     * @throws IOException If the stream ends or the varint is too long
+     */
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("BinaryCodec: Connection closed mid-frame.");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new IOException("BinaryCodec: Malformed length.");
+    }
+
+    /**
+     * Writes an unsigned varint into a buffer.
+     * @param buffer Buffer to write into
+     * @param offset Position to start writing at
+     * @param value Value to write
+     * @return Position after the last byte written
+     */
+    static int writeVarint(byte[] buffer, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Fills the given array from the stream.
+     * @param b Array to fill
+     * @throws IOException If the stream ends first
+     */
+    private void readFully(byte[] b) throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            int n = in.read(b, off, b.length - off);
+            if (n < 0) {
+                throw new EOFException("BinaryCodec: Connection closed mid-frame.");
+            }
+            off += n;
+        }
+    }
+}
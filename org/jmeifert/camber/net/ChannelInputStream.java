@@ -0,0 +1,157 @@
+package org.jmeifert.camber.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * ChannelInputStream is a buffered InputStream over a non-blocking SocketChannel. The event loop collects what the
+ * client sends with receive() until a whole request is buffered, so blocking stream code can then read it without
+ * waiting. Reads that still find no data buffered wait for the channel to become readable.
+ */
+class ChannelInputStream extends InputStream {
+    private static final int BUFFER_SIZE = 8192;
+    // Most received bytes buffered at once, enough for the longest request (bytes)
+    private static final int MAX_BUFFER_SIZE = BinaryCodec.MAX_BODY_LENGTH + BUFFER_SIZE;
+    private static final ThreadLocal<Selector> WAIT_SELECTORS = ThreadLocal.withInitial(() -> {
+        try {
+            return Selector.open();
+        } catch (IOException e) {
+            throw new RuntimeException("ChannelInputStream: Failed to open selector.");
+        }
+    });
+
+    private final SocketChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final int timeout;
+
+    /**
+     * Instantiates a ChannelInputStream.
+     * @param channel Non-blocking channel to read from
+     * @param timeout Max time to wait for data once a read has started (ms)
+     */
+    ChannelInputStream(SocketChannel channel, int timeout) {
+        this.channel = channel;
+        this.timeout = timeout;
+        buffer.flip(); // Start out empty
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!buffer.hasRemaining() && fill() < 0) {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining() && fill() < 0) {
+            return -1;
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    /**
+     * @return Number of bytes that have already been received and can be read without waiting
+     */
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    /**
+     * Buffers whatever the channel has received so far, without waiting for more. The buffer grows as needed to hold
+     * a request that has only partly arrived, and shrinks back once it is empty.
+     * @return Number of bytes read, or -1 at end of stream
+     * @throws IOException If reading fails, or the client has sent more than MAX_BUFFER_SIZE bytes without them
+     *          being read
+     */
+    int receive() throws IOException {
+        if (!buffer.hasRemaining() && buffer.capacity() > BUFFER_SIZE) { // Shrink back once a long request is read
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        } else {
+            buffer.compact();
+        }
+        try {
+            int total = 0;
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    if (buffer.capacity() >= MAX_BUFFER_SIZE) {
+                        throw new IOException("ChannelInputStream: Request too long.");
+                    }
+                    ByteBuffer grown = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_BUFFER_SIZE));
+                    buffer.flip();
+                    buffer = grown.put(buffer);
+                }
+                int n = channel.read(buffer);
+                if (n < 0) {
+                    return total > 0 ? total : -1;
+                } else if (n == 0) {
+                    return total;
+                }
+                total += n;
+            }
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * @return The bytes received but not read yet, from position to limit (must not be changed)
+     */
+    ByteBuffer received() {
+        return buffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Refills the buffer, waiting for data if none is available yet. The buffer only runs out if the event loop handed
+     * over a request that had not all arrived.
+     * @return Number of bytes read, or -1 at end of stream
+     * @throws IOException If reading fails or times out
+     */
+    private int fill() throws IOException {
+        buffer.clear();
+        int n = channel.read(buffer);
+        while (n == 0) {
+            await(channel, SelectionKey.OP_READ, timeout);
+            n = channel.read(buffer);
+        }
+        buffer.flip();
+        return n;
+    }
+
+    /**
+     * Waits for a non-blocking channel to become ready for the given operation on the calling thread.
+     * @param channel Channel to wait on
+     * @param ops Operation(s) to wait for
+     * @param timeout Max time to wait (ms)
+     * @throws IOException If the channel does not become ready in time
+     */
+    static void await(SocketChannel channel, int ops, int timeout) throws IOException {
+        Selector selector = WAIT_SELECTORS.get();
+        SelectionKey key = channel.register(selector, ops);
+        try {
+            if (selector.select(timeout) == 0) {
+                throw new SocketTimeoutException("Timed out waiting for channel.");
+            }
+        } finally {
+            key.cancel();
+            selector.selectNow(); // Deregister the channel
+        }
+    }
+}
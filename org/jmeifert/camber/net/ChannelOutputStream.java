@@ -0,0 +1,74 @@
+package org.jmeifert.camber.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * ChannelOutputStream is a buffered OutputStream over a non-blocking SocketChannel. Flushing waits for the
+ * channel to become writable whenever the socket's send buffer is full.
+ */
+class ChannelOutputStream extends OutputStream {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final SocketChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final int timeout;
+
+    /**
+     * Instantiates a ChannelOutputStream.
+     * @param channel Non-blocking channel to write to
+     * @param timeout Max time to wait for the channel to become writable (ms)
+     */
+    ChannelOutputStream(SocketChannel channel, int timeout) {
+        this.channel = channel;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Writes everything in the buffer to the channel.
+     * @throws IOException If writing fails or times out
+     */
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                ChannelInputStream.await(channel, SelectionKey.OP_WRITE, timeout);
+            }
+        }
+        buffer.clear();
+    }
+}
@@ -2,19 +2,45 @@ package org.jmeifert.camber.net;
 
 import org.jmeifert.camber.file.Log;
 import org.jmeifert.camber.security.AESSuite;
+import org.jmeifert.camber.security.ECDHSuite;
+import org.jmeifert.camber.security.KeyPairPool;
 import org.jmeifert.camber.security.RSASuite;
 import org.jmeifert.camber.security.SHAutil;
+import org.jmeifert.camber.security.TicketSuite;
+import org.jmeifert.camber.util.ChatMap;
 import org.jmeifert.camber.util.Format;
+import org.jmeifert.camber.util.Packing;
 import java.io.*;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * Client handles the client side of the connection and provides functions for basic application features such as
  * sending and getting messages, switching and getting topics, and closing the connection.
+ * Each feature has an asynchronous variant, and any number of requests can be in flight on the connection at once.
+ * A background reader thread completes them in order.
  */
 public class Client {
+    final int RESUME_RANDOM_SIZE = ChatMap.RESUME_RANDOM_SIZE;
+
+    public enum KeyExchanges {
+        x25519,                 // Agree on the session key with X25519, along with the handshake (fast)
+        rsa,                    // Have the server send the session key under a new RSA key pair (slow)
+    }
+
     boolean open = false;
     Socket socket;
     String hostname;
@@ -23,13 +49,47 @@ public class Client {
     String hashedGroupPassword;
     String nickname;
     int port;
-    ObjectInputStream inFromServer;
-    ObjectOutputStream outToServer;
-    Request clientReq;
-    Request serverReq;
+    Codec codec;
+    KeyExchanges keyExchange = KeyExchanges.x25519;
     RSASuite rsaSuite;
     AESSuite aesSuite;
-    String srBody;
+    volatile long lastSeq = 0;
+    volatile long historySeq = 0; // Oldest message paged back to by getHistory() (0: none yet, 1: no more)
+    Thread reader;
+    volatile Consumer<String> pushListener;
+    // Requests sent but not yet answered, oldest first. The server answers in order.
+    final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>();
+    // Held while assigning a request its ID, queueing it as pending and writing it
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private int nextId = 1;
+    private IOException lost; // Set once the connection is lost, guarded by sendLock
+    private volatile Ticket ticket; // Resumption ticket for the last session (null: none)
+    private boolean binary = false; // True if the last session used the binary protocol
+
+    /**
+     * A resumption ticket, and the session key it was issued for.
+     */
+    private static class Ticket {
+        final byte[] ticket;
+        final byte[] key;
+
+        Ticket(byte[] ticket, byte[] key) {
+            this.ticket = ticket;
+            this.key = key;
+        }
+    }
+
+    /**
+     * A request waiting for the server's response.
+     */
+    private static class Pending {
+        final int id;
+        final CompletableFuture<Request> response = new CompletableFuture<>();
+
+        Pending(int id) {
+            this.id = id;
+        }
+    }
 
     /**
      * Instantiates a Client.
@@ -61,106 +121,93 @@ public class Client {
         this.hashedGroupPassword = SHAutil.getHash(groupPassword);
     }
 
+    /**
+     * Sets how the session key is set up when the connection is opened. X25519 is used by default. RSA key pairs
+     * are taken from the shared KeyPairPool.
+     * @param keyExchange Key exchange to use
+     */
+    public void setKeyExchange(KeyExchanges keyExchange) {
+        this.keyExchange = keyExchange;
+    }
+
     /**
      * Opens a connection to the server.
      * @throws IOException Throws an IOException if opening the connection fails.
      */
     public void open() throws IOException {
+        Request clientReq;
+        Request serverReq;
         try {
+            stopReader(); // The last connection's reader must not read from this one
+
             // Set up socket
-            Log.log("Opening connection to " + hostname + "...");
+            Log.log("Opening connection to {}...", hostname, 0);
             socket = new Socket(hostname, port);
-            inFromServer = new ObjectInputStream(socket.getInputStream());
-            outToServer = new ObjectOutputStream(socket.getOutputStream());
-            rsaSuite = new RSASuite();
-
-            // Step 1 - Handshake
-            clientReq = new Request(Request.Types.handshake);
-            outToServer.writeObject(clientReq);
-            outToServer.flush();
-            serverReq = (Request) inFromServer.readObject();
-            if (serverReq.getType() == Request.Types.handshakeResponse) {
-                Log.log("Handshake completed.");
-            } else if (serverReq.getType() == Request.Types.sequenceError) {
-                System.err.println("Connection establishment error - Sequence (Handshake).");
-                throw new IOException("Connection establishment error - Sequence (Handshake).");
-            } else {
-                System.err.println("Connection establishment error - Unexpected response.");
-                throw new IOException("Connection establishment error - Unexpected response.");
-            }
+            socket.setTcpNoDelay(true); // Requests are flushed whole, don't hold them back for ACKs
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            codec = new ObjectCodec(in, out);
 
-            // Step 2 - Encryption
-            clientReq = new Request(Request.Types.clientKey, rsaSuite.getPublicKey());
-            outToServer.writeObject(clientReq);
-            outToServer.flush();
-            serverReq = (Request) inFromServer.readObject();
-            if (serverReq.getType() == Request.Types.serverKey) {
-                aesSuite = new AESSuite(rsaSuite.decryptBytes(serverReq.getBytes()));
-                Log.log("Encryption setup completed.");
-            } else if (serverReq.getType() == Request.Types.sequenceError) {
-                System.err.println("Connection establishment error - Sequence (Encryption).");
-                throw new IOException("Connection establishment error - Sequence (Encryption).");
+            // Step 1 - Handshake (offering the binary protocol, and our X25519 key if setting up a new session)
+            Ticket resumeWith = ticket;
+            ECDHSuite ecdhSuite = null;
+            if (resumeWith == null && keyExchange == KeyExchanges.x25519) {
+                ecdhSuite = new ECDHSuite();
+                clientReq = new Request(Request.Types.handshake, Packing.pack(List.of(BinaryCodec.HANDSHAKE_FLAG,
+                        Base64.getEncoder().encodeToString(ecdhSuite.getPublicKey()))));
             } else {
-                System.err.println("Connection establishment error - Unexpected response.");
-                throw new IOException("Connection establishment error - Unexpected response.");
+                clientReq = new Request(Request.Types.handshake, BinaryCodec.HANDSHAKE_FLAG);
             }
-
-            // Step 3 - Group
-            clientReq = new Request(Request.Types.setGroup, aesSuite.encryptString(group));
-            outToServer.writeObject(clientReq);
-            outToServer.flush();
-            serverReq = (Request) inFromServer.readObject();
-            if (serverReq.getType() == Request.Types.groupConfirm) {
-                Log.log("Group setup completed.");
-            } else if (serverReq.getType() == Request.Types.groupError) {
-                System.err.println("Connection establishment error - Group not found.");
-                throw new IOException("Connection establishment error - Group not found.");
-            } else if (serverReq.getType() == Request.Types.sequenceError) {
-                System.err.println("Connection establishment error - Sequence (Group).");
-                throw new IOException("Connection establishment error - Sequence (Group).");
-            } else {
-                System.err.println("Connection establishment error - Unexpected response.");
-                throw new IOException("Connection establishment error - Unexpected response.");
+            codec.write(clientReq);
+            byte[] clientRandom = null;
+            Codec binaryCodec = new BinaryCodec(in, out);
+            if (resumeWith != null && binary) { // Send the ticket along with the handshake, saving a round trip
+                clientRandom = newRandom();
+                binaryCodec.write(resumeRequest(resumeWith, clientRandom));
             }
-
-            // Step 4 - Group Password
-            clientReq = new Request(Request.Types.setPassword, aesSuite.encryptString(hashedGroupPassword));
-            outToServer.writeObject(clientReq);
-            outToServer.flush();
-            serverReq = (Request) inFromServer.readObject();
-            if (serverReq.getType() == Request.Types.passwordConfirm) {
-                Log.log("Credentials setup completed.");
-            } else if (serverReq.getType() == Request.Types.passwordError) {
-                System.err.println("Connection establishment error - Invalid password.");
-                throw new IOException("Connection establishment error - Invalid password.");
+            serverReq = receive();
+            byte[] serverKey = null;
+            if (serverReq.getType() == Request.Types.handshakeResponse) {
+                String accepted = serverReq.getString();
+                if (ecdhSuite != null && !accepted.equals(BinaryCodec.HANDSHAKE_FLAG)) {
+                    List<String> response = unpackHandshake(serverReq.getBytes());
+                    if (response != null) { // Server set up the session key along with the handshake
+                        accepted = response.get(0);
+                        serverKey = Base64.getDecoder().decode(response.get(1));
+                    }
+                }
+                binary = accepted.equals(BinaryCodec.HANDSHAKE_FLAG);
+                if (binary) { // Server accepted
+                    codec = binaryCodec;
+                } else if (clientRandom != null) { // Server can't read the ticket we sent, so start over without it
+                    Log.log("Server no longer offers the binary protocol, reconnecting.", 1);
+                    ticket = null;
+                    socket.close();
+                    open();
+                    return;
+                }
+                Log.log("Handshake completed.");
             } else if (serverReq.getType() == Request.Types.sequenceError) {
-                System.err.println("Connection establishment error - Sequence (Group Password).");
-                throw new IOException("Connection establishment error - Sequence (Group Password).");
+                System.err.println("Connection establishment error - Sequence (Handshake).");
+                throw new IOException("Connection establishment error - Sequence (Handshake).");
             } else {
                 System.err.println("Connection establishment error - Unexpected response.");
                 throw new IOException("Connection establishment error - Unexpected response.");
             }
 
-            // Step 5 - Nickname
-            clientReq = new Request(Request.Types.setNickname, aesSuite.encryptString(nickname));
-            outToServer.writeObject(clientReq);
-            outToServer.flush();
-            serverReq = (Request) inFromServer.readObject();
-            if (serverReq.getType() == Request.Types.nicknameConfirm) {
-                Log.log("Nickname setup completed.");
-            } else if (serverReq.getType() == Request.Types.nicknameError) {
-                System.err.println("Connection establishment error - Invalid nickname.");
-                throw new IOException("Connection establishment error - Invalid nickname.");
-            } else if (serverReq.getType() == Request.Types.sequenceError) {
-                System.err.println("Connection establishment error - Sequence (Group).");
-                throw new IOException("Connection establishment error - Sequence (Group).");
-            } else {
-                System.err.println("Connection establishment error - Unexpected response.");
-                throw new IOException("Connection establishment error - Unexpected response.");
+            // Step 2 - Log in with the key set up during the handshake, resume the last session, or set up a new
+            // session one step at a time
+            if (serverKey != null) {
+                logIn(ecdhSuite, serverKey);
+            } else if (resumeWith == null || !resume(resumeWith, clientRandom)) {
+                setUpSession();
             }
 
-            Log.log("Connected to " + hostname + ".");
+            Log.log("Connected to {}.", hostname, 0);
             open = true;
+            reader = new Thread(this::readResponses, "Client-reader");
+            reader.setDaemon(true);
+            reader.start();
 
         } catch (UnknownHostException e) {
             System.err.println("Could not connect to " + hostname + ":" + port + ": Unknown host.");
@@ -176,81 +223,576 @@ public class Client {
         }
     }
 
+    /**
+     * Sets up a new session after the handshake: sets up encryption, then sends the group, password and nickname.
+     * @throws IOException If the server refuses any step, or reading from or writing to the connection fails
+     * @throws ClassNotFoundException If the server sent something that is not a Request
+     */
+    private void setUpSession() throws IOException, ClassNotFoundException {
+        Request clientReq;
+        Request serverReq;
+        // Step 2 - Encryption
+        ECDHSuite ecdhSuite = null;
+        if (keyExchange == KeyExchanges.rsa) {
+            rsaSuite = KeyPairPool.getShared().take();
+            clientReq = new Request(Request.Types.clientKey, rsaSuite.getPublicKey());
+        } else {
+            ecdhSuite = new ECDHSuite();
+            clientReq = new Request(Request.Types.clientKeyExchange, ecdhSuite.getPublicKey());
+        }
+        codec.write(clientReq);
+        serverReq = receive();
+        if (serverReq.getType() == Request.Types.serverKey && rsaSuite != null) {
+            aesSuite = new AESSuite(rsaSuite.decryptBytes(serverReq.getBytes()), AESSuite.Roles.client, cipherMode());
+            Log.log("Encryption setup completed.");
+        } else if (serverReq.getType() == Request.Types.serverKeyExchange && ecdhSuite != null) {
+            try {
+                aesSuite = new AESSuite(ecdhSuite.deriveKey(serverReq.getBytes(), true), AESSuite.Roles.client,
+                        cipherMode());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Connection establishment error - Invalid server key.");
+                throw new IOException("Connection establishment error - Invalid server key.");
+            }
+            Log.log("Encryption setup completed.");
+        } else if (serverReq.getType() == Request.Types.sequenceError) {
+            System.err.println("Connection establishment error - Sequence (Encryption).");
+            throw new IOException("Connection establishment error - Sequence (Encryption).");
+        } else {
+            System.err.println("Connection establishment error - Unexpected response.");
+            throw new IOException("Connection establishment error - Unexpected response.");
+        }
+
+        // Step 3 - Group
+        clientReq = new Request(Request.Types.setGroup, aesSuite.encryptString(group));
+        codec.write(clientReq);
+        serverReq = receive();
+        if (serverReq.getType() == Request.Types.groupConfirm) {
+            Log.log("Group setup completed.");
+        } else if (serverReq.getType() == Request.Types.groupError) {
+            System.err.println("Connection establishment error - Group not found.");
+            throw new IOException("Connection establishment error - Group not found.");
+        } else if (serverReq.getType() == Request.Types.sequenceError) {
+            System.err.println("Connection establishment error - Sequence (Group).");
+            throw new IOException("Connection establishment error - Sequence (Group).");
+        } else {
+            System.err.println("Connection establishment error - Unexpected response.");
+            throw new IOException("Connection establishment error - Unexpected response.");
+        }
+
+        // Step 4 - Group Password
+        clientReq = new Request(Request.Types.setPassword, aesSuite.encryptString(hashedGroupPassword));
+        codec.write(clientReq);
+        serverReq = receive();
+        if (serverReq.getType() == Request.Types.passwordConfirm) {
+            Log.log("Credentials setup completed.");
+        } else if (serverReq.getType() == Request.Types.passwordError) {
+            System.err.println("Connection establishment error - Invalid password.");
+            throw new IOException("Connection establishment error - Invalid password.");
+        } else if (serverReq.getType() == Request.Types.sequenceError) {
+            System.err.println("Connection establishment error - Sequence (Group Password).");
+            throw new IOException("Connection establishment error - Sequence (Group Password).");
+        } else {
+            System.err.println("Connection establishment error - Unexpected response.");
+            throw new IOException("Connection establishment error - Unexpected response.");
+        }
+
+        // Step 5 - Nickname
+        clientReq = new Request(Request.Types.setNickname, aesSuite.encryptString(nickname));
+        codec.write(clientReq);
+        serverReq = receive();
+        if (serverReq.getType() == Request.Types.nicknameConfirm) {
+            topic = "default"; // New sessions start out in the default topic
+            storeTicket(serverReq.getBytes(), aesSuite);
+            Log.log("Nickname setup completed.");
+        } else if (serverReq.getType() == Request.Types.nicknameError) {
+            System.err.println("Connection establishment error - Invalid nickname.");
+            throw new IOException("Connection establishment error - Invalid nickname.");
+        } else if (serverReq.getType() == Request.Types.sequenceError) {
+            System.err.println("Connection establishment error - Sequence (Group).");
+            throw new IOException("Connection establishment error - Sequence (Group).");
+        } else {
+            System.err.println("Connection establishment error - Unexpected response.");
+            throw new IOException("Connection establishment error - Unexpected response.");
+        }
+    }
+
+    /**
+     * Parses a handshake response that carries the server's X25519 key.
+     * @param body Body of the handshake response
+     * @return The protocol accepted and the server's key (Base64), or null if the response carries no key
+     */
+    private static List<String> unpackHandshake(byte[] body) {
+        try {
+            List<String> response = Packing.unpack(body, BinaryCodec.HANDSHAKE_FIELDS);
+            if (response.size() == BinaryCodec.HANDSHAKE_FIELDS) {
+                Base64.getDecoder().decode(response.get(1)); // Check it is valid
+                return response;
+            }
+        } catch (IllegalArgumentException e) {
+            // Not packed - a server that sets up the key separately
+        }
+        return null;
+    }
+
+    /**
+     * Sets up a new session with the key agreed on during the handshake, sending the group, password and
+     * nickname in a single request.
+     * @param ecdhSuite Our half of the key agreement
+     * @param serverKey The server's X25519 public key
+     * @throws IOException If the server refuses the login, or reading from or writing to the connection fails
+     * @throws ClassNotFoundException If the server sent something that is not a Request
+     */
+    private void logIn(ECDHSuite ecdhSuite, byte[] serverKey) throws IOException, ClassNotFoundException {
+        try {
+            aesSuite = new AESSuite(ecdhSuite.deriveKey(serverKey, true));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Connection establishment error - Invalid server key.");
+            throw new IOException("Connection establishment error - Invalid server key.");
+        }
+        Log.log("Encryption setup completed.");
+        codec.write(new Request(Request.Types.login,
+                aesSuite.encryptBytes(Packing.pack(List.of(group, hashedGroupPassword, nickname)))));
+        Request serverReq = receive();
+        if (serverReq.getType() == Request.Types.loginConfirm) {
+            topic = "default"; // New sessions start out in the default topic
+            storeTicket(serverReq.getBytes(), aesSuite);
+            Log.log("Login completed.");
+        } else if (serverReq.getType() == Request.Types.groupError) {
+            System.err.println("Connection establishment error - Group not found.");
+            throw new IOException("Connection establishment error - Group not found.");
+        } else if (serverReq.getType() == Request.Types.passwordError) {
+            System.err.println("Connection establishment error - Invalid password.");
+            throw new IOException("Connection establishment error - Invalid password.");
+        } else if (serverReq.getType() == Request.Types.nicknameError) {
+            System.err.println("Connection establishment error - Invalid nickname.");
+            throw new IOException("Connection establishment error - Invalid nickname.");
+        } else if (serverReq.getType() == Request.Types.sequenceError) {
+            System.err.println("Connection establishment error - Sequence (Login).");
+            throw new IOException("Connection establishment error - Sequence (Login).");
+        } else {
+            System.err.println("Connection establishment error - Unexpected response.");
+            throw new IOException("Connection establishment error - Unexpected response.");
+        }
+    }
+
+    /**
+     * Resumes the last session with its ticket after the handshake, skipping the rest of the setup.
+     * @param resumeWith Ticket to present
+     * @param clientRandom Our random value, if the ticket was already sent along with the handshake (null if not)
+     * @return True if the session was resumed, false if the server refused the ticket and a new session must be
+     *         set up instead
+     * @throws IOException If the server's response is invalid, or reading from or writing to the connection fails
+     * @throws ClassNotFoundException If the server sent something that is not a Request
+     */
+    private boolean resume(Ticket resumeWith, byte[] clientRandom) throws IOException, ClassNotFoundException {
+        if (clientRandom == null) {
+            clientRandom = newRandom();
+            codec.write(resumeRequest(resumeWith, clientRandom));
+        }
+        Request serverReq = receive();
+        if (serverReq.getType() == Request.Types.resumeError) {
+            Log.log("Server refused resumption ticket, setting up a new session.", 1);
+            ticket = null;
+            return false;
+        } else if (serverReq.getType() != Request.Types.resumeConfirm) {
+            System.err.println("Connection establishment error - Unexpected response.");
+            throw new IOException("Connection establishment error - Unexpected response.");
+        }
+        byte[] body = serverReq.getBytes();
+        if (body.length < RESUME_RANDOM_SIZE) {
+            System.err.println("Connection establishment error - Invalid resume response.");
+            throw new IOException("Connection establishment error - Invalid resume response.");
+        }
+        byte[] serverRandom = Arrays.copyOf(body, RESUME_RANDOM_SIZE);
+        aesSuite = new AESSuite(TicketSuite.deriveKey(resumeWith.key, clientRandom, serverRandom),
+                AESSuite.Roles.client, cipherMode());
+        storeTicket(Arrays.copyOfRange(body, RESUME_RANDOM_SIZE, body.length), aesSuite);
+        Log.log("Session resumed.");
+        return true;
+    }
+
+    /**
+     * @return Cipher to use for the session: AES-GCM if the server accepted the binary protocol, or the legacy
+     *         cipher of servers that only speak the old protocol
+     */
+    private AESSuite.Modes cipherMode() {
+        return binary ? AESSuite.Modes.gcm : AESSuite.Modes.legacy;
+    }
+
+    /**
+     * Builds a request presenting a resumption ticket.
+     * @param resumeWith Ticket to present
+     * @param clientRandom Our random value, sent with a proof that we hold the ticket's key
+     * @return The request
+     */
+    private static Request resumeRequest(Ticket resumeWith, byte[] clientRandom) {
+        byte[] proof = TicketSuite.prove(resumeWith.key, resumeWith.ticket, clientRandom);
+        return new Request(Request.Types.resume, ByteBuffer.allocate(4 + resumeWith.ticket.length +
+                clientRandom.length + proof.length).putInt(resumeWith.ticket.length).put(resumeWith.ticket)
+                .put(clientRandom).put(proof).array());
+    }
+
+    /**
+     * @return A new random value for deriving a resumed session's key
+     */
+    private byte[] newRandom() {
+        byte[] random = new byte[RESUME_RANDOM_SIZE];
+        new SecureRandom().nextBytes(random);
+        return random;
+    }
+
+    /**
+     * Keeps a resumption ticket sent by the server, replacing the last one.
+     * @param encryptedTicket The ticket, encrypted with the session key (empty if the server sent none)
+     * @param sessionAesSuite The session's AESSuite
+     */
+    private void storeTicket(byte[] encryptedTicket, AESSuite sessionAesSuite) {
+        if (encryptedTicket.length == 0) { // Servers without resumption send no ticket
+            ticket = null;
+            return;
+        }
+        try {
+            ticket = new Ticket(sessionAesSuite.decryptBytes(encryptedTicket), sessionAesSuite.getKey());
+        } catch (GeneralSecurityException e) {
+            System.err.println("Client: Invalid resumption ticket.");
+            ticket = null;
+        }
+    }
+
+    /**
+     * Stops the last connection's reader thread, if there is one, so the next connection starts out clean.
+     */
+    private void stopReader() {
+        if (reader == null) {
+            return;
+        }
+        open = false; // The reader thread should not report the connection we are dropping as lost
+        try {
+            socket.close();
+            reader.join();
+        } catch (IOException e) {
+            // Already closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        reader = null;
+        sendLock.lock();
+        try {
+            lost = null;
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
     /**
      * Closes the connection to the server.
      * @throws IOException Throws an IOException if closing the connection fails.
      */
     public void close() throws IOException {
+        open = false; // The server hangs up after goodbye, which the reader thread should not report
         try {
-            try {
-                clientReq = new Request(Request.Types.goodbye);
-                outToServer.writeObject(clientReq);
-                outToServer.flush();
-                serverReq = (Request) inFromServer.readObject();
-                if (serverReq.getType() != Request.Types.goodbyeResponse) {
-                    System.err.println("Error terminating connection gracefully.");
-                }
-            } catch (ClassNotFoundException e) {
+            Request serverReq = await(send(new Request(Request.Types.goodbye)));
+            if (serverReq == null || serverReq.getType() != Request.Types.goodbyeResponse) {
                 System.err.println("Error terminating connection gracefully.");
             }
-            outToServer.close();
-            inFromServer.close();
             socket.close();
-            open = false;
         } catch (IOException e) {
             System.err.println("Could not disconnect from " + hostname + ":" + port + ": IOException encountered.");
-            open = false;
             throw new IOException("Could not disconnect from " + hostname + ":" + port + ": IOException encountered.");
         }
     }
 
-    private void putRequest(Request request) {
+    /**
+     * Sends a request, tagged with a new correlation ID.
+     * @param request Request to send
+     * @return Future completed with the server's response, or exceptionally if the connection fails
+     */
+    private CompletableFuture<Request> send(Request request) {
+        sendLock.lock();
         try {
-            outToServer.writeObject(request);
-            outToServer.flush();
-        } catch(IOException e) {
-            System.err.println("Client: Failed to write to connection");
+            Pending p = new Pending(nextId);
+            if (lost != null) { // The reader thread has stopped, so nothing would ever complete this
+                p.response.completeExceptionally(lost);
+                return p.response;
+            }
+            nextId = (nextId == Integer.MAX_VALUE) ? 1 : nextId + 1;
+            request.setId(p.id);
+            pending.add(p);
+            try {
+                codec.write(request);
+            } catch (IOException e) {
+                System.err.println("Client: Failed to write to connection");
+                pending.remove(p);
+                p.response.completeExceptionally(e);
+            }
+            return p.response;
+        } finally {
+            sendLock.unlock();
         }
-
     }
 
-    private Request getRequest() {
+    /**
+     * Waits for a response.
+     * @param response Future response
+     * @return The response, or null if it could not be retrieved
+     */
+    private Request await(CompletableFuture<Request> response) {
         try {
-            return (Request) inFromServer.readObject();
-        } catch(IOException e) {
+            return response.join();
+        } catch (CompletionException e) {
             System.err.println("Client: Failed to read from connection.");
             return null;
-        } catch(ClassNotFoundException e) {
-            System.err.println("Client: Class not found.");
-            return null;
         }
     }
 
+    /**
+     * Reads the next request from the server, skipping over stream setup.
+     * @return The next request
+     * @throws IOException If reading fails
+     * @throws ClassNotFoundException If the server sent something that is not a Request
+     */
+    private Request receive() throws IOException, ClassNotFoundException {
+        Request request;
+        do {
+            request = codec.read();
+        } while (request == null);
+        return request;
+    }
+
+    /**
+     * Reads from the connection until it closes, handing pushed messages to the push listener and completing
+     * pending requests in order with everything else. Runs on the reader thread.
+     */
+    private void readResponses() {
+        try {
+            while (true) {
+                Request request = receive();
+                if (request.getType() == Request.Types.messagePush) {
+                    deliver(request);
+                    continue;
+                }
+                Pending p = pending.poll();
+                if (p == null) {
+                    System.err.println("Client: Unexpected response - " + request.getType());
+                } else if (request.getId() != 0 && request.getId() != p.id) { // Servers without IDs answer with 0
+                    throw new IOException("Client: Response " + request.getId() + " does not match " + p.id + ".");
+                } else {
+                    p.response.complete(request);
+                }
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            if (open) {
+                System.err.println("Client: Connection lost.");
+            }
+            sendLock.lock();
+            try {
+                lost = new IOException("Client: Connection lost.");
+                Pending p;
+                while ((p = pending.poll()) != null) {
+                    p.response.completeExceptionally(lost);
+                }
+            } finally {
+                sendLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Decrypts a pushed message and hands it to the push listener.
+     * @param push Pushed message
+     */
+    private void deliver(Request push) {
+        try {
+            String message = aesSuite.decryptString(push.getBytes());
+            Consumer<String> listener = pushListener;
+            if (listener != null) {
+                listener.accept(message);
+            }
+        } catch (GeneralSecurityException e) {
+            System.err.println("deliver: GeneralSecurityException");
+        }
+    }
+
+    /**
+     * Decrypts the body of a response.
+     * @param response Response to decrypt
+     * @param caller Name of the calling function, for errors
+     * @return Decrypted body
+     */
+    private String decrypt(Request response, String caller) {
+        try {
+            return aesSuite.decryptString(response.getBytes());
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(caller + ": GeneralSecurityException");
+        }
+    }
+
+    /**
+     * Subscribes to the active topic. From then on, new messages in the active topic (including the client's own)
+     * are pushed by the server and handed to the listener as they arrive, on the reader thread.
+     * @param listener Called with each new message
+     * @return Returns true if subscribing succeeds
+     */
+    public boolean subscribe(Consumer<String> listener) {
+        if (!open) { throw new IllegalStateException(); }
+        pushListener = listener;
+        Request serverReq = await(send(new Request(Request.Types.subscribe)));
+        if (serverReq == null) {
+            System.err.println("subscribe: Bad response.");
+            return false;
+        }
+        if (serverReq.getType() != Request.Types.subscribeConfirm) {
+            System.err.println("subscribe: Unexpected response - " + serverReq.getType());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops new messages from being pushed.
+     * @return Returns true if unsubscribing succeeds
+     */
+    public boolean unsubscribe() {
+        if (!open) { throw new IllegalStateException(); }
+        Request serverReq = await(send(new Request(Request.Types.unsubscribe)));
+        if (serverReq == null) {
+            System.err.println("unsubscribe: Bad response.");
+            return false;
+        }
+        if (serverReq.getType() != Request.Types.unsubscribeConfirm) {
+            System.err.println("unsubscribe: Unexpected response - " + serverReq.getType());
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Sends a message.
      * @param message Message to send
      * @return Returns true if sending the message succeeds
      */
     public boolean sendMessage(String message) throws IllegalArgumentException {
+        return sendMessageAsync(message).join();
+    }
+
+    /**
+     * Sends a message without waiting for the server to confirm it.
+     * @param message Message to send
+     * @return Future completed with true if sending the message succeeds
+     */
+    public CompletableFuture<Boolean> sendMessageAsync(String message) throws IllegalArgumentException {
         if (!open) { throw new IllegalStateException(); }
         if (!Format.isValidMessage(message)) {
             throw new IllegalArgumentException("sendMessage: Invalid message.");
         }
-        putRequest(new Request(Request.Types.sendMessage, aesSuite.encryptString(message)));
-        serverReq = getRequest();
-        if (serverReq == null) {
-            System.err.println("sendMessage: Bad response.");
-            return false;
+        return send(new Request(Request.Types.sendMessage, aesSuite.encryptString(message))).handle((serverReq, e) -> {
+            if (e != null) {
+                System.err.println("sendMessage: Bad response.");
+                return false;
+            }
+            if (serverReq.getType() == Request.Types.messageConfirm) {
+                return true;
+            } else if (serverReq.getType() == Request.Types.messageError) {
+                System.err.println("sendMessage: Server rejected message.");
+                return false;
+            } else {
+                System.err.println("sendMessage: Unexpected response - " + serverReq.getType());
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Sends several messages in a single request.
+     * @param messages Messages to send, in order
+     * @return Number of messages the server accepted. Returns -1 if the request fails
+     */
+    public int sendMessages(List<String> messages) throws IllegalArgumentException {
+        return sendMessagesAsync(messages).join();
+    }
+
+    /**
+     * Sends several messages in a single request without waiting for the server to confirm them.
+     * @param messages Messages to send, in order
+     * @return Future completed with the number of messages the server accepted, or -1 if the request fails
+     */
+    public CompletableFuture<Integer> sendMessagesAsync(List<String> messages) throws IllegalArgumentException {
+        if (!open) { throw new IllegalStateException(); }
+        if (messages.size() > ChatMap.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("sendMessages: Too many messages.");
         }
-        if (serverReq.getType() == Request.Types.messageConfirm) {
-            return true;
-        } else if (serverReq.getType() == Request.Types.messageError) {
-            System.err.println("sendMessage: Server rejected message.");
-            return false;
-        } else {
-            System.err.println("sendMessage: Unexpected response - " + serverReq.getType());
-            return false;
+        for (String i : messages) {
+            if (!Format.isValidMessage(i)) {
+                throw new IllegalArgumentException("sendMessages: Invalid message.");
+            }
+        }
+        return send(new Request(Request.Types.sendMessages, aesSuite.encryptBytes(Packing.pack(messages))))
+                .handle((serverReq, e) -> {
+            if (e != null) {
+                System.err.println("sendMessages: Bad response.");
+                return -1;
+            }
+            if (serverReq.getType() == Request.Types.messagesConfirm) {
+                return Integer.parseInt(serverReq.getString());
+            } else if (serverReq.getType() == Request.Types.messageError) {
+                System.err.println("sendMessages: Server rejected messages.");
+                return -1;
+            } else {
+                System.err.println("sendMessages: Unexpected response - " + serverReq.getType());
+                return -1;
+            }
+        });
+    }
+
+    /**
+     * Gets recent messages from several topics in a single request.
+     * @param topics Topics to get recent messages from
+     * @return Recent messages for each topic, keyed by topic. Returns an empty map if they cannot be retrieved
+     */
+    public Map<String, String> getMessagesMulti(List<String> topics) throws IllegalArgumentException {
+        return getMessagesMultiAsync(topics).join();
+    }
+
+    /**
+     * Gets recent messages from several topics in a single request without waiting for them.
+     * @param topics Topics to get recent messages from
+     * @return Future completed with recent messages for each topic, keyed by topic, or an empty map if they
+     * cannot be retrieved
+     */
+    public CompletableFuture<Map<String, String>> getMessagesMultiAsync(List<String> topics)
+            throws IllegalArgumentException {
+        if (!open) { throw new IllegalStateException(); }
+        if (topics.size() > ChatMap.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("getMessagesMulti: Too many topics.");
+        }
+        for (String i : topics) {
+            if (!Format.isValidName(i)) {
+                throw new IllegalArgumentException("getMessagesMulti: Invalid topic.");
+            }
         }
+        return send(new Request(Request.Types.getMessagesMulti, aesSuite.encryptBytes(Packing.pack(topics))))
+                .handle((serverReq, e) -> {
+            LinkedHashMap<String, String> output = new LinkedHashMap<>();
+            if (e != null) {
+                System.err.println("getMessagesMulti: Bad response.");
+                return output;
+            }
+            if (serverReq.getType() != Request.Types.messagesMulti) {
+                System.err.println("getMessagesMulti: Unexpected response - " + serverReq.getType());
+                return output;
+            }
+            List<String> msgsByTopic;
+            try {
+                msgsByTopic = Packing.unpack(aesSuite.decryptBytes(serverReq.getBytes()), topics.size());
+            } catch (GeneralSecurityException | IllegalArgumentException f) {
+                System.err.println("getMessagesMulti: Malformed response.");
+                return output;
+            }
+            for (int i = 0; i < msgsByTopic.size(); i++) {
+                output.put(topics.get(i), msgsByTopic.get(i));
+            }
+            return output;
+        });
     }
 
     /**
@@ -258,25 +800,194 @@ public class Client {
      * @return Recent messages. Returns "" if recent messages cannot be retrieved
      */
     public String getMessages() {
+        return getMessagesAsync().join();
+    }
+
+    /**
+     * Gets recent messages from the current topic without waiting for them.
+     * @return Future completed with recent messages, or "" if recent messages cannot be retrieved
+     */
+    public CompletableFuture<String> getMessagesAsync() {
         if (!open) { throw new IllegalStateException(); }
-        putRequest(new Request(Request.Types.getMessages));
-        serverReq = getRequest();
-        if (serverReq == null) {
-            System.err.println("getMessages: Bad response.");
+        return send(new Request(Request.Types.getMessages)).handle((serverReq, e) -> {
+            if (e != null) {
+                System.err.println("getMessages: Bad response.");
+                return "";
+            }
+            if (serverReq.getType() == Request.Types.messages) {
+                return decrypt(serverReq, "getMessages");
+            }
+            System.err.println("getMessages: Unexpected response - " + serverReq.getType());
             return "";
-        }
-        if (serverReq.getType() == Request.Types.messages) {
-            try {
-                srBody = aesSuite.decryptString(serverReq.getBytes());
-            } catch (GeneralSecurityException e) {
-                throw new RuntimeException("getMessages: GeneralSecurityException");
+        });
+    }
+
+    /**
+     * Gets messages from the current topic that are newer than the given sequence number.
+     * Afterwards, getLastSeq() returns the group's latest sequence number.
+     * @param seq Sequence number of the last message already seen (0 for all recent messages)
+     * @return Newer messages. Returns "" if there are none or they cannot be retrieved
+     */
+    public String getMessagesSince(long seq) {
+        return getMessagesSinceAsync(seq).join();
+    }
+
+    /**
+     * Gets messages from the current topic that are newer than the given sequence number without waiting for them.
+     * Once complete, getLastSeq() returns the group's latest sequence number.
+     * @param seq Sequence number of the last message already seen (0 for all recent messages)
+     * @return Future completed with newer messages, or "" if there are none or they cannot be retrieved
+     */
+    public CompletableFuture<String> getMessagesSinceAsync(long seq) {
+        if (!open) { throw new IllegalStateException(); }
+        return send(new Request(Request.Types.getMessagesSince, aesSuite.encryptString(Long.toString(seq))))
+                .handle((serverReq, e) -> {
+            if (e != null) {
+                System.err.println("getMessagesSince: Bad response.");
+                return "";
             }
-            return srBody;
-        } else {
-            System.err.println("sendMessage: Unexpected response - " + serverReq.getType());
+            if (serverReq.getType() == Request.Types.upToDate) {
+                lastSeq = Math.max(lastSeq, seq);
+                return "";
+            } else if (serverReq.getType() == Request.Types.messagesSince) {
+                String srBody = decrypt(serverReq, "getMessagesSince");
+                int split = srBody.indexOf('\n');
+                lastSeq = Long.parseLong(srBody.substring(0, split));
+                return srBody.substring(split + 1);
+            }
+            System.err.println("getMessagesSince: Unexpected response - " + serverReq.getType());
             return "";
+        });
+    }
+
+    /**
+     * Gets messages from the current topic that arrived since the last call to this or getMessagesSince().
+     * @return New messages. Returns "" if there are none or they cannot be retrieved
+     */
+    public String getNewMessages() {
+        return getMessagesSince(lastSeq);
+    }
+
+    /**
+     * Gets a page of messages from the current topic that are older than the given sequence number, including
+     * messages too old to be in the server's cache if the server saves its history.
+     * @param beforeSeq Sequence number to page back from (0 for the newest messages)
+     * @return Older messages. Returns "" if there are none or they cannot be retrieved
+     */
+    public String getHistory(long beforeSeq) {
+        return getHistoryAsync(beforeSeq).join();
+    }
+
+    /**
+     * Gets a page of messages from the current topic that are older than the given sequence number without waiting
+     * for them.
+     * @param beforeSeq Sequence number to page back from (0 for the newest messages)
+     * @return Future completed with older messages, or "" if there are none or they cannot be retrieved
+     */
+    public CompletableFuture<String> getHistoryAsync(long beforeSeq) {
+        if (!open) { throw new IllegalStateException(); }
+        return requestHistory(new Request(Request.Types.getHistory,
+                aesSuite.encryptString(Long.toString(beforeSeq))), "getHistory");
+    }
+
+    /**
+     * Gets the page of messages from the current topic sent up to a given time, including messages too old to be
+     * in the server's cache if the server saves its history. getOlderMessages() then pages back from there.
+     * @param time Time to get messages up to (ms since the epoch)
+     * @return Messages sent at or before the time. Returns "" if there are none or they cannot be retrieved
+     */
+    public String getHistoryAt(long time) {
+        return getHistoryAtAsync(time).join();
+    }
+
+    /**
+     * Gets the page of messages from the current topic sent up to a given time without waiting for them.
+     * @param time Time to get messages up to (ms since the epoch)
+     * @return Future completed with the messages, or "" if there are none or they cannot be retrieved
+     */
+    public CompletableFuture<String> getHistoryAtAsync(long time) {
+        if (!open) { throw new IllegalStateException(); }
+        return requestHistory(new Request(Request.Types.getHistoryAt, aesSuite.encryptString(Long.toString(time))),
+                "getHistoryAt");
+    }
+
+    /**
+     * Sends a request for a page of history, and remembers where the page starts for getOlderMessages().
+     * @param request The request
+     * @param caller Name of the calling method, for error messages
+     * @return Future completed with the page's messages, or "" if there are none or they cannot be retrieved
+     */
+    private CompletableFuture<String> requestHistory(Request request, String caller) {
+        return send(request).handle((serverReq, e) -> {
+            if (e != null) {
+                System.err.println(caller + ": Bad response.");
+                return "";
+            }
+            if (serverReq.getType() == Request.Types.history) {
+                String srBody = decrypt(serverReq, caller);
+                int split = srBody.indexOf('\n');
+                long oldest = Long.parseLong(srBody.substring(0, split));
+                historySeq = oldest > 0 ? oldest : 1;
+                return srBody.substring(split + 1);
+            }
+            System.err.println(caller + ": Unexpected response - " + serverReq.getType());
+            return "";
+        });
+    }
+
+    /**
+     * Gets the page of messages from the current topic before the oldest one returned so far by getHistory() or
+     * this. The first call returns the page before the most recent messages.
+     * @return Older messages. Returns "" if there are none or they cannot be retrieved
+     */
+    public String getOlderMessages() {
+        if (historySeq == 0) {
+            getHistory(0); // The most recent messages, which have already been seen
         }
+        if (historySeq == 1) {
+            return "";
+        }
+        return getHistory(historySeq);
+    }
 
+    /**
+     * Searches the current group's recent messages.
+     * @param query Words and "quoted phrases" to find, optionally with topic:, user: and since: (e.g. 2h) filters
+     * @return Matching messages. Returns "" if there are none, the query is malformed, or they cannot be retrieved
+     */
+    public String search(String query) {
+        return searchAsync(query).join();
+    }
+
+    /**
+     * Searches the current group's recent messages without waiting for the results.
+     * @param query Words and "quoted phrases" to find, optionally with topic:, user: and since: (e.g. 2h) filters
+     * @return Future completed with matching messages, or "" if there are none, the query is malformed, or they
+     *         cannot be retrieved
+     */
+    public CompletableFuture<String> searchAsync(String query) {
+        if (!open) { throw new IllegalStateException(); }
+        return send(new Request(Request.Types.search, aesSuite.encryptString(query))).handle((serverReq, e) -> {
+            if (e != null) {
+                System.err.println("search: Bad response.");
+                return "";
+            }
+            if (serverReq.getType() == Request.Types.searchResults) {
+                return decrypt(serverReq, "search");
+            } else if (serverReq.getType() == Request.Types.messageError) {
+                System.err.println("search: Server rejected query.");
+                return "";
+            }
+            System.err.println("search: Unexpected response - " + serverReq.getType());
+            return "";
+        });
+    }
+
+    /**
+     * @return The group's latest sequence number, as of the last call to getMessagesSince()
+     */
+    public long getLastSeq() {
+        return lastSeq;
     }
 
     /**
@@ -284,52 +995,66 @@ public class Client {
      * @return Recent messages. Returns "" if recent messages cannot be retrieved
      */
     public String getAllMessages() {
+        return getAllMessagesAsync().join();
+    }
+
+    /**
+     * Gets recent messages from all topics without waiting for them.
+     * @return Future completed with recent messages, or "" if recent messages cannot be retrieved
+     */
+    public CompletableFuture<String> getAllMessagesAsync() {
         if (!open) { throw new IllegalStateException(); }
-        putRequest(new Request(Request.Types.getAllMessages));
-        serverReq = getRequest();
-        if (serverReq == null) {
-            System.err.println("getAllMessages: Bad response.");
-            return "";
-        }
-        if (serverReq.getType() == Request.Types.messages) {
-            try {
-                srBody = aesSuite.decryptString(serverReq.getBytes());
-            } catch (GeneralSecurityException e) {
-                throw new RuntimeException("getAllMessages: GeneralSecurityException");
+        return send(new Request(Request.Types.getAllMessages)).handle((serverReq, e) -> {
+            if (e != null) {
+                System.err.println("getAllMessages: Bad response.");
+                return "";
             }
-            return srBody;
-        } else {
-            System.err.println("sendMessage: Unexpected response - " + serverReq.getType());
+            if (serverReq.getType() == Request.Types.messages) {
+                return decrypt(serverReq, "getAllMessages");
+            }
+            System.err.println("getAllMessages: Unexpected response - " + serverReq.getType());
             return "";
-        }
-
+        });
     }
+
     /**
      * Sets the active topic.
      * @param newTopic Topic to change to
      * @return Returns true if setting the topic is successful
      */
     public boolean setTopic(String newTopic) throws IllegalArgumentException {
+        return setTopicAsync(newTopic).join();
+    }
+
+    /**
+     * Sets the active topic without waiting for the server to confirm it.
+     * Requests sent after this one apply to the new topic.
+     * @param newTopic Topic to change to
+     * @return Future completed with true if setting the topic is successful
+     */
+    public CompletableFuture<Boolean> setTopicAsync(String newTopic) throws IllegalArgumentException {
         if (!open) { throw new IllegalStateException(); }
         if (!Format.isValidName(newTopic)) {
-            throw new IllegalArgumentException("sendMessage: Invalid topic.");
-        }
-        putRequest(new Request(Request.Types.setTopic, aesSuite.encryptString(newTopic)));
-        serverReq = getRequest();
-        if (serverReq == null) {
-            System.err.println("sendMessage: Bad response.");
-            return false;
-        }
-        if (serverReq.getType() == Request.Types.topicConfirm) {
-            this.topic = newTopic;
-            return true;
-        } else if (serverReq.getType() == Request.Types.topicError) {
-            System.err.println("sendMessage: Server rejected topic.");
-            return false;
-        } else {
-            System.err.println("sendMessage: Unexpected response - " + serverReq.getType());
-            return false;
+            throw new IllegalArgumentException("setTopic: Invalid topic.");
         }
+        return send(new Request(Request.Types.setTopic, aesSuite.encryptString(newTopic))).handle((serverReq, e) -> {
+            if (e != null) {
+                System.err.println("setTopic: Bad response.");
+                return false;
+            }
+            if (serverReq.getType() == Request.Types.topicConfirm) {
+                this.topic = newTopic;
+                storeTicket(serverReq.getBytes(), aesSuite); // The ticket now resumes in the new topic
+                historySeq = 0; // Page back through the new topic from its newest messages
+                return true;
+            } else if (serverReq.getType() == Request.Types.topicError) {
+                System.err.println("setTopic: Server rejected topic.");
+                return false;
+            } else {
+                System.err.println("setTopic: Unexpected response - " + serverReq.getType());
+                return false;
+            }
+        });
     }
 
     /**
@@ -337,23 +1062,25 @@ public class Client {
      * @return Active topics. Returns "" if active topics cannot be retrieved
      */
     public String getTopics() {
+        return getTopicsAsync().join();
+    }
+
+    /**
+     * Gets active topics without waiting for them.
+     * @return Future completed with active topics, or "" if active topics cannot be retrieved
+     */
+    public CompletableFuture<String> getTopicsAsync() {
         if (!open) { throw new IllegalStateException(); }
-        putRequest(new Request(Request.Types.getTopics));
-        serverReq = getRequest();
-        if (serverReq == null) {
-            System.err.println("getMessages: Bad response.");
-            return "";
-        }
-        if (serverReq.getType() == Request.Types.topics) {
-            try {
-                srBody = aesSuite.decryptString(serverReq.getBytes());
-            } catch (GeneralSecurityException e) {
-                throw new RuntimeException("getMessages: GeneralSecurityException");
+        return send(new Request(Request.Types.getTopics)).handle((serverReq, e) -> {
+            if (e != null) {
+                System.err.println("getTopics: Bad response.");
+                return "";
             }
-            return srBody;
-        } else {
-            System.err.println("sendMessage: Unexpected response - " + serverReq.getType());
+            if (serverReq.getType() == Request.Types.topics) {
+                return decrypt(serverReq, "getTopics");
+            }
+            System.err.println("getTopics: Unexpected response - " + serverReq.getType());
             return "";
-        }
+        });
     }
 }
@@ -0,0 +1,32 @@
+package org.jmeifert.camber.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Codec reads and writes Requests on a connection's streams.
+ */
+interface Codec {
+    /**
+     * Reads the next request from the connection, waiting for it if necessary.
+     * @return The next request, or null if the data read so far only set up the stream
+     * @throws IOException If reading fails or the data is malformed
+     * @throws ClassNotFoundException If the connection sent something that is not a Request
+     */
+    Request read() throws IOException, ClassNotFoundException;
+
+    /**
+     * Checks whether the next read can finish with the bytes already received, so it will not have to wait.
+     * @param received Bytes received but not read yet, from position to limit (left unchanged)
+     * @return True if a whole request (or whatever the next read consumes) has been received, or if the bytes are
+     *          malformed so the next read will fail without waiting
+     */
+    boolean hasRequest(ByteBuffer received);
+
+    /**
+     * Writes a request to the connection and flushes it.
+     * @param request Request to write
+     * @throws IOException If writing fails
+     */
+    void write(Request request) throws IOException;
+}
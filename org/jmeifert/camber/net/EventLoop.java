@@ -0,0 +1,210 @@
+package org.jmeifert.camber.net;
+
+import org.jmeifert.camber.data.ServerData;
+import org.jmeifert.camber.file.Log;
+import org.jmeifert.camber.util.ChatMap;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * EventLoop watches a set of client connections with a Selector. Idle connections cost no thread; the EventLoop
+ * collects what each client sends, and once a whole request has arrived, the connection's ServerThread state machine
+ * is advanced on a shared worker pool. Workers never wait on a client that is slow to send the rest of a request.
+ */
+class EventLoop extends Thread {
+    private final int INACTIVITY_TIMEOUT = ChatMap.INACTIVITY_TIMEOUT;
+    private final int SELECTOR_READ_TIMEOUT = ChatMap.SELECTOR_READ_TIMEOUT;
+    private final int SELECT_INTERVAL = 1000;
+
+    private final Selector selector;
+    private final ServerData serverData;
+    private final ExecutorService workers;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private long lastExpiryCheck = System.currentTimeMillis();
+
+    /**
+     * A client connection registered with this EventLoop.
+     */
+    private static class Session {
+        final SocketChannel channel;
+        final ChannelInputStream in;
+        final ServerThread serverThread;
+        SelectionKey key;
+        volatile boolean busy = false;
+        volatile long lastActive = System.currentTimeMillis();
+        long partialSince = 0; // When the start of a request that has not all arrived was received (0: none)
+
+        Session(SocketChannel channel, ChannelInputStream in, ServerThread serverThread) {
+            this.channel = channel;
+            this.in = in;
+            this.serverThread = serverThread;
+        }
+    }
+
+    /**
+     * Instantiates an EventLoop.
+     * @param serverData ServerData instance to sync sessions with
+     * @param workers Worker pool to serve requests on
+     * @throws IOException If the selector cannot be opened
+     */
+    EventLoop(ServerData serverData, ExecutorService workers) throws IOException {
+        this.selector = Selector.open();
+        this.serverData = serverData;
+        this.workers = workers;
+    }
+
+    /**
+     * Hands a newly accepted connection to this EventLoop.
+     * @param channel Connection to serve
+     */
+    void register(SocketChannel channel) {
+        tasks.add(() -> {
+            try {
+                channel.configureBlocking(false);
+                ServerThread serverThread = new ServerThread(channel.socket(), serverData);
+                ChannelInputStream in = new ChannelInputStream(channel, SELECTOR_READ_TIMEOUT);
+                serverThread.openStreams(in, new ChannelOutputStream(channel, SELECTOR_READ_TIMEOUT));
+                Session session = new Session(channel, in, serverThread);
+                session.key = channel.register(selector, SelectionKey.OP_READ, session);
+            } catch (IOException e) {
+                Log.log("EventLoop: Failed to register connection. - {}", e.getMessage(), 1);
+                try {
+                    channel.close();
+                } catch (IOException f) {
+                    Log.log("EventLoop: Failed to close connection.", 1);
+                }
+            }
+        });
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(SELECT_INTERVAL);
+            } catch (IOException e) {
+                Log.log("EventLoop: Select failed. - {}", e.getMessage(), 2);
+                continue;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() && key.isReadable()) {
+                    receive((Session) key.attachment());
+                }
+            }
+            expireIdleSessions();
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((Session) key.attachment()).serverThread.close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.log("EventLoop: Failed to close selector.", 1);
+        }
+    }
+
+    /**
+     * Collects what a session's client has sent, and hands the session to a worker once a whole request has arrived
+     * (or the client has closed the connection, so reading will not wait).
+     * @param session Session whose channel is readable
+     */
+    private void receive(Session session) {
+        try {
+            int n = session.in.receive();
+            if (n < 0 || session.serverThread.hasRequest(session.in.received())) {
+                dispatch(session);
+            } else if (session.partialSince == 0 && session.in.available() > 0) {
+                session.partialSince = System.currentTimeMillis();
+            }
+        } catch (IOException e) {
+            session.serverThread.handleException(e);
+        }
+    }
+
+    /**
+     * Stops watching a session while a worker serves its pending request.
+     * @param session Session with a request ready
+     */
+    private void dispatch(Session session) {
+        session.key.interestOps(0);
+        session.busy = true;
+        session.partialSince = 0;
+        try {
+            workers.submit(() -> serve(session));
+        } catch (RejectedExecutionException e) {
+            session.serverThread.close();
+        }
+    }
+
+    /**
+     * Serves every whole request the session has received, then hands it back to the selector. Runs on a worker.
+     * @param session Session to serve
+     */
+    private void serve(Session session) {
+        try {
+            do {
+                if (!session.serverThread.serveNext()) {
+                    session.serverThread.close();
+                    return;
+                }
+                session.in.receive(); // Pick up requests sent meanwhile (the selector reports end of stream again)
+            } while (session.serverThread.hasRequest(session.in.received()));
+        } catch (Exception e) {
+            session.serverThread.handleException(e);
+            return;
+        }
+        session.lastActive = System.currentTimeMillis();
+        tasks.add(() -> {
+            if (session.key.isValid()) {
+                session.busy = false;
+                if (session.in.available() > 0) { // Part of the next request is already in
+                    session.partialSince = System.currentTimeMillis();
+                }
+                session.key.interestOps(SelectionKey.OP_READ);
+            }
+        });
+        selector.wakeup();
+    }
+
+    /**
+     * Closes sessions that have not sent anything within the inactivity timeout, or that have not sent the rest of a
+     * request within the read timeout.
+     */
+    private void expireIdleSessions() {
+        long now = System.currentTimeMillis();
+        if (now - lastExpiryCheck < SELECT_INTERVAL) {
+            return;
+        }
+        lastExpiryCheck = now;
+        for (SelectionKey key : selector.keys()) {
+            Session session = (Session) key.attachment();
+            if (!session.busy && (now - session.lastActive > INACTIVITY_TIMEOUT ||
+                    session.partialSince != 0 && now - session.partialSince > SELECTOR_READ_TIMEOUT)) {
+                session.serverThread.handleException(new SocketTimeoutException());
+            }
+        }
+    }
+
+    /**
+     * Stops the EventLoop and closes all of its connections.
+     */
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+}
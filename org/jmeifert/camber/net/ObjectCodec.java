@@ -0,0 +1,59 @@
+package org.jmeifert.camber.net;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * ObjectCodec is the original wire protocol, where each Request is written with Java serialization. It is what
+ * every connection starts out with, and what connections to and from older versions keep using.
+ */
+class ObjectCodec implements Codec {
+    private final InputStream in;
+    private ObjectInputStream inFromPeer;
+    private final ObjectOutputStream outToPeer;
+    private final ObjectScanner scanner = new ObjectScanner();
+    private boolean scanned = false; // Whether the bytes the next read consumes have already been found whole
+
+    /**
+     * Instantiates an ObjectCodec and sends the stream header. The peer's stream header is read on the first read.
+     * @param in Stream to read from
+     * @param out Stream to write to
+     * @throws IOException If the stream header cannot be sent
+     */
+    ObjectCodec(InputStream in, OutputStream out) throws IOException {
+        this.in = in;
+        this.outToPeer = new ObjectOutputStream(out);
+        this.outToPeer.flush();
+    }
+
+    @Override
+    public Request read() throws IOException, ClassNotFoundException {
+        scanned = false;
+        if (inFromPeer == null) { // Read the peer's stream header first
+            inFromPeer = new ObjectInputStream(in);
+            if (in.available() == 0) {
+                return null;
+            }
+        }
+        return (Request) inFromPeer.readObject();
+    }
+
+    @Override
+    public boolean hasRequest(ByteBuffer received) {
+        if (!scanned && inFromPeer == null) { // The first read takes the stream header, and the request after it if any
+            int header = 4; // Magic number and version (bytes)
+            scanned = received.remaining() == header || received.remaining() > header &&
+                    scanner.scan(received.duplicate().position(received.position() + header));
+        } else if (!scanned) {
+            scanned = scanner.scan(received);
+        }
+        return scanned;
+    }
+
+    @Override
+    public void write(Request request) throws IOException {
+        outToPeer.reset(); // Don't keep a handle to every Request ever written (before, so nothing trails the object)
+        outToPeer.writeObject(request);
+        outToPeer.flush();
+    }
+}
@@ -0,0 +1,288 @@
+package org.jmeifert.camber.net;
+
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * ObjectScanner finds where each object in a Java serialization stream ends without deserializing it, so a
+ * connection using ObjectCodec can be handed to a worker only once a whole Request has been received. It keeps
+ * track of the class descriptors the peer has sent, since later objects may only refer back to them.
+ */
+class ObjectScanner implements ObjectStreamConstants {
+    private static final int MAX_DEPTH = 64; // Deepest nesting scanned, far beyond anything in a Request (levels)
+
+    /**
+     * What the scanner needs to know about a class descriptor to find the end of an instance.
+     */
+    private static class ClassDesc {
+        final char component; // Type code of an array class's elements (0 if not an array class)
+        byte flags;
+        byte[] fieldTypes = new byte[0];
+        ClassDesc parent;
+
+        ClassDesc(String name) {
+            this.component = name.length() > 1 && name.charAt(0) == '[' ? name.charAt(1) : 0;
+        }
+    }
+
+    private final ArrayList<ClassDesc> handles = new ArrayList<>(); // Every handle assigned (null if not a class)
+    private int scanBase; // Index in handles of the first handle assigned since a reset during this scan
+    private ByteBuffer data;
+    private int depth;
+
+    /**
+     * Checks whether a whole object has been received. If it has, the handles it assigns are kept for the next scan,
+     * so each object must be scanned exactly once, in order.
+     * @param received Bytes received but not read yet, from position to limit (left unchanged)
+     * @return True if the bytes start with a whole object, or with something the scanner does not understand (so
+     *          the reader can report it)
+     */
+    boolean scan(ByteBuffer received) {
+        data = received.duplicate();
+        int assigned = handles.size();
+        scanBase = 0;
+        depth = 0;
+        try {
+            while (data.get(data.position()) == TC_RESET) {
+                data.get();
+                scanBase = handles.size();
+            }
+            readContent();
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) { // Not all received yet
+            handles.subList(assigned, handles.size()).clear();
+            return false;
+        } catch (StreamCorruptedException e) {
+            return true;
+        }
+        handles.subList(0, scanBase).clear(); // Drop the handles a reset made unreachable
+        return true;
+    }
+
+    /**
+     * Skips one item of content: an object, or a block of primitive data.
+     * @return The class descriptor read, if the item was one (or a reference to one)
+     * @throws StreamCorruptedException If the stream holds something unexpected
+     */
+    private ClassDesc readContent() throws StreamCorruptedException {
+        if (++depth > MAX_DEPTH) {
+            throw new StreamCorruptedException("ObjectScanner: Nested too deeply.");
+        }
+        try {
+            return readItem(data.get());
+        } finally {
+            depth--;
+        }
+    }
+
+    /**
+     * Skips the rest of one item of content.
+     * @param tc Type code the item starts with
+     * @return The class descriptor read, if the item was one (or a reference to one)
+     * @throws StreamCorruptedException If the stream holds something unexpected
+     */
+    private ClassDesc readItem(byte tc) throws StreamCorruptedException {
+        switch (tc) {
+            case TC_NULL:
+                return null;
+            case TC_REFERENCE:
+                int handle = data.getInt() - baseWireHandle;
+                if (handle < 0 || scanBase + handle >= handles.size()) {
+                    throw new StreamCorruptedException("ObjectScanner: Unexpected content.");
+                }
+                return handles.get(scanBase + handle);
+            case TC_CLASSDESC:
+                return readClassDesc();
+            case TC_PROXYCLASSDESC:
+                return readProxyClassDesc();
+            case TC_CLASS:
+                readContent();
+                handles.add(null);
+                return null;
+            case TC_STRING:
+                handles.add(null);
+                skip(data.getShort() & 0xFFFF);
+                return null;
+            case TC_LONGSTRING:
+                handles.add(null);
+                skip(data.getLong());
+                return null;
+            case TC_ENUM:
+                readContent();
+                handles.add(null);
+                readContent();
+                return null;
+            case TC_ARRAY:
+                readArray();
+                return null;
+            case TC_OBJECT:
+                readObject();
+                return null;
+            case TC_BLOCKDATA:
+                skip(data.get() & 0xFF);
+                return null;
+            case TC_BLOCKDATALONG:
+                skip(data.getInt());
+                return null;
+            default:
+                throw new StreamCorruptedException("ObjectScanner: Unexpected content.");
+        }
+    }
+
+    /**
+     * Reads a class descriptor after its TC_CLASSDESC.
+     * @return The descriptor read
+     * @throws StreamCorruptedException If the stream holds something unexpected
+     */
+    private ClassDesc readClassDesc() throws StreamCorruptedException {
+        ClassDesc desc = new ClassDesc(readUTF());
+        data.getLong(); // serialVersionUID
+        handles.add(desc); // The descriptor's handle comes before those of its field types
+        desc.flags = data.get();
+        desc.fieldTypes = new byte[data.getShort() & 0xFFFF];
+        for (int i = 0; i < desc.fieldTypes.length; i++) {
+            desc.fieldTypes[i] = data.get();
+            skip(data.getShort() & 0xFFFF); // Field name
+            if (desc.fieldTypes[i] == 'L' || desc.fieldTypes[i] == '[') {
+                readContent(); // Field type's name
+            }
+        }
+        readAnnotation();
+        desc.parent = readContent();
+        return desc;
+    }
+
+    /**
+     * Reads a proxy class descriptor after its TC_PROXYCLASSDESC.
+     * @return The descriptor read
+     * @throws StreamCorruptedException If the stream holds something unexpected
+     */
+    private ClassDesc readProxyClassDesc() throws StreamCorruptedException {
+        ClassDesc desc = new ClassDesc("");
+        handles.add(desc);
+        desc.flags = SC_SERIALIZABLE;
+        for (int i = data.getInt(); i > 0; i--) {
+            readUTF(); // Interface names
+        }
+        readAnnotation();
+        desc.parent = readContent();
+        return desc;
+    }
+
+    /**
+     * Reads an array after its TC_ARRAY.
+     * @throws StreamCorruptedException If the stream holds something unexpected
+     */
+    private void readArray() throws StreamCorruptedException {
+        ClassDesc desc = readContent();
+        if (desc == null || desc.component == 0) {
+            throw new StreamCorruptedException("ObjectScanner: Unexpected content.");
+        }
+        handles.add(null);
+        int length = data.getInt();
+        if (desc.component == 'L' || desc.component == '[') {
+            for (int i = 0; i < length; i++) {
+                readContent();
+            }
+        } else {
+            skip((long) length * sizeOf(desc.component));
+        }
+    }
+
+    /**
+     * Reads an object after its TC_OBJECT: the fields of each serializable class in its hierarchy, topmost first.
+     * @throws StreamCorruptedException If the stream holds something unexpected
+     */
+    private void readObject() throws StreamCorruptedException {
+        ClassDesc desc = readContent();
+        if (desc == null) {
+            throw new StreamCorruptedException("ObjectScanner: Unexpected content.");
+        }
+        handles.add(null);
+        ArrayList<ClassDesc> hierarchy = new ArrayList<>();
+        for (ClassDesc i = desc; i != null; i = i.parent) {
+            hierarchy.add(0, i);
+        }
+        for (ClassDesc i : hierarchy) {
+            if ((i.flags & SC_EXTERNALIZABLE) != 0) {
+                if ((i.flags & SC_BLOCK_DATA) == 0) { // Written without block data, so its length is unknown
+                    throw new StreamCorruptedException("ObjectScanner: Unexpected content.");
+                }
+                readAnnotation();
+                continue;
+            }
+            for (byte type : i.fieldTypes) {
+                if (type == 'L' || type == '[') {
+                    readContent();
+                } else {
+                    skip(sizeOf((char) type));
+                }
+            }
+            if ((i.flags & SC_WRITE_METHOD) != 0) {
+                readAnnotation();
+            }
+        }
+    }
+
+    /**
+     * Skips content up to and including the next TC_ENDBLOCKDATA.
+     * @throws StreamCorruptedException If the stream holds something unexpected
+     */
+    private void readAnnotation() throws StreamCorruptedException {
+        while (data.get(data.position()) != TC_ENDBLOCKDATA) {
+            readContent();
+        }
+        data.get();
+    }
+
+    /**
+     * @return A string written in modified UTF-8, preceded by its length
+     */
+    private String readUTF() {
+        byte[] utf = new byte[data.getShort() & 0xFFFF];
+        data.get(utf);
+        return new String(utf, StandardCharsets.ISO_8859_1); // Only the leading '[' matters
+    }
+
+    /**
+     * Skips bytes that have already been received.
+     * @param n Number of bytes to skip
+     * @throws StreamCorruptedException If n is negative
+     */
+    private void skip(long n) throws StreamCorruptedException {
+        if (n < 0) {
+            throw new StreamCorruptedException("ObjectScanner: Unexpected content.");
+        }
+        if (n > data.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        data.position(data.position() + (int) n);
+    }
+
+    /**
+     * @param type Type code of a primitive field
+     * @return Size of the field (bytes)
+     * @throws StreamCorruptedException If the type code is not a primitive one
+     */
+    private static int sizeOf(char type) throws StreamCorruptedException {
+        switch (type) {
+            case 'B':
+            case 'Z':
+                return 1;
+            case 'C':
+            case 'S':
+                return 2;
+            case 'F':
+            case 'I':
+                return 4;
+            case 'D':
+            case 'J':
+                return 8;
+            default:
+                throw new StreamCorruptedException("ObjectScanner: Unexpected content.");
+        }
+    }
+}
@@ -5,14 +5,20 @@ import java.io.UnsupportedEncodingException;
 
 /**
  * Request represents a container of serializable data to be sent over the network.
+ * On the binary protocol, a Request's type is sent as its ordinal in Types, so both ends must share this list.
+ * BinaryCodec.VERSION is bumped whenever it changes.
  */
 public class Request implements Serializable {
+    // Fixed so that older clients on the serialized protocol stay compatible as this class changes
+    private static final long serialVersionUID = 1281020920255136093L;
     final String CHARSET = "UTF-8";
 
     public enum Types {
         // MISC + CONTROL
-        handshake,              // [C<->S] Handshake to test connection
-        handshakeResponse,      // [C<->S] |> Response to handshake (Body: None)
+        handshake,              // [C<->S] Handshake to test connection (Body: Protocol offered, optional,
+                                //         or packed protocol offered and X25519 public key to skip clientKeyExchange)
+        handshakeResponse,      // [C<->S] |> Response to handshake (Body: Protocol accepted, optional,
+                                //         or packed protocol accepted and X25519 public key)
         goodbye,                // [C-->S] Graceful disconnect (Body: None)
         goodbyeResponse,        // [C<--S] \> Confirm disconnect (Body: None)
         reset,                  // [C<->S] Hard disconnect (Body: None)
@@ -21,18 +27,43 @@ public class Request implements Serializable {
         getMessages,            // [C-->S] Get recent messages from this group (Body: None)
         getAllMessages,         // [C-->S] Get recent messages from all groups (Body: None)
         messages,               // [C<--S] |> Return recent messages (Body: Messages)
+        getMessagesSince,       // [C-->S] Get messages in this topic newer than a sequence number (Body: Number)
+        messagesSince,          // [C<--S] |> Return newer messages (Body: Latest sequence number, Messages)
+        upToDate,               // [C<--S] \> No newer messages in this group (Body: None)
         sendMessage,            // [C-->S] Send a message (Body: Message to send)
         messageConfirm,         // [C<--S] \> Confirm message sent (Body: None)
+        sendMessages,           // [C-->S] Send several messages (Body: Packed messages)
+        messagesConfirm,        // [C<--S] \> Confirm messages sent (Body: Number accepted)
+        getMessagesMulti,       // [C-->S] Get recent messages from several topics (Body: Packed topics)
+        messagesMulti,          // [C<--S] \> Return recent messages (Body: Packed messages, one per topic)
+        getHistory,             // [C-->S] Get a page of older messages in this topic (Body: Number to page back from)
+        getHistoryAt,           // [C-->S] Get the page of messages in this topic sent up to a time (Body: Time)
+        history,                // [C<--S] \> Return older messages (Body: Oldest sequence number returned, Messages)
+        search,                 // [C-->S] Search this group's recent messages (Body: Query)
+        searchResults,          // [C<--S] \> Return matching messages (Body: Messages)
+        subscribe,              // [C-->S] Push new messages in the active topic to this client (Body: None)
+        subscribeConfirm,       // [C<--S] \> Confirm subscription (Body: None)
+        unsubscribe,            // [C-->S] Stop pushing new messages (Body: None)
+        unsubscribeConfirm,     // [C<--S] \> Confirm unsubscription (Body: None)
+        messagePush,            // [C<--S] New message in the active topic, sent unprompted (Body: Message)
 
         // ENCRYPTION
         clientKey,              // [C-->S] Client's RSA public key (Body: Key)
         serverKey,              // [C<--S] \> Symmetric key generated by server (Body: Key)
+        clientKeyExchange,      // [C-->S] Client's X25519 public key, instead of clientKey (Body: Key)
+        serverKeyExchange,      // [C<--S] \> Server's X25519 public key (Body: Key)
+        resume,                 // [C-->S] Resume a session instead of clientKey (Body: Ticket, Random, Proof)
+        resumeConfirm,          // [C<--S] |> Confirm session resumed (Body: Random, Encrypted new ticket)
+        resumeError,            // [C<--S] \> Ticket not accepted, continue with clientKey (Body: None)
 
         // CREDENTIALS
         setPassword,            // [C-->S] Set password (Body: Hashed password)
         passwordConfirm,        // [C<--S] \> Confirm password set (Body: None)
         setNickname,            // [C-->S] Set nickname (Body: nickname)
-        nicknameConfirm,        // [C<--S] \> Confirm nickname set (Body: None)
+        nicknameConfirm,        // [C<--S] \> Confirm nickname set (Body: Encrypted ticket, optional)
+        login,                  // [C-->S] Set group, password and nickname at once (Body: Packed group,
+                                //         hashed password and nickname)
+        loginConfirm,           // [C<--S] \> Confirm login (Body: Encrypted ticket)
 
         // GROUPS & CHANNELS
         setGroup,               // [C-->S] Set active group
@@ -40,7 +71,7 @@ public class Request implements Serializable {
         getTopics,              // [C-->S] Get list of topics
         topics,                 // [C<--S] List of topics
         setTopic,               // [C-->S] Set active topic
-        topicConfirm,           // [C<--S] \> Confirm topic set
+        topicConfirm,           // [C<--S] \> Confirm topic set (Body: Encrypted new ticket, optional)
 
         // ERRORS
         messageError,           // [C<--S] Error getting messages
@@ -54,6 +85,7 @@ public class Request implements Serializable {
 
     private Types type;
     private byte[] body;
+    private int id; // Correlation ID, echoed by the server in its response (0: none)
 
     /**
      * Instantiates a Request.
@@ -111,6 +143,20 @@ public class Request implements Serializable {
         this.type = type;
     }
 
+    /**
+     * @return This Request's correlation ID (0 if it has none)
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @param id This Request's correlation ID
+     */
+    public void setId(int id) {
+        this.id = id;
+    }
+
     /**
      * @return This Request's body (byte[])
      */
@@ -4,7 +4,11 @@ import org.jmeifert.camber.data.ServerData;
 import org.jmeifert.camber.file.Log;
 import org.jmeifert.camber.util.ChatMap;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.concurrent.*;
 
 /**
@@ -14,11 +18,31 @@ import java.util.concurrent.*;
  */
 public class Server extends Thread {
     private final int THREAD_POOL_SIZE = ChatMap.MAX_CONCURRENT_CONNECTIONS;
+    private final int SELECTOR_EVENT_LOOPS = ChatMap.SELECTOR_EVENT_LOOPS;
+    private final int SELECTOR_WORKER_THREADS = ChatMap.SELECTOR_WORKER_THREADS;
+    private final int MAX_CONNECTIONS = ChatMap.MAX_CONNECTIONS;
+    private final int GROUP_IDLE_TIMEOUT = ChatMap.GROUP_IDLE_TIMEOUT;
+    private final int GROUP_SWEEP_INTERVAL = ChatMap.GROUP_SWEEP_INTERVAL;
+    private final int SNAPSHOT_INTERVAL = ChatMap.SNAPSHOT_INTERVAL;
+    private final int RETENTION_SWEEP_INTERVAL = ChatMap.RETENTION_SWEEP_INTERVAL;
+    private final int RETENTION_BATCH_SIZE = ChatMap.RETENTION_BATCH_SIZE;
+    private final int CACHE_BUDGET_CHECK_INTERVAL = ChatMap.CACHE_BUDGET_CHECK_INTERVAL;
+
+    public enum Modes {
+        threaded,               // One thread per connection, from a fixed pool
+        selector,               // Connections multiplexed on a few selector event loops
+        virtual,                // One virtual thread per connection (platform threads if unsupported)
+    }
 
     private int port;
+    private Modes mode;
     ServerSocket serverSocket = null;
-    ExecutorService threadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-    ServerData serverData = new ServerData();
+    ServerSocketChannel serverChannel = null;
+    ExecutorService threadPool;
+    EventLoop[] eventLoops;
+    Semaphore connectionPermits;
+    ScheduledExecutorService maintenance;
+    ServerData serverData;
 
     /**
      * Creates an instance of ServerManager on a specified port.
@@ -26,16 +50,99 @@ public class Server extends Thread {
      * @throws IllegalArgumentException If the port specified is invalid.
      */
     public Server(int port) throws IllegalArgumentException {
+        this(port, Modes.threaded);
+    }
+
+    /**
+     * Creates an instance of ServerManager on a specified port, serving connections in the given mode.
+     * @param port The port to listen on.
+     * @param mode How connections are served.
+     * @throws IllegalArgumentException If the port specified is invalid.
+     */
+    public Server(int port, Modes mode) throws IllegalArgumentException {
+        this(port, mode, null);
+    }
+
+    /**
+     * Creates an instance of ServerManager on a specified port, serving connections in the given mode.
+     * @param port The port to listen on.
+     * @param mode How connections are served.
+     * @param dataDir Directory to save groups and messages in, or null to keep them only in memory.
+     * @throws IllegalArgumentException If the port specified is invalid.
+     */
+    public Server(int port, Modes mode, Path dataDir) throws IllegalArgumentException {
         if (port <= 1024 || port > 65535) {
             throw new IllegalArgumentException("Server: Invalid port.");
         }
         this.port = port;
-        this.serverData.createGroup("default", "default");
+        this.mode = mode;
+        if (dataDir == null) {
+            serverData = new ServerData();
+        } else {
+            try {
+                serverData = new ServerData(dataDir);
+            } catch (IOException e) {
+                System.err.println("Server: Failed to load data from " + dataDir + ".");
+                throw new RuntimeException("Server: Failed to load data from " + dataDir + ".");
+            }
+        }
+        if (mode == Modes.selector) {
+            threadPool = Executors.newFixedThreadPool(SELECTOR_WORKER_THREADS);
+        } else if (mode == Modes.virtual) {
+            threadPool = newVirtualThreadExecutor();
+            connectionPermits = new Semaphore(MAX_CONNECTIONS);
+        } else {
+            threadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+        }
+        if (serverData.getGroup("default") == null) {
+            this.serverData.createGroup("default", "default");
+        }
     }
 
     @Override
     public void run() {
-        Log.log("ServerInterface: Created.");
+        Log.log("ServerInterface: Created ({} mode).", mode, 0);
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Server-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduleMaintenance("closing idle groups", this::closeIdleGroups, GROUP_SWEEP_INTERVAL);
+        scheduleMaintenance("applying retention", () -> serverData.applyRetention(RETENTION_BATCH_SIZE),
+                RETENTION_SWEEP_INTERVAL);
+        scheduleMaintenance("enforcing the cache budget", () -> serverData.enforceCacheBudget(RETENTION_BATCH_SIZE),
+                CACHE_BUDGET_CHECK_INTERVAL);
+        scheduleMaintenance("saving snapshots", serverData::saveSnapshots, SNAPSHOT_INTERVAL);
+        if (mode == Modes.selector) {
+            runSelector();
+        } else if (mode == Modes.virtual) {
+            runVirtual();
+        } else {
+            runThreaded();
+        }
+    }
+
+    /**
+     * Runs a task on the maintenance executor at a fixed delay. A task that throws is logged and runs again at its
+     * next turn, rather than being cancelled by the executor without a word.
+     * @param description What the task does, for the log
+     * @param task Task to run
+     * @param interval Delay between the end of one run and the start of the next (ms)
+     */
+    private void scheduleMaintenance(String description, Runnable task, int interval) {
+        maintenance.scheduleWithFixedDelay(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException | Error e) {
+                Log.log("Server: Failed while {}. - {}", description, e, 2);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Accepts connections and serves each one on its own thread from the pool.
+     */
+    private void runThreaded() {
         try {
             serverSocket = new ServerSocket(port);
         } catch (IOException e) {
@@ -55,11 +162,120 @@ public class Server extends Thread {
         }
     }
 
+    /**
+     * Accepts connections and serves each one on its own virtual thread. The number of open connections is
+     * limited by a semaphore rather than by the size of a thread pool.
+     */
+    private void runVirtual() {
+        try {
+            serverSocket = new ServerSocket(port);
+        } catch (IOException e) {
+            System.err.println("Server: Failed to create ServerSocket.");
+            throw new RuntimeException("Server: Failed to create ServerSocket.");
+        }
+        while (true) {
+            try {
+                connectionPermits.acquire(); // Wait for a free connection slot
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                ServerThread serverThread = new ServerThread(serverSocket.accept(), serverData);
+                threadPool.submit(() -> {
+                    try {
+                        serverThread.run();
+                    } finally {
+                        connectionPermits.release();
+                    }
+                });
+            } catch (IOException e) {
+                connectionPermits.release();
+                System.err.println("Failed to accept connection (IOException).");
+            } catch (RejectedExecutionException e) {
+                connectionPermits.release();
+                System.err.println("Failed to accept connection (Executor shut down).");
+            }
+        }
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task. Virtual threads are only available on
+     * Java 21 and newer, so on older runtimes this falls back to an unbounded pool of platform threads.
+     * @return Thread-per-task executor
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Log.log("Server: Virtual threads are not supported by this runtime, using platform threads.", 1);
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Accepts connections and spreads them across the event loops.
+     */
+    private void runSelector() {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            eventLoops = new EventLoop[SELECTOR_EVENT_LOOPS];
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop(serverData, threadPool);
+                eventLoops[i].start();
+            }
+        } catch (IOException e) {
+            System.err.println("Server: Failed to create ServerSocketChannel.");
+            throw new RuntimeException("Server: Failed to create ServerSocketChannel.");
+        }
+        int next = 0;
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    System.err.println("Failed to accept connection (IOException).");
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes temporary groups that have gone unused for too long. Runs on the maintenance executor.
+     */
+    private void closeIdleGroups() {
+        for (String i : serverData.closeIdleGroups(GROUP_IDLE_TIMEOUT)) {
+            Log.log("Server: Closed idle group '{}'.", i, 0);
+        }
+    }
+
+    /**
+     * @return Data shared by all of this server's connections
+     */
+    public ServerData getServerData() {
+        return serverData;
+    }
+
     /**
      * Shuts down the server.
      */
     public void close() {
         Log.log("Server: Closing...");
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+        }
+        if (eventLoops != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                Log.log("Server: Failed to close ServerSocketChannel.", 1);
+            }
+            for (EventLoop i : eventLoops) {
+                i.close();
+            }
+        }
         threadPool.shutdown();
         try {
             if (!threadPool.awaitTermination(10, TimeUnit.SECONDS)) {
@@ -70,6 +286,8 @@ public class Server extends Thread {
             Log.log("Server: Encountered exception during graceful shutdown, forcing hard shutdown...");
             threadPool.shutdownNow();
         }
+        serverData.close();
         Log.log("Server: Closed.");
+        Log.flush();
     }
-}
\ No newline at end of file
+}
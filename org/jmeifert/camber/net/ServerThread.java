@@ -5,20 +5,58 @@ import org.jmeifert.camber.data.Message;
 import org.jmeifert.camber.data.ServerData;
 import org.jmeifert.camber.file.Log;
 import org.jmeifert.camber.security.AESSuite;
+import org.jmeifert.camber.security.ECDHSuite;
 import org.jmeifert.camber.security.RSASuite;
+import org.jmeifert.camber.security.TicketSuite;
 import org.jmeifert.camber.util.ChatMap;
 import org.jmeifert.camber.util.Format;
+import org.jmeifert.camber.util.Packing;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * ServerThread is a state machine that handles a single client connection and
- * syncs with the ServerData it is instantiated with.
+ * syncs with the ServerData it is instantiated with. It can either run as its own thread,
+ * or be driven one request at a time by an EventLoop.
  */
-public class ServerThread extends Thread {
+public class ServerThread extends Thread implements Group.Listener {
     final int INACTIVITY_TIMEOUT = ChatMap.INACTIVITY_TIMEOUT;
+    final int MAX_BATCH_SIZE = ChatMap.MAX_BATCH_SIZE;
+    final int RESUME_RANDOM_SIZE = ChatMap.RESUME_RANDOM_SIZE;
+    final int AES_KEY_BYTES = ChatMap.AES_KEY_SIZE / 8;
+    final int TICKET_FIELDS = 4; // Group, hashed password, nickname and topic
+    final int LOGIN_FIELDS = 3; // Group, hashed password and nickname
+    final int MAX_PUSH_QUEUE = ChatMap.MAX_PUSH_QUEUE;
+
+    // Delivers pushed messages, so the thread adding a message never waits on a subscriber's connection. Each
+    // session has at most one push scheduled at a time, so its queue of tasks is bounded by the number of sessions.
+    private static final ThreadPoolExecutor PUSH_EXECUTOR = new ThreadPoolExecutor(ChatMap.PUSH_THREADS,
+            ChatMap.PUSH_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "ServerThread-push");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        PUSH_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
 
     public enum States {
         waitingForHandshake,
@@ -26,23 +64,36 @@ public class ServerThread extends Thread {
         waitingForGroup,
         waitingForPassword,
         waitingForNickname,
+        waitingForLogin,
         ready,
+        closed,
     }
 
-    private States state = States.waitingForHandshake;
+    private volatile States state = States.waitingForHandshake;
     private Socket socket;
     private Request clientReq;
     private Request serverReq;
     private ServerData serverData;
-    private ObjectInputStream inFromClient;
-    private ObjectOutputStream outToClient;
+    private InputStream in;
+    private OutputStream out;
+    private Codec codec;
+    private Codec nextCodec;
     private Group group;
     private String hashedGroupPassword;
     private String nickname;
     private String topic;
     private RSASuite rsaSuite;
     private AESSuite aesSuite;
+    private AESSuite.Modes cipherMode = AESSuite.Modes.legacy; // AES-GCM once the client offers the binary protocol
     private String crBody;
+    private volatile String subscribedTopic;
+    // Held while encrypting and writing to the client, which both the request and push paths do
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final ConcurrentLinkedQueue<Message> pushQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pushQueueSize = new AtomicInteger(0);
+    private final AtomicBoolean pushScheduled = new AtomicBoolean(false);
+    private volatile boolean pushOverflowed = false;
+    private final AtomicBoolean joined = new AtomicBoolean(false);
 
     /**
      * Instantiates a ServerThread.
@@ -58,196 +109,564 @@ public class ServerThread extends Thread {
     public void run() {
         try {
             socket.setSoTimeout(INACTIVITY_TIMEOUT);
-            outToClient = new ObjectOutputStream(socket.getOutputStream());
-            inFromClient = new ObjectInputStream(socket.getInputStream());
-
-            Log.log("Connected " + socket.getInetAddress().toString() + "."); // DEBUG
+            openStreams(new BufferedInputStream(socket.getInputStream()),
+                    new BufferedOutputStream(socket.getOutputStream()));
 
             // Main Loop
-            while(true) {
-                clientReq = (Request) inFromClient.readObject(); // Get next input from client
-
-                if (clientReq.getType() == Request.Types.goodbye) { // Handle graceful disconnect
-                    serverReq = new Request(Request.Types.goodbyeResponse);
-                    outToClient.writeObject(serverReq);
-                    outToClient.flush();
-                    Log.log("Disconnected " + socket.getInetAddress().toString() + "."); // DEBUG
-                    close();
-                    return;
+            while (serveNext()) { }
+            close();
+        } catch (Exception e) {
+            handleException(e);
+        }
+    }
+
+    /**
+     * Sets up the streams used to talk to the client. Every connection starts out on the original
+     * (serialized) protocol, and may switch to the binary protocol during the handshake.
+     * @param in Stream to read client requests from (buffered)
+     * @param out Stream to write server responses to (buffered)
+     * @throws IOException If the stream header cannot be sent
+     */
+    void openStreams(InputStream in, OutputStream out) throws IOException {
+        this.in = in;
+        this.out = out;
+        socket.setTcpNoDelay(true); // Responses are flushed whole, don't hold them back for ACKs
+        codec = new ObjectCodec(in, out);
+        Log.log("Connected {}.", socket.getInetAddress(), 0); // DEBUG
+    }
+
+    /**
+     * Reads the next request from the client, acts on it, and sends the response.
+     * @return False if the connection has been closed and should not be served any further
+     * @throws IOException If reading from or writing to the client fails
+     * @throws ClassNotFoundException If the client sent something that is not a Request
+     * @throws GeneralSecurityException If an encrypted request could not be decrypted
+     */
+    boolean serveNext() throws IOException, ClassNotFoundException, GeneralSecurityException {
+        clientReq = codec.read(); // Get next input from client
+        if (clientReq == null) {
+            return true;
+        }
+        sendLock.lock();
+        try {
+            serverReq = respond(clientReq);
+            if (serverReq != null) {
+                serverReq.setId(clientReq.getId()); // Echo the correlation ID
+                codec.write(serverReq);
+            }
+            if (nextCodec != null) { // Switch protocols once the handshake response is out
+                codec = nextCodec;
+                nextCodec = null;
+            }
+        } finally {
+            sendLock.unlock();
+        }
+        return state != States.closed;
+    }
+
+    /**
+     * Queues a new message in the subscribed topic to be pushed to the client. A client that falls more than
+     * MAX_PUSH_QUEUE messages behind is disconnected: its socket is closed here, which also frees a push thread
+     * stuck writing to it, and the next push finishes closing the session.
+     * @param message Message that was added
+     */
+    @Override
+    public void onMessage(Message message) {
+        if (pushOverflowed) {
+            return;
+        }
+        if (pushQueueSize.incrementAndGet() > MAX_PUSH_QUEUE) {
+            pushOverflowed = true;
+            Log.log("Disconnecting {} (too slow to receive pushed messages).", socket.getInetAddress(), 1);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.log("Failed to close connection to {}.", socket.getInetAddress(), 1);
+            }
+        } else {
+            pushQueue.add(message);
+        }
+        schedulePush();
+    }
+
+    /**
+     * Schedules a push on the push executor, unless one is already scheduled.
+     */
+    private void schedulePush() {
+        if (pushScheduled.compareAndSet(false, true)) {
+            try {
+                PUSH_EXECUTOR.execute(this::push);
+            } catch (RejectedExecutionException e) {
+                pushScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Pushes every queued message to the client. Runs on the push executor.
+     */
+    private void push() {
+        if (pushOverflowed) {
+            pushQueue.clear();
+            pushScheduled.set(false);
+            close();
+            return;
+        }
+        sendLock.lock();
+        try {
+            Message message;
+            while ((message = pushQueue.poll()) != null) {
+                pushQueueSize.decrementAndGet();
+                if (state == States.ready && message.getTopic().equals(subscribedTopic)) {
+                    codec.write(new Request(Request.Types.messagePush, aesSuite.encryptString(message.toString())));
+                }
+            }
+        } catch (Exception e) {
+            handleException(e);
+        } finally {
+            sendLock.unlock();
+            pushScheduled.set(false);
+        }
+        if ((!pushQueue.isEmpty() || pushOverflowed) && state != States.closed) { // Arrived after we stopped polling
+            schedulePush();
+        }
+    }
+
+    /**
+     * Moves this session's subscription (if any) to a new topic.
+     * @param newTopic Topic to subscribe to, or null to unsubscribe
+     */
+    private void resubscribe(String newTopic) {
+        if (subscribedTopic != null) {
+            group.unsubscribe(subscribedTopic, this);
+        }
+        subscribedTopic = newTopic;
+        if (newTopic != null) {
+            group.subscribe(newTopic, this);
+        }
+    }
+
+    /**
+     * Unsubscribes from and leaves the current group, if this session has joined one.
+     */
+    private void leaveGroup() {
+        if (subscribedTopic != null) {
+            group.unsubscribe(subscribedTopic, this);
+            subscribedTopic = null;
+        }
+        if (joined.compareAndSet(true, false)) {
+            group.leave();
+        }
+    }
+
+    /**
+     * Checks whether serveNext() can read the next request without waiting for the client.
+     * @param received Bytes received from the client but not read yet, from position to limit (left unchanged)
+     * @return True if the next request has been received whole
+     */
+    boolean hasRequest(ByteBuffer received) {
+        return codec.hasRequest(received);
+    }
+
+    /**
+     * Advances the state machine with a request from the client.
+     * @param clientReq Request received from the client
+     * @return Response to send to the client, or null if nothing should be sent
+     * @throws IOException If the client's key is malformed
+     * @throws GeneralSecurityException If an encrypted request could not be decrypted
+     */
+    private Request respond(Request clientReq) throws IOException, GeneralSecurityException {
+        if (clientReq.getType() == Request.Types.goodbye) { // Handle graceful disconnect
+            Log.log("Disconnected {}.", socket.getInetAddress(), 0); // DEBUG
+            state = States.closed;
+            return new Request(Request.Types.goodbyeResponse);
+        }
+
+        if (clientReq.getType() == Request.Types.reset) { // Handle hard disconnect
+            Log.log("Forcefully disconnected {}.", socket.getInetAddress(), 0); // DEBUG
+            state = States.closed;
+            return null;
+        }
+
+        // Act on current state
+        switch (state) {
+            case waitingForHandshake: // Initial handshake - send response and advance
+                if (clientReq.getType() == Request.Types.handshake) {
+                    state = States.waitingForClientKey;
+                    cipherMode = AESSuite.Modes.legacy; // Until the client offers the binary protocol
+                    if (clientReq.getString().equals(BinaryCodec.HANDSHAKE_FLAG)) { // Client offers binary protocol
+                        cipherMode = AESSuite.Modes.gcm;
+                        nextCodec = new BinaryCodec(in, out);
+                        return new Request(Request.Types.handshakeResponse, BinaryCodec.HANDSHAKE_FLAG);
+                    }
+                    List<String> offer;
+                    try {
+                        offer = Packing.unpack(clientReq.getBytes(), BinaryCodec.HANDSHAKE_FIELDS);
+                    } catch (IllegalArgumentException e) {
+                        return new Request(Request.Types.handshakeResponse);
+                    }
+                    if (offer.size() == BinaryCodec.HANDSHAKE_FIELDS &&
+                            offer.get(0).equals(BinaryCodec.HANDSHAKE_FLAG)) {
+                        // Client offers the binary protocol and its X25519 key, so it can log in right away
+                        ECDHSuite ecdhSuite = new ECDHSuite();
+                        try {
+                            aesSuite = new AESSuite(ecdhSuite.deriveKey(Base64.getDecoder().decode(offer.get(1)),
+                                    false), AESSuite.Roles.server);
+                        } catch (IllegalArgumentException e) { // Invalid key or Base64
+                            state = States.waitingForHandshake;
+                            return new Request(Request.Types.sequenceError);
+                        }
+                        cipherMode = AESSuite.Modes.gcm;
+                        nextCodec = new BinaryCodec(in, out);
+                        state = States.waitingForLogin;
+                        String serverKey = Base64.getEncoder().encodeToString(ecdhSuite.getPublicKey());
+                        return new Request(Request.Types.handshakeResponse,
+                                Packing.pack(List.of(BinaryCodec.HANDSHAKE_FLAG, serverKey)));
+                    }
+                    return new Request(Request.Types.handshakeResponse);
                 }
+                return new Request(Request.Types.sequenceError);
 
-                if (clientReq.getType() == Request.Types.reset) { // Handle hard disconnect
-                    Log.log("Forcefully disconnected " + socket.getInetAddress().toString() + "."); // DEBUG
-                    close();
-                    return;
+            case waitingForClientKey: // Client key - Set up encryption
+                if (clientReq.getType() == Request.Types.clientKey) {
+                    rsaSuite = new RSASuite(clientReq.getBytes());
+                    aesSuite = new AESSuite(cipherMode);
+                    state = States.waitingForGroup;
+                    return new Request(Request.Types.serverKey, rsaSuite.encryptBytes(aesSuite.getKey()));
+                } else if (clientReq.getType() == Request.Types.clientKeyExchange) {
+                    ECDHSuite ecdhSuite = new ECDHSuite();
+                    try {
+                        aesSuite = new AESSuite(ecdhSuite.deriveKey(clientReq.getBytes(), false),
+                                AESSuite.Roles.server, cipherMode);
+                    } catch (IllegalArgumentException e) { // Invalid key
+                        state = States.waitingForHandshake;
+                        return new Request(Request.Types.sequenceError);
+                    }
+                    state = States.waitingForGroup;
+                    return new Request(Request.Types.serverKeyExchange, ecdhSuite.getPublicKey());
+                } else if (clientReq.getType() == Request.Types.resume) {
+                    return resume(clientReq.getBytes()); // Stays here if refused, for the client to fall back on
                 }
+                state = States.waitingForHandshake;
+                return new Request(Request.Types.sequenceError);
 
-                // Act on current state
-                switch (state) {
-                    case waitingForHandshake: // Initial handshake - send response and advance
-                        if (clientReq.getType() == Request.Types.handshake) {
-                            serverReq = new Request(Request.Types.handshakeResponse);
-                            state = States.waitingForClientKey;
-                        } else {
-                            serverReq = new Request(Request.Types.sequenceError);
+            case waitingForGroup: // Group - Set group (Encrypted)
+                if (clientReq.getType() != Request.Types.setGroup) {
+                    state = States.waitingForHandshake;
+                    return new Request(Request.Types.sequenceError);
+                }
+                crBody = aesSuite.decryptString(clientReq.getBytes());
+                if (Format.isValidName(crBody)) {
+                    leaveGroup(); // In case the client is starting over
+                    group = serverData.getGroup(crBody);
+                    if (group != null) {
+                        state = States.waitingForPassword;
+                        return new Request(Request.Types.groupConfirm);
+                    }
+                }
+                state = States.waitingForHandshake;
+                return new Request(Request.Types.groupError);
+
+            case waitingForPassword: // Password - Set Password (Encrypted)
+                if (clientReq.getType() != Request.Types.setPassword) {
+                    state = States.waitingForHandshake;
+                    return new Request(Request.Types.sequenceError);
+                }
+                crBody = aesSuite.decryptString(clientReq.getBytes());
+                if (Format.isValidPasswordHash(crBody) && group.verifyPassword(crBody)) {
+                    if (!group.join()) { // Removed since it was looked up
+                        state = States.waitingForHandshake;
+                        return new Request(Request.Types.groupError);
+                    }
+                    joined.set(true);
+                    hashedGroupPassword = crBody;
+                    state = States.waitingForNickname;
+                    return new Request(Request.Types.passwordConfirm);
+                }
+                state = States.waitingForHandshake;
+                return new Request(Request.Types.passwordError);
+
+            case waitingForNickname: // Nickname - Set Nickname (Encrypted)
+                if (clientReq.getType() != Request.Types.setNickname) {
+                    state = States.waitingForHandshake;
+                    return new Request(Request.Types.sequenceError);
+                }
+                crBody = aesSuite.decryptString(clientReq.getBytes());
+                if (Format.isValidName(crBody)) {
+                    nickname = crBody;
+                    state = States.ready;
+                    topic = "default";
+                    return new Request(Request.Types.nicknameConfirm, aesSuite.encryptBytes(issueTicket()));
+                }
+                state = States.waitingForHandshake;
+                return new Request(Request.Types.nicknameError);
+
+            case waitingForLogin: // Login - Set group, password and nickname at once (Encrypted)
+                if (clientReq.getType() != Request.Types.login) {
+                    state = States.waitingForHandshake;
+                    return new Request(Request.Types.sequenceError);
+                }
+                List<String> credentials;
+                try {
+                    credentials = Packing.unpack(aesSuite.decryptBytes(clientReq.getBytes()), LOGIN_FIELDS);
+                } catch (IllegalArgumentException e) {
+                    credentials = List.of();
+                }
+                if (credentials.size() != LOGIN_FIELDS) {
+                    state = States.waitingForHandshake;
+                    return new Request(Request.Types.sequenceError);
+                }
+                Request.Types error = enter(credentials.get(0), credentials.get(1), credentials.get(2), "default");
+                if (error != null) {
+                    state = States.waitingForHandshake;
+                    return new Request(error);
+                }
+                return new Request(Request.Types.loginConfirm, aesSuite.encryptBytes(issueTicket()));
+
+            case ready: // Ready - Normal operation (Encrypted)
+                if (group.isClosed()) { // Group was removed - disconnect
+                    Log.log("Disconnected {} (group closed).", socket.getInetAddress(), 0);
+                    state = States.closed;
+                    return new Request(Request.Types.groupError);
+                }
+                // Act on request type
+                switch (clientReq.getType()) {
+                    case sendMessage: // Send a message
+                        crBody = aesSuite.decryptString(clientReq.getBytes());
+                        if (Format.isValidMessage(crBody)) {
+                            group.addMessage(new Message(this.topic, nickname, crBody));
                         }
-                        outToClient.writeObject(serverReq);
-                        outToClient.flush();
-                        break;
-
-                    case waitingForClientKey: // Client key - Set up encryption
-                        if (clientReq.getType() == Request.Types.clientKey) {
-                            rsaSuite = new RSASuite(clientReq.getBytes());
-                            aesSuite = new AESSuite();
-                            serverReq = new Request(Request.Types.serverKey, rsaSuite.encryptBytes(aesSuite.getKey()));
-                            state = States.waitingForGroup;
-                        } else {
-                            serverReq = new Request(Request.Types.sequenceError);
-                            state = States.waitingForHandshake;
+                        return new Request(Request.Types.messageConfirm);
+
+                    case sendMessages: // Send several messages
+                        List<String> bodies;
+                        try {
+                            bodies = Packing.unpack(aesSuite.decryptBytes(clientReq.getBytes()), MAX_BATCH_SIZE);
+                        } catch (IllegalArgumentException e) {
+                            return new Request(Request.Types.messageError);
                         }
-                        outToClient.writeObject(serverReq);
-                        outToClient.flush();
-                        break;
-
-                    case waitingForGroup: // Group - Set group (Encrypted)
-                        if (clientReq.getType() == Request.Types.setGroup) {
-                            crBody = aesSuite.decryptString(clientReq.getBytes());
-                            if (Format.isValidName(crBody)) {
-                                group = serverData.getGroup(crBody);
-                                if (group != null) {
-                                    serverReq = new Request(Request.Types.groupConfirm);
-                                    state = States.waitingForPassword;
-                                } else {
-                                    serverReq = new Request(Request.Types.groupError);
-                                    state = States.waitingForHandshake;
-                                }
-                            } else {
-                                serverReq = new Request(Request.Types.groupError);
-                                state = States.waitingForHandshake;
+                        ArrayList<Message> batch = new ArrayList<>(bodies.size());
+                        for (String i : bodies) {
+                            try {
+                                batch.add(new Message(this.topic, nickname, i)); // Validates the message
+                            } catch (IllegalArgumentException e) {
+                                // Skip invalid messages, the count we return tells the client
                             }
-                        } else {
-                            serverReq = new Request(Request.Types.sequenceError);
-                            state = States.waitingForHandshake;
                         }
-                        outToClient.writeObject(serverReq);
-                        outToClient.flush();
-                        break;
-
-                    case waitingForPassword: // Password - Set Password (Encrypted)
-                        if (clientReq.getType() == Request.Types.setPassword) {
-                            crBody = aesSuite.decryptString(clientReq.getBytes());
-                            if (Format.isValidPasswordHash(crBody)) {
-                                if (group.verifyPassword(crBody)) {
-                                    hashedGroupPassword = crBody;
-                                    serverReq = new Request(Request.Types.passwordConfirm);
-                                    state = States.waitingForNickname;
-                                } else {
-                                    serverReq = new Request(Request.Types.passwordError);
-                                    state = States.waitingForHandshake;
-                                }
-                            } else {
-                                serverReq = new Request(Request.Types.passwordError);
-                                state = States.waitingForHandshake;
-                            }
-                        } else {
-                            serverReq = new Request(Request.Types.sequenceError);
-                            state = States.waitingForHandshake;
+                        group.addMessages(batch);
+                        return new Request(Request.Types.messagesConfirm, Integer.toString(batch.size()));
+
+                    case getMessagesMulti: // Get messages in several topics
+                        List<String> topics;
+                        try {
+                            topics = Packing.unpack(aesSuite.decryptBytes(clientReq.getBytes()), MAX_BATCH_SIZE);
+                        } catch (IllegalArgumentException e) {
+                            return new Request(Request.Types.messageError);
                         }
-                        outToClient.writeObject(serverReq);
-                        outToClient.flush();
-                        break;
-
-                    case waitingForNickname: // Nickname - Set Nickname (Encrypted)
-                        if (clientReq.getType() == Request.Types.setNickname) {
-                            crBody = aesSuite.decryptString(clientReq.getBytes());
-                            if (Format.isValidName(crBody)) {
-                                nickname = crBody;
-                                state = States.ready;
-                                topic = "default";
-                                serverReq = new Request(Request.Types.nicknameConfirm);
-                            } else {
-                                serverReq = new Request(Request.Types.nicknameError);
-                                state = States.waitingForHandshake;
+                        for (String i : topics) {
+                            if (!Format.isValidName(i)) {
+                                return new Request(Request.Types.topicError);
                             }
-                        } else {
-                            serverReq = new Request(Request.Types.sequenceError);
-                            state = States.waitingForHandshake;
                         }
-                        outToClient.writeObject(serverReq);
-                        outToClient.flush();
-                        break;
-
-                    case ready: // Ready - Normal operation (Encrypted)
-                        // Act on request type
-                        switch (clientReq.getType()) {
-                            case sendMessage: // Send a message
-                                crBody = aesSuite.decryptString(clientReq.getBytes());
-                                if (Format.isValidMessage(crBody)) {
-                                    group.addMessage(new Message(this.topic, nickname, crBody));
-                                }
-                                serverReq = new Request(Request.Types.messageConfirm);
-                                break;
-
-                            case getMessages: // Get messages in current topic
-                                serverReq = new Request(Request.Types.messages,
-                                        aesSuite.encryptString(group.getMessages(this.topic)));
-                                break;
-
-                            case getAllMessages: // Get messages from all topics
-                                crBody = aesSuite.decryptString(clientReq.getBytes());
-                                serverReq = new Request(Request.Types.messages,
-                                        aesSuite.encryptString(group.getMessages()));
-                                break;
-
-                            case getTopics: // Get active topics
-                                serverReq = new Request(Request.Types.topics,
-                                        aesSuite.encryptString(group.getTopics()));
-                                break;
-
-                            case setTopic: // Change topic
-                                crBody = aesSuite.decryptString(clientReq.getBytes());
-                                if (Format.isValidName(crBody)) {
-                                    this.topic = crBody;
-                                    serverReq = new Request(Request.Types.topicConfirm);
-                                } else {
-                                    serverReq = new Request(Request.Types.topicError);
-                                }
-                                break;
-
-                            default: // If request type is not valid
-                                serverReq = new Request(Request.Types.illegalRequestError);
-                                break;
+                        Map<String, String> msgsByTopic = group.getMessages(topics);
+                        return new Request(Request.Types.messagesMulti,
+                                aesSuite.encryptBytes(Packing.pack(new ArrayList<>(msgsByTopic.values()))));
+
+                    case getMessages: // Get messages in current topic
+                        return new Request(Request.Types.messages,
+                                aesSuite.encryptString(group.getMessages(this.topic)));
+
+                    case getMessagesSince: // Get newer messages in current topic
+                        long seq;
+                        try {
+                            seq = Long.parseLong(aesSuite.decryptString(clientReq.getBytes()));
+                        } catch (NumberFormatException e) {
+                            return new Request(Request.Types.messageError);
+                        }
+                        if (seq >= group.getLastSeq()) { // Nothing new - skip formatting and encryption
+                            return new Request(Request.Types.upToDate);
+                        }
+                        return new Request(Request.Types.messagesSince,
+                                aesSuite.encryptString(group.getMessagesSince(this.topic, seq)));
+
+                    case getHistory: // Get a page of older messages in current topic
+                        long beforeSeq;
+                        try {
+                            beforeSeq = Long.parseLong(aesSuite.decryptString(clientReq.getBytes()));
+                        } catch (NumberFormatException e) {
+                            return new Request(Request.Types.messageError);
+                        }
+                        return new Request(Request.Types.history,
+                                aesSuite.encryptString(group.getHistory(this.topic, beforeSeq)));
+
+                    case getHistoryAt: // Get the page of messages in current topic sent up to a time
+                        long time;
+                        try {
+                            time = Long.parseLong(aesSuite.decryptString(clientReq.getBytes()));
+                        } catch (NumberFormatException e) {
+                            return new Request(Request.Types.messageError);
+                        }
+                        return new Request(Request.Types.history,
+                                aesSuite.encryptString(group.getHistoryAt(this.topic, time)));
+
+                    case search: // Search recent messages in this group
+                        try {
+                            return new Request(Request.Types.searchResults,
+                                    aesSuite.encryptString(group.search(aesSuite.decryptString(clientReq.getBytes()))));
+                        } catch (IllegalArgumentException e) {
+                            return new Request(Request.Types.messageError);
+                        }
+
+                    case getAllMessages: // Get messages from all topics
+                        return new Request(Request.Types.messages,
+                                aesSuite.encryptString(group.getMessages()));
+
+                    case getTopics: // Get active topics
+                        return new Request(Request.Types.topics,
+                                aesSuite.encryptString(group.getTopics()));
+
+                    case setTopic: // Change topic
+                        crBody = aesSuite.decryptString(clientReq.getBytes());
+                        if (Format.isValidName(crBody)) {
+                            this.topic = crBody;
+                            if (subscribedTopic != null) { // Subscription follows the active topic
+                                resubscribe(crBody);
+                            }
+                            return new Request(Request.Types.topicConfirm, aesSuite.encryptBytes(issueTicket()));
                         }
-                        outToClient.writeObject(serverReq); // Send response
-                        outToClient.flush();
+                        return new Request(Request.Types.topicError);
+
+                    case subscribe: // Push new messages in current topic
+                        resubscribe(this.topic);
+                        return new Request(Request.Types.subscribeConfirm);
+
+                    case unsubscribe: // Stop pushing new messages
+                        resubscribe(null);
+                        return new Request(Request.Types.unsubscribeConfirm);
+
+                    default: // If request type is not valid
+                        return new Request(Request.Types.illegalRequestError);
                 }
+
+            default: // Closed - Nothing more to do
+                return null;
+        }
+    }
+
+    /**
+     * Joins a group and makes this session ready, all at once rather than one setup step at a time.
+     * @param groupName Name of the group to join
+     * @param hash The group's hashed password
+     * @param nick Nickname to use
+     * @param activeTopic Topic to start out in
+     * @return Null if the session is ready, or the type of error to respond with if not
+     */
+    private Request.Types enter(String groupName, String hash, String nick, String activeTopic) {
+        Group newGroup = Format.isValidName(groupName) ? serverData.getGroup(groupName) : null;
+        if (newGroup == null) {
+            return Request.Types.groupError;
+        }
+        if (!Format.isValidPasswordHash(hash) || !newGroup.verifyPassword(hash)) {
+            return Request.Types.passwordError;
+        }
+        if (!Format.isValidName(nick) || !Format.isValidName(activeTopic)) {
+            return Request.Types.nicknameError;
+        }
+        leaveGroup(); // In case the client is starting over
+        if (!newGroup.join()) { // Removed since it was looked up
+            return Request.Types.groupError;
+        }
+        group = newGroup;
+        joined.set(true);
+        hashedGroupPassword = hash;
+        nickname = nick;
+        topic = activeTopic;
+        state = States.ready;
+        return null;
+    }
+
+    /**
+     * Seals this session's key, group, hashed password, nickname and topic into a resumption ticket.
+     * @return The ticket
+     */
+    private byte[] issueTicket() {
+        byte[] fields = Packing.pack(List.of(group.getName(), hashedGroupPassword, nickname, topic));
+        return serverData.getTickets().issue(ByteBuffer.allocate(AES_KEY_BYTES + fields.length)
+                .put(aesSuite.getKey()).put(fields).array());
+    }
+
+    /**
+     * Restores the session sealed in a resumption ticket, skipping the key exchange, group, password and nickname
+     * steps. The client proves it holds the ticket's session key with an HMAC of the ticket and a random value, and
+     * the resumed session's key is derived from both sides' random values. The group must still exist and accept
+     * the ticket's password.
+     * @param body Ticket length (4 bytes), ticket, the client's random value and its proof (see TicketSuite.prove)
+     * @return resumeConfirm with the server's random value and a new ticket, or resumeError if refused
+     */
+    private Request resume(byte[] body) {
+        byte[] ticketKey = new byte[AES_KEY_BYTES];
+        byte[] clientRandom = new byte[RESUME_RANDOM_SIZE];
+        byte[] proof = new byte[TicketSuite.PROOF_SIZE];
+        List<String> fields;
+        try {
+            ByteBuffer request = ByteBuffer.wrap(body);
+            byte[] ticket = new byte[request.getInt()];
+            request.get(ticket);
+            request.get(clientRandom);
+            request.get(proof);
+            ByteBuffer contents = ByteBuffer.wrap(serverData.getTickets().redeem(ticket));
+            contents.get(ticketKey);
+            byte[] packed = new byte[contents.remaining()];
+            contents.get(packed);
+            fields = Packing.unpack(packed, TICKET_FIELDS);
+            if (request.hasRemaining() || !TicketSuite.verify(ticketKey, ticket, clientRandom, proof)) {
+                throw new GeneralSecurityException("Invalid proof.");
             }
-        } catch (SocketTimeoutException e) {
-            Log.log("Connection to " + socket.getInetAddress().toString() + " timed out.", 1);
-            close();
-        } catch (IOException e) {
-            Log.log("IOException serving " + socket.getInetAddress().toString() +
-                    ". - " + e.getMessage(), 1);
-            close();
-        } catch (ClassNotFoundException e) {
-            Log.log("ClassNotFoundException serving " + socket.getInetAddress().toString() +
-                    ". - " + e.getMessage(), 2);
-            close();
-        } catch (GeneralSecurityException e) {
-            Log.log("GeneralSecurityException serving " + socket.getInetAddress().toString() +
-                    ". - " + e.getMessage(), 2);
-            close();
-        } catch (Exception e) {
-            Log.log("Unexpected exception serving " + socket.getInetAddress().toString() +
-                    ". - " + e.getMessage(), 2);
-            close();
+        } catch (GeneralSecurityException | BufferUnderflowException | IllegalArgumentException |
+                NegativeArraySizeException e) {
+            Log.log("Refused resumption ticket from {}. - {}", socket.getInetAddress(), e.getMessage(), 1);
+            return new Request(Request.Types.resumeError);
+        }
+        if (fields.size() != TICKET_FIELDS) {
+            return new Request(Request.Types.resumeError);
+        }
+        if (enter(fields.get(0), fields.get(1), fields.get(2), fields.get(3)) != null) {
+            return new Request(Request.Types.resumeError); // Removed, or its password changed
+        }
+        byte[] serverRandom = new byte[RESUME_RANDOM_SIZE];
+        new SecureRandom().nextBytes(serverRandom);
+        aesSuite = new AESSuite(TicketSuite.deriveKey(ticketKey, clientRandom, serverRandom), AESSuite.Roles.server,
+                cipherMode);
+        byte[] newTicket = aesSuite.encryptBytes(issueTicket());
+        return new Request(Request.Types.resumeConfirm, ByteBuffer.allocate(RESUME_RANDOM_SIZE + newTicket.length)
+                .put(serverRandom).put(newTicket).array());
+    }
+
+    /**
+     * Logs an exception thrown while serving the client and closes the connection.
+     * @param e Exception to handle
+     */
+    void handleException(Exception e) {
+        if (e instanceof SocketTimeoutException) {
+            Log.log("Connection to {} timed out.", socket.getInetAddress(), 1);
+        } else if (e instanceof IOException) {
+            Log.log("IOException serving {}. - {}", socket.getInetAddress(), e.getMessage(), 1);
+        } else if (e instanceof ClassNotFoundException) {
+            Log.log("ClassNotFoundException serving {}. - {}", socket.getInetAddress(), e.getMessage(), 2);
+        } else if (e instanceof GeneralSecurityException) {
+            Log.log("GeneralSecurityException serving {}. - {}", socket.getInetAddress(), e.getMessage(), 2);
+        } else {
+            Log.log("Unexpected exception serving {}. - {}", socket.getInetAddress(), e.getMessage(), 2);
         }
+        close();
     }
 
     /**
      * Attempts to close the socket gracefully. If it can't, force it to close.
      */
     public void close() {
+        state = States.closed;
+        leaveGroup();
         try {
             socket.close();
         } catch (IOException f) {
@@ -2,41 +2,110 @@ package org.jmeifert.camber.security;
 
 import org.jmeifert.camber.util.ChatMap;
 import javax.crypto.*;
-import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.*;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * AESSuite is a symmetric encryption suite.
+ * AESSuite is a symmetric encryption suite using AES-GCM, so every message is authenticated as well as encrypted.
+ * Each encrypted message starts with its nonce: a prefix picked at random for this AESSuite, followed by a counter
+ * of the messages it has encrypted, so this AESSuite never uses a nonce twice. The server's and the client's
+ * prefixes differ in their top bit, and each side rejects messages carrying its own, so one side's messages can't
+ * be reflected back at it.
+ * Sessions set up with the old handshake use the original cipher instead (AES in ECB mode, with no nonce), so
+ * clients that predate AES-GCM can still connect.
+ * Cipher instances are created once and reused for every message. An AESSuite may be used by several threads.
  */
 public class AESSuite {
     private final int AES_KEY_SIZE = ChatMap.AES_KEY_SIZE;
     private final String CHARSET = "UTF-8";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String LEGACY_TRANSFORMATION = "AES"; // ECB with PKCS#5 padding
+    private static final int NONCE_SIZE = 12; // Prefix and counter (bytes)
+    private static final int TAG_SIZE = 128; // Authentication tag (bits)
+    private static final int CLIENT_ROLE = 0x80000000; // Nonce prefix bit set by the client
+    public static final int OVERHEAD = NONCE_SIZE + TAG_SIZE / 8; // Max bytes added to each message when encrypted
+
+    public enum Roles {
+        server,                 // Generates the key, or agrees on it as the server
+        client,                 // Loads the key sent by the server, or agrees on it as the client
+    }
+
+    public enum Modes {
+        gcm,                    // AES-GCM with counter nonces, for sessions set up with the binary protocol
+        legacy,                 // The original AES in ECB mode, for sessions set up with the old handshake
+    }
 
     private KeyGenerator keyGenerator;
     private SecretKey key;
-    private IvParameterSpec iv;
-    private Cipher encryptCipher;
-    private Cipher decryptCipher;
+    private final Modes mode;
+    private final int noncePrefix;
+
+    // Guarded by encryptLock
+    private final ReentrantLock encryptLock = new ReentrantLock();
+    private final Cipher encryptCipher;
+    private final byte[] encryptNonce = new byte[NONCE_SIZE];
+    private long counter = 0;
+
+    // Guarded by decryptLock
+    private final ReentrantLock decryptLock = new ReentrantLock();
+    private final Cipher decryptCipher;
+    private final byte[] decryptNonce = new byte[NONCE_SIZE];
 
     /**
-     * Instantiates an AESSuite with a given 256-bit key.
+     * Instantiates a client's AESSuite with a given 256-bit key.
      * @param keyToLoad Key to use
      * @throws IllegalArgumentException if key is invalid.
      */
     public AESSuite(byte[] keyToLoad) throws IllegalArgumentException {
+        this(keyToLoad, Roles.client);
+    }
+
+    /**
+     * Instantiates an AESSuite with a given 256-bit key.
+     * @param keyToLoad Key to use
+     * @param role Which side of the connection the AESSuite is used on
+     * @throws IllegalArgumentException if key is invalid.
+     */
+    public AESSuite(byte[] keyToLoad, Roles role) throws IllegalArgumentException {
+        this(keyToLoad, role, Modes.gcm);
+    }
+
+    /**
+     * Instantiates an AESSuite with a given 256-bit key.
+     * @param keyToLoad Key to use
+     * @param role Which side of the connection the AESSuite is used on
+     * @param mode Cipher the session negotiated
+     * @throws IllegalArgumentException if key is invalid.
+     */
+    public AESSuite(byte[] keyToLoad, Roles role, Modes mode) throws IllegalArgumentException {
         if (keyToLoad.length != (AES_KEY_SIZE / 8)) {
             throw new IllegalArgumentException("AESSuite - Wrong key size!");
         }
         this.keyGenerator = null;
         this.key = new SecretKeySpec(keyToLoad, "AES");
+        this.mode = mode;
+        this.noncePrefix = (role == Roles.client ? CLIENT_ROLE : 0) | (new SecureRandom().nextInt() & ~CLIENT_ROLE);
+        this.encryptCipher = newCipher(mode);
+        this.decryptCipher = newCipher(mode);
     }
 
     /**
-     * Instantiates an AESSuite.
+     * Instantiates a server's AESSuite with a newly generated key.
      */
     public AESSuite() {
+        this(Modes.gcm);
+    }
+
+    /**
+     * Instantiates a server's AESSuite with a newly generated key.
+     * @param mode Cipher the session negotiated
+     */
+    public AESSuite(Modes mode) {
         try {
             this.keyGenerator = KeyGenerator.getInstance("AES");
             this.keyGenerator.init(AES_KEY_SIZE);
@@ -44,6 +113,24 @@ public class AESSuite {
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("Algorithm 'AES' not found! - You should NOT be seeing this error!");
         }
+        this.mode = mode;
+        this.noncePrefix = new SecureRandom().nextInt() & ~CLIENT_ROLE;
+        this.encryptCipher = newCipher(mode);
+        this.decryptCipher = newCipher(mode);
+    }
+
+    /**
+     * @param mode Cipher to create
+     * @return A new, uninitialized cipher
+     */
+    private static Cipher newCipher(Modes mode) {
+        try {
+            return Cipher.getInstance(mode == Modes.gcm ? TRANSFORMATION : LEGACY_TRANSFORMATION);
+        } catch (NoSuchPaddingException e) {
+            throw new RuntimeException("AESSuite: No such padding - You should NOT be seeing this error.");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("AESSuite: No such algorithm 'AES' - You should NOT be seeing this error.");
+        }
     }
 
     /**
@@ -52,20 +139,45 @@ public class AESSuite {
      * @return Encrypted ciphertext (bytes)
      */
     public byte[] encryptBytes(byte[] plaintextBytes) {
+        ByteBuffer ciphertext = ByteBuffer.allocate(plaintextBytes.length + OVERHEAD);
+        int length = encrypt(ByteBuffer.wrap(plaintextBytes), ciphertext);
+        return length == ciphertext.capacity() ? ciphertext.array() : Arrays.copyOf(ciphertext.array(), length);
+    }
+
+    /**
+     * Encrypts the remaining bytes of a buffer into another buffer, such as an outgoing frame, without copying
+     * them to any intermediate arrays.
+     * @param plaintext Bytes to encrypt. Its position is advanced to its limit.
+     * @param ciphertext Buffer to write the ciphertext to, with at least OVERHEAD more bytes remaining than the
+     *                   plaintext. Its position is advanced past the ciphertext.
+     * @return Length of the ciphertext (bytes)
+     * @throws IllegalArgumentException If the ciphertext does not fit
+     */
+    public int encrypt(ByteBuffer plaintext, ByteBuffer ciphertext) throws IllegalArgumentException {
+        if (ciphertext.remaining() < plaintext.remaining() + OVERHEAD) {
+            throw new IllegalArgumentException("AESSuite: Buffer too small on encrypt.");
+        }
+        encryptLock.lock();
         try {
-            encryptCipher = Cipher.getInstance("AES");
-            encryptCipher.init(Cipher.ENCRYPT_MODE, this.key);
-            return encryptCipher.doFinal(plaintextBytes);
+            if (mode == Modes.legacy) {
+                encryptCipher.init(Cipher.ENCRYPT_MODE, this.key);
+                return encryptCipher.doFinal(plaintext, ciphertext);
+            }
+            ByteBuffer nonce = ByteBuffer.wrap(encryptNonce);
+            nonce.putInt(noncePrefix).putLong(counter++);
+            encryptCipher.init(Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec(TAG_SIZE, encryptNonce));
+            ciphertext.put(encryptNonce);
+            return NONCE_SIZE + encryptCipher.doFinal(plaintext, ciphertext);
         } catch (IllegalBlockSizeException e) {
             throw new RuntimeException("AESSuite: Illegal block size on encrypt.");
         } catch (BadPaddingException e) {
             throw new RuntimeException("AESSuite: Bad padding on encrypt.");
-        } catch (NoSuchPaddingException e) {
-            throw new RuntimeException("AESSuite: No such padding 'NoPadding' - You should NOT be seeing this error.");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("AESSuite: No such algorithm 'AES' - You should NOT be seeing this error.");
-        } catch (InvalidKeyException e) {
+        } catch (ShortBufferException e) {
+            throw new IllegalArgumentException("AESSuite: Buffer too small on encrypt.");
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
             throw new RuntimeException("AESSuite: Invalid key on encrypt.");
+        } finally {
+            encryptLock.unlock();
         }
     }
 
@@ -89,23 +201,64 @@ public class AESSuite {
      * Decrypts given bytes and returns the result as bytes.
      * @param ciphertext Ciphertext to decrypt
      * @return Decrypted plaintext (Bytes)
-     * @throws GeneralSecurityException Throws a GeneralSecurityException if key is invalid.
+     * @throws GeneralSecurityException Throws a GeneralSecurityException if key is invalid or the ciphertext is
+     *         not authentic.
      */
     public byte[] decryptBytes(byte[] ciphertext) throws GeneralSecurityException {
+        if (mode == Modes.gcm && ciphertext.length < OVERHEAD) {
+            throw new GeneralSecurityException("AESSuite: Ciphertext too short on decrypt.");
+        }
+        int overhead = mode == Modes.gcm ? OVERHEAD : 0; // The legacy cipher's padding is only known once decrypted
+        ByteBuffer plaintext = ByteBuffer.allocate(ciphertext.length - overhead);
+        int length = decrypt(ByteBuffer.wrap(ciphertext), plaintext);
+        return length == plaintext.capacity() ? plaintext.array() : Arrays.copyOf(plaintext.array(), length);
+    }
+
+    /**
+     * Decrypts the remaining bytes of a buffer, such as an incoming frame, into another buffer without copying
+     * them to any intermediate arrays.
+     * @param ciphertext Bytes to decrypt. Its position is advanced to its limit.
+     * @param plaintext Buffer to write the plaintext to, with at least as many bytes remaining as the ciphertext
+     *                  minus OVERHEAD (or as the ciphertext, for the legacy cipher). Its position is advanced past
+     *                  the plaintext.
+     * @return Length of the plaintext (bytes)
+     * @throws GeneralSecurityException Throws a GeneralSecurityException if key is invalid or the ciphertext is
+     *         not authentic.
+     * @throws IllegalArgumentException If the plaintext does not fit
+     */
+    public int decrypt(ByteBuffer ciphertext, ByteBuffer plaintext)
+            throws GeneralSecurityException, IllegalArgumentException {
+        int overhead = mode == Modes.gcm ? OVERHEAD : 0;
+        if (ciphertext.remaining() < overhead) {
+            throw new GeneralSecurityException("AESSuite: Ciphertext too short on decrypt.");
+        }
+        if (plaintext.remaining() < ciphertext.remaining() - overhead) {
+            throw new IllegalArgumentException("AESSuite: Buffer too small on decrypt.");
+        }
+        decryptLock.lock();
         try {
-            decryptCipher = Cipher.getInstance("AES");
-            decryptCipher.init(Cipher.DECRYPT_MODE, this.key);
-            return decryptCipher.doFinal(ciphertext);
+            if (mode == Modes.legacy) {
+                decryptCipher.init(Cipher.DECRYPT_MODE, this.key);
+                return decryptCipher.doFinal(ciphertext, plaintext);
+            }
+            ciphertext.get(decryptNonce);
+            if (((ByteBuffer.wrap(decryptNonce).getInt() ^ noncePrefix) & CLIENT_ROLE) == 0) {
+                throw new GeneralSecurityException("AESSuite: Ciphertext was encrypted by this side.");
+            }
+            decryptCipher.init(Cipher.DECRYPT_MODE, this.key, new GCMParameterSpec(TAG_SIZE, decryptNonce));
+            return decryptCipher.doFinal(ciphertext, plaintext);
+        } catch (AEADBadTagException e) {
+            throw new GeneralSecurityException("AESSuite: Ciphertext failed authentication on decrypt.");
         } catch (IllegalBlockSizeException e) {
-            throw new RuntimeException("AESSuite: Illegal block size on decrypt.");
+            throw new GeneralSecurityException("AESSuite: Illegal block size on decrypt.");
         } catch (BadPaddingException e) {
-            throw new RuntimeException("AESSuite: Bad padding on decrypt.");
-        } catch (NoSuchPaddingException e) {
-            throw new RuntimeException("AESSuite: No such padding 'NoPadding' - You should NOT be seeing this error.");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("AESSuite: No such algorithm 'AES' - You should NOT be seeing this error.");
-        } catch (InvalidKeyException e) {
+            throw new GeneralSecurityException("AESSuite: Bad padding on decrypt.");
+        } catch (ShortBufferException e) {
+            throw new IllegalArgumentException("AESSuite: Buffer too small on decrypt.");
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
             throw new GeneralSecurityException("AESSuite: Invalid key on decrypt.");
+        } finally {
+            decryptLock.unlock();
         }
     }
 
@@ -113,7 +266,8 @@ public class AESSuite {
      * Decrypts given bytes and returns the result as a string.
      * @param ciphertext Ciphertext to decrypt
      * @return Decrypted plaintext (String)
-     * @throws GeneralSecurityException Throws a GeneralSecurityException if key is invalid.
+     * @throws GeneralSecurityException Throws a GeneralSecurityException if key is invalid or the ciphertext is
+     *         not authentic.
      */
     public String decryptString(byte[] ciphertext) throws GeneralSecurityException {
         try {
@@ -124,11 +278,25 @@ public class AESSuite {
         }
     }
 
+    /**
+     * @return Cipher the session negotiated
+     */
+    public Modes getMode() {
+        return mode;
+    }
+
     public byte[] getKey() {
         return key.getEncoded();
     }
 
     public void loadKey(byte[] keyToLoad) {
-        key = new SecretKeySpec(keyToLoad, "AES");
+        encryptLock.lock();
+        decryptLock.lock();
+        try {
+            key = new SecretKeySpec(keyToLoad, "AES");
+        } finally {
+            decryptLock.unlock();
+            encryptLock.unlock();
+        }
     }
 }
@@ -0,0 +1,65 @@
+package org.jmeifert.camber.security;
+
+import javax.crypto.KeyAgreement;
+import java.security.*;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * ECDHSuite is an X25519 key agreement suite. Each side generates a short-lived key pair and sends the other its
+ * public key, and both then derive the same symmetric key without it ever being sent. Generating an X25519 key
+ * pair and agreeing on a key take microseconds, where generating an RSA key pair takes tens of milliseconds.
+ */
+public class ECDHSuite {
+    private static final String ALGORITHM = "X25519";
+
+    private final PublicKey publicKey;
+    private final PrivateKey privateKey;
+
+    /**
+     * Instantiates an ECDHSuite with a newly generated key pair.
+     */
+    public ECDHSuite() {
+        try {
+            KeyPair keyPair = KeyPairGenerator.getInstance(ALGORITHM).generateKeyPair();
+            this.publicKey = keyPair.getPublic();
+            this.privateKey = keyPair.getPrivate();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Algorithm 'X25519' not found - You should NOT be seeing this error!");
+        }
+    }
+
+    /**
+     * Derives a 256-bit symmetric key shared with the other side. The key is the SHA-256 hash of the agreed
+     * secret followed by both sides' public keys, client's first, so it is bound to this exchange.
+     * @param peerPublicKeyBytes The other side's public key
+     * @param client True if this side is the client
+     * @return The shared key
+     * @throws IllegalArgumentException If the other side's public key is invalid
+     */
+    public byte[] deriveKey(byte[] peerPublicKeyBytes, boolean client) throws IllegalArgumentException {
+        try {
+            PublicKey peerPublicKey = KeyFactory.getInstance(ALGORITHM)
+                    .generatePublic(new X509EncodedKeySpec(peerPublicKeyBytes));
+            KeyAgreement keyAgreement = KeyAgreement.getInstance(ALGORITHM);
+            keyAgreement.init(privateKey);
+            keyAgreement.doPhase(peerPublicKey, true);
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            messageDigest.update(keyAgreement.generateSecret());
+            messageDigest.update(client ? getPublicKey() : peerPublicKeyBytes);
+            messageDigest.update(client ? peerPublicKeyBytes : getPublicKey());
+            return messageDigest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Algorithm 'X25519' not found - You should NOT be seeing this error!");
+        } catch (InvalidKeyException | InvalidKeySpecException | IllegalStateException e) {
+            throw new IllegalArgumentException("ECDHSuite: Invalid public key.");
+        }
+    }
+
+    /**
+     * @return Public key as bytes
+     */
+    public byte[] getPublicKey() {
+        return publicKey.getEncoded();
+    }
+}
@@ -0,0 +1,133 @@
+package org.jmeifert.camber.security;
+
+import org.jmeifert.camber.util.ChatMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * KeyPairPool hands out RSASuites whose key pairs were generated ahead of time, so opening a connection does not
+ * have to wait for a key pair to be generated. A low-priority background thread refills the pool up to its depth
+ * whenever it has been drawn down to its refill level. If the pool is empty, a key pair is generated on the spot.
+ * Each key pair is handed out only once.
+ */
+public class KeyPairPool {
+    private static final KeyPairPool SHARED = new KeyPairPool(ChatMap.KEY_PAIR_POOL_DEPTH,
+            ChatMap.KEY_PAIR_POOL_REFILL_LEVEL);
+
+    private final ConcurrentLinkedQueue<RSASuite> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    private volatile int depth;
+    private volatile int refillLevel;
+
+    // Guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition refillRequested = lock.newCondition();
+    private boolean refill = false;
+    private Thread refiller = null; // Started the first time the pool needs refilling
+
+    /**
+     * Instantiates a KeyPairPool. It starts out empty.
+     * @param depth Number of key pairs to keep ready
+     * @param refillLevel Refill the pool once it holds this many key pairs or fewer
+     * @throws IllegalArgumentException If the depth or refill level is invalid
+     */
+    public KeyPairPool(int depth, int refillLevel) throws IllegalArgumentException {
+        setDepth(depth, refillLevel);
+    }
+
+    /**
+     * @return The pool shared by all clients in this process
+     */
+    public static KeyPairPool getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Takes an RSASuite with a key pair nobody else has been given.
+     * @return The RSASuite, generated now if the pool is empty
+     */
+    public RSASuite take() {
+        RSASuite suite = pool.poll();
+        if (suite != null) {
+            size.decrementAndGet();
+        }
+        if (size.get() <= refillLevel) {
+            requestRefill();
+        }
+        return suite != null ? suite : new RSASuite();
+    }
+
+    /**
+     * Starts filling the pool up to its depth in the background, without waiting for it to be drawn down.
+     */
+    public void prefill() {
+        requestRefill();
+    }
+
+    /**
+     * Changes how many key pairs the pool keeps ready. Key pairs beyond a reduced depth are kept until taken.
+     * @param depth Number of key pairs to keep ready
+     * @param refillLevel Refill the pool once it holds this many key pairs or fewer
+     * @throws IllegalArgumentException If the depth or refill level is invalid
+     */
+    public void setDepth(int depth, int refillLevel) throws IllegalArgumentException {
+        if (depth < 0 || refillLevel < 0 || refillLevel >= Math.max(1, depth)) {
+            throw new IllegalArgumentException("KeyPairPool: Invalid depth or refill level.");
+        }
+        this.depth = depth;
+        this.refillLevel = refillLevel;
+    }
+
+    /**
+     * @return Number of key pairs ready to be taken
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Wakes the refill thread, starting it if it is not running yet.
+     */
+    private void requestRefill() {
+        lock.lock();
+        try {
+            refill = true;
+            if (refiller == null) {
+                refiller = new Thread(this::runRefiller, "KeyPairPool-refill");
+                refiller.setDaemon(true);
+                refiller.setPriority(Thread.MIN_PRIORITY); // Only use CPU time nobody else wants
+                refiller.start();
+            } else {
+                refillRequested.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Generates key pairs whenever a refill is requested, until the pool is at its depth. Runs on the refill
+     * thread.
+     */
+    private void runRefiller() {
+        while (true) {
+            lock.lock();
+            try {
+                while (!refill) {
+                    refillRequested.await();
+                }
+                refill = false;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            while (size.get() < depth) {
+                pool.add(new RSASuite());
+                size.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.jmeifert.camber.security;
+
+import org.jmeifert.camber.util.ChatMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * TicketSuite seals session state into resumption tickets that only the server that issued them can open, so a
+ * returning client can restore its session without the server keeping any state for it. Each ticket is encrypted
+ * and authenticated with a key picked at random for this TicketSuite, and expires after a fixed lifetime.
+ * Tickets therefore stop being accepted when the server restarts.
+ */
+public class TicketSuite {
+    private static final int EXPIRY_SIZE = 8; // Expiry time at the start of each ticket (bytes)
+    public static final int PROOF_SIZE = 32; // Size of a resume proof (bytes)
+    private static final byte[] PROOF_LABEL = "resume-proof".getBytes(StandardCharsets.US_ASCII);
+
+    private final long lifetime;
+    private final AESSuite sealer;
+    private final AESSuite opener;
+
+    /**
+     * Instantiates a TicketSuite with a newly generated key, issuing tickets that last the default lifetime.
+     */
+    public TicketSuite() {
+        this(ChatMap.TICKET_LIFETIME);
+    }
+
+    /**
+     * Instantiates a TicketSuite with a newly generated key.
+     * @param lifetime Time each ticket stays valid after it is issued (ms)
+     * @throws IllegalArgumentException If the lifetime is not positive
+     */
+    public TicketSuite(long lifetime) throws IllegalArgumentException {
+        if (lifetime <= 0) {
+            throw new IllegalArgumentException("TicketSuite: Invalid lifetime.");
+        }
+        this.lifetime = lifetime;
+        // Tickets are sealed and opened by the same side, so each half plays one role
+        this.sealer = new AESSuite();
+        this.opener = new AESSuite(sealer.getKey(), AESSuite.Roles.client);
+    }
+
+    /**
+     * Seals session state into a ticket.
+     * @param contents Session state to seal
+     * @return The ticket
+     */
+    public byte[] issue(byte[] contents) {
+        ByteBuffer plaintext = ByteBuffer.allocate(EXPIRY_SIZE + contents.length);
+        plaintext.putLong(System.currentTimeMillis() + lifetime).put(contents).flip();
+        ByteBuffer ticket = ByteBuffer.allocate(plaintext.remaining() + AESSuite.OVERHEAD);
+        sealer.encrypt(plaintext, ticket);
+        return ticket.array();
+    }
+
+    /**
+     * Opens a ticket issued by this TicketSuite.
+     * @param ticket The ticket
+     * @return The session state sealed in the ticket
+     * @throws GeneralSecurityException If the ticket was not issued by this TicketSuite, was tampered with or has
+     *         expired
+     */
+    public byte[] redeem(byte[] ticket) throws GeneralSecurityException {
+        ByteBuffer plaintext = ByteBuffer.wrap(opener.decryptBytes(ticket));
+        if (plaintext.remaining() < EXPIRY_SIZE || plaintext.getLong() < System.currentTimeMillis()) {
+            throw new GeneralSecurityException("TicketSuite: Ticket has expired.");
+        }
+        byte[] contents = new byte[plaintext.remaining()];
+        plaintext.get(contents);
+        return contents;
+    }
+
+    /**
+     * Derives the key of a resumed session from the key sealed in its ticket and a random value picked by each
+     * side, so every resumed session gets a key of its own even if the same ticket is presented twice.
+     * @param ticketKey Session key sealed in the ticket
+     * @param clientRandom Random value picked by the client
+     * @param serverRandom Random value picked by the server
+     * @return The resumed session's key (SHA-256 of all three, in order)
+     */
+    public static byte[] deriveKey(byte[] ticketKey, byte[] clientRandom, byte[] serverRandom) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            messageDigest.update(ticketKey);
+            messageDigest.update(clientRandom);
+            messageDigest.update(serverRandom);
+            return messageDigest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Algorithm 'SHA-256' not found - You should NOT be seeing this error!");
+        }
+    }
+
+    /**
+     * Proves that a client holds the session key sealed in a ticket, without using that key to encrypt anything.
+     * The proof is an HMAC-SHA256 of the ticket and the client's random value, keyed with a key derived from the
+     * session key for this purpose only, so presenting the same ticket again never reuses a cipher nonce.
+     * @param ticketKey Session key sealed in the ticket
+     * @param ticket The ticket being presented
+     * @param clientRandom Random value picked by the client
+     * @return The proof (PROOF_SIZE bytes)
+     */
+    public static byte[] prove(byte[] ticketKey, byte[] ticket, byte[] clientRandom) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(proofKey(ticketKey), "HmacSHA256"));
+            mac.update(ticket);
+            mac.update(clientRandom);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Algorithm 'HmacSHA256' not found - You should NOT be seeing this error!");
+        }
+    }
+
+    /**
+     * Checks a proof made by prove(), in constant time.
+     * @param ticketKey Session key sealed in the ticket
+     * @param ticket The ticket being presented
+     * @param clientRandom Random value picked by the client
+     * @param proof The proof to check
+     * @return True if the proof was made with the ticket's session key for this ticket and random value
+     */
+    public static boolean verify(byte[] ticketKey, byte[] ticket, byte[] clientRandom, byte[] proof) {
+        return MessageDigest.isEqual(prove(ticketKey, ticket, clientRandom), proof);
+    }
+
+    /**
+     * Derives the key resume proofs are made with from a ticket's session key.
+     * @param ticketKey Session key sealed in the ticket
+     * @return The proof key (SHA-256 of the session key and "resume-proof")
+     */
+    private static byte[] proofKey(byte[] ticketKey) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            messageDigest.update(ticketKey);
+            messageDigest.update(PROOF_LABEL);
+            return messageDigest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Algorithm 'SHA-256' not found - You should NOT be seeing this error!");
+        }
+    }
+}
@@ -2,6 +2,12 @@ package org.jmeifert.camber.test;
 
 import org.jmeifert.camber.security.AESSuite;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
 public class TestAESSuite {
     public static void main(String[] args) {
         System.out.println("Testing AESSuite...");
@@ -24,6 +30,10 @@ public class TestAESSuite {
             System.err.println(e.getMessage());
             return;
         }
+        if(!dc.equals("The quick brown fox jumped over the lazy dog.")) {
+            System.err.println("Encryption and decryption test failed.");
+            return;
+        }
 
         ct = new byte[0];
         try {
@@ -43,6 +53,71 @@ public class TestAESSuite {
             System.err.println("Encryption and decryption test failed.");
             return;
         }
+
+        System.out.println("Testing nonces...");
+        if(Arrays.equals(b.encryptString("The"), b.encryptString("The"))) {
+            System.err.println("Nonce test failed (same ciphertext twice).");
+            return;
+        }
+
+        System.out.println("Testing authentication...");
+        ct = b.encryptString("The quick brown fox jumped over the lazy dog.");
+        ct[ct.length / 2] ^= 1;
+        try {
+            a.decryptString(ct);
+            System.err.println("Authentication test failed (tampered ciphertext accepted).");
+            return;
+        } catch(Exception e) {
+            // Expected
+        }
+        try {
+            b.decryptString(b.encryptString("The"));
+            System.err.println("Authentication test failed (reflected ciphertext accepted).");
+            return;
+        } catch(Exception e) {
+            // Expected
+        }
+
+        System.out.println("Testing ByteBuffer encryption...");
+        ByteBuffer frame = ByteBuffer.allocate(64);
+        frame.put((byte) 7); // Frame header
+        int length = a.encrypt(ByteBuffer.wrap("over the lazy dog".getBytes()), frame);
+        frame.flip().position(1);
+        ByteBuffer pt = ByteBuffer.allocate(length - AESSuite.OVERHEAD);
+        try {
+            b.decrypt(frame, pt);
+        } catch(Exception e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        if(!new String(pt.array()).equals("over the lazy dog")) {
+            System.err.println("ByteBuffer encryption and decryption test failed.");
+            return;
+        }
+
+        System.out.println("Testing legacy cipher...");
+        AESSuite legacyServer = new AESSuite(AESSuite.Modes.legacy);
+        AESSuite legacyClient = new AESSuite(legacyServer.getKey(), AESSuite.Roles.client, AESSuite.Modes.legacy);
+        try {
+            Cipher original = Cipher.getInstance("AES"); // As used by clients that predate AES-GCM
+            original.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(legacyServer.getKey(), "AES"));
+            ct = original.doFinal("The quick brown fox".getBytes("UTF-8"));
+            if(!Arrays.equals(ct, legacyServer.encryptString("The quick brown fox")) ||
+                    !legacyClient.decryptString(ct).equals("The quick brown fox")) {
+                System.err.println("Legacy cipher test failed (does not match the original cipher).");
+                return;
+            }
+        } catch(Exception e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        try {
+            legacyClient.decryptString(new byte[5]);
+            System.err.println("Legacy cipher test failed (truncated ciphertext accepted).");
+            return;
+        } catch(GeneralSecurityException e) {
+            // Expected
+        }
         System.out.println("Test of AESSuite passed.");
     }
 }
@@ -0,0 +1,49 @@
+package org.jmeifert.camber.test;
+
+import org.jmeifert.camber.security.AESSuite;
+import org.jmeifert.camber.security.ECDHSuite;
+
+import java.util.Arrays;
+
+public class TestECDHSuite {
+    public static void main(String[] args) {
+        System.out.println("Testing ECDHSuite...");
+        System.out.println("Testing instantiation...");
+        ECDHSuite client = new ECDHSuite();
+        ECDHSuite server = new ECDHSuite();
+        System.out.println("Testing key agreement...");
+        byte[] clientKey = client.deriveKey(server.getPublicKey(), true);
+        byte[] serverKey = server.deriveKey(client.getPublicKey(), false);
+        if(!Arrays.equals(clientKey, serverKey) || clientKey.length != 32) {
+            System.err.println("Key agreement test failed (keys differ).");
+            return;
+        }
+        if(Arrays.equals(clientKey, new ECDHSuite().deriveKey(server.getPublicKey(), true))) {
+            System.err.println("Key agreement test failed (same key for different clients).");
+            return;
+        }
+        try {
+            client.deriveKey(new byte[] {1, 2, 3}, true);
+            System.err.println("Key agreement test failed (invalid public key accepted).");
+            return;
+        } catch(IllegalArgumentException e) {
+            // Expected
+        }
+
+        System.out.println("Testing encryption with agreed key...");
+        AESSuite a = new AESSuite(serverKey, AESSuite.Roles.server);
+        AESSuite b = new AESSuite(clientKey, AESSuite.Roles.client);
+        String dc;
+        try {
+            dc = a.decryptString(b.encryptString("The quick brown fox jumped over the lazy dog."));
+        } catch(Exception e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        if(!dc.equals("The quick brown fox jumped over the lazy dog.")) {
+            System.err.println("Encryption with agreed key test failed.");
+            return;
+        }
+        System.out.println("Test of ECDHSuite passed.");
+    }
+}
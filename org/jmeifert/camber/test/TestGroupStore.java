@@ -0,0 +1,191 @@
+package org.jmeifert.camber.test;
+
+import org.jmeifert.camber.file.GroupStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class TestGroupStore {
+    public static void main(String[] args) {
+        System.out.println("Testing GroupStore...");
+        Path dir;
+        try {
+            dir = Files.createTempDirectory("camber-test").resolve("group");
+        } catch(IOException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        try {
+            System.out.println("Testing appending and replay...");
+            GroupStore store = GroupStore.create(dir, "group", "hash", false);
+            append(store, 1, 1000, "message ");
+            store.close();
+            List<Long> replayed = new ArrayList<>();
+            List<String> bodies = new ArrayList<>();
+            store = GroupStore.open(dir);
+            long last = store.replay((seq, time, topic, user, body) -> {
+                replayed.add(seq);
+                bodies.add(topic + " " + user + " " + new String(body, StandardCharsets.UTF_8));
+            }, 0);
+            if(last != 1000 || !replayed.equals(range(1, 1000)) || !bodies.get(41).equals("topic user message 42")) {
+                System.err.println("Replay test failed (messages missing or changed).");
+                return;
+            }
+            replayed.clear();
+            store.close();
+            store = GroupStore.open(dir);
+            store.replay((seq, time, topic, user, body) -> replayed.add(seq), 900);
+            if(!replayed.equals(range(901, 1000))) {
+                System.err.println("Replay test failed (replayed messages already restored).");
+                return;
+            }
+            store.close();
+
+            System.out.println("Testing checksums...");
+            Path segment = segments(dir).get(0);
+            List<Long> offsets = offsets(segment);
+            try(FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer flipped = ByteBuffer.allocate(1);
+                long position = offsets.get(600) - 1; // Last byte of the 600th record's body
+                channel.read(flipped, position);
+                flipped.put(0, (byte) (flipped.get(0) ^ 1)).rewind();
+                channel.write(flipped, position);
+            }
+            if(replay(dir) != 599) {
+                System.err.println("Checksum test failed (corrupt record replayed).");
+                return;
+            }
+            store = GroupStore.open(dir);
+            store.replay((seq, time, topic, user, body) -> { }, 0);
+            append(store, 600, 650, "again ");
+            store.close();
+            if(replay(dir) != 650) {
+                System.err.println("Checksum test failed (could not append after a corrupt record).");
+                return;
+            }
+
+            System.out.println("Testing torn records...");
+            offsets = offsets(segment);
+            try(FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                channel.truncate(offsets.get(649) + 20); // Cut the last record off part way through
+            }
+            if(replay(dir) != 649) {
+                System.err.println("Torn record test failed.");
+                return;
+            }
+
+            System.out.println("Testing segment rollover...");
+            store = GroupStore.open(dir);
+            store.replay((seq, time, topic, user, body) -> { }, 0);
+            append(store, 650, 6000, "x".repeat(4000));
+            store.close();
+            List<Path> rolled = segments(dir);
+            if(rolled.size() < 2) {
+                System.err.println("Segment rollover test failed (log not split into segments).");
+                return;
+            }
+            if(replay(dir) != 6000) {
+                System.err.println("Segment rollover test failed (messages lost across segments).");
+                return;
+            }
+            store = GroupStore.open(dir);
+            store.replay((seq, time, topic, user, body) -> { }, 5990);
+            long boundary = Long.parseLong(rolled.get(1).getFileName().toString().replace(".log", ""));
+            List<Long> page = new ArrayList<>();
+            store.readBefore("topic", boundary + 50, 0, 0, 100, (seq, time, topic, user, body) -> page.add(seq));
+            if(!page.equals(range(boundary - 50, boundary + 49))) {
+                System.err.println("Segment rollover test failed (could not page back across segments).");
+                return;
+            }
+            store.delete();
+            Files.delete(dir.getParent());
+        } catch(IOException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        System.out.println("Test of GroupStore passed.");
+    }
+
+    /**
+     * Appends numbered messages to a store and waits until they are on disk, a hundred at a time, since the log is
+     * only split into a new segment between batches.
+     * @param store Store to append to
+     * @param first Sequence number of the first message
+     * @param last Sequence number of the last message
+     * @param body Body to send, followed by each message's number
+     * @throws IOException If the messages could not be written
+     */
+    private static void append(GroupStore store, long first, long last, String body) throws IOException {
+        for(long i = first; i <= last; i++) {
+            store.append(i, System.currentTimeMillis(), "topic", "user", (body + i).getBytes(StandardCharsets.UTF_8));
+            if(i % 100 == 0 || i == last) {
+                store.sync(i);
+            }
+        }
+    }
+
+    /**
+     * Replays a store's whole log, checking that the messages are in order.
+     * @param dir Directory of the store
+     * @return Sequence number of the last message, or -1 if the messages were out of order
+     * @throws IOException If the log could not be read
+     */
+    private static long replay(Path dir) throws IOException {
+        List<Long> replayed = new ArrayList<>();
+        GroupStore store = GroupStore.open(dir);
+        long last = store.replay((seq, time, topic, user, body) -> replayed.add(seq), 0);
+        store.close();
+        return replayed.equals(range(1, last)) ? last : -1;
+    }
+
+    /**
+     * @param dir Directory of a store
+     * @return The store's segment files, oldest first
+     * @throws IOException If the directory could not be read
+     */
+    private static List<Path> segments(Path dir) throws IOException {
+        try(Stream<Path> files = Files.list(dir)) {
+            return files.filter(i -> i.toString().endsWith(".log")).sorted((a, b) -> Long.compare(
+                    Long.parseLong(a.getFileName().toString().replace(".log", "")),
+                    Long.parseLong(b.getFileName().toString().replace(".log", "")))).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Finds where each record in a segment ends, going by the length at the start of each record.
+     * @param segment The segment's file
+     * @return Offset just past the end of each record, in order
+     * @throws IOException If the segment could not be read
+     */
+    private static List<Long> offsets(Path segment) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(segment));
+        List<Long> offsets = new ArrayList<>();
+        for(int p = 0; p + 8 <= data.limit() && data.getInt(p) != 0; p += 8 + data.getInt(p)) {
+            offsets.add((long) p + 8 + data.getInt(p));
+        }
+        offsets.add(0, 0L);
+        return offsets;
+    }
+
+    /**
+     * @param first First number
+     * @param last Last number
+     * @return The numbers from first to last, in order
+     */
+    private static List<Long> range(long first, long last) {
+        List<Long> range = new ArrayList<>();
+        for(long i = first; i <= last; i++) {
+            range.add(i);
+        }
+        return range;
+    }
+}
@@ -0,0 +1,50 @@
+package org.jmeifert.camber.test;
+
+import org.jmeifert.camber.security.KeyPairPool;
+import org.jmeifert.camber.security.RSASuite;
+
+import java.util.Arrays;
+
+public class TestKeyPairPool {
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("Testing KeyPairPool...");
+        System.out.println("Testing instantiation...");
+        KeyPairPool pool = new KeyPairPool(3, 1);
+        try {
+            new KeyPairPool(2, 2);
+            System.err.println("Instantiation test failed (invalid refill level accepted).");
+            return;
+        } catch(IllegalArgumentException e) {
+            // Expected
+        }
+
+        System.out.println("Testing refill...");
+        pool.prefill();
+        for(int i = 0; i < 200 && pool.size() < 3; i++) {
+            Thread.sleep(50);
+        }
+        if(pool.size() != 3) {
+            System.err.println("Refill test failed (pool not filled to depth).");
+            return;
+        }
+
+        System.out.println("Testing take...");
+        RSASuite a = pool.take();
+        RSASuite b = pool.take();
+        RSASuite c = pool.take();
+        RSASuite d = pool.take(); // Empty - generated on the spot
+        if(Arrays.equals(a.getPublicKey(), b.getPublicKey()) || Arrays.equals(b.getPublicKey(), c.getPublicKey()) ||
+                Arrays.equals(c.getPublicKey(), d.getPublicKey())) {
+            System.err.println("Take test failed (key pair handed out twice).");
+            return;
+        }
+        for(int i = 0; i < 200 && pool.size() < 3; i++) {
+            Thread.sleep(50);
+        }
+        if(pool.size() != 3) {
+            System.err.println("Refill test failed (pool not refilled after being drawn down).");
+            return;
+        }
+        System.out.println("Test of KeyPairPool passed.");
+    }
+}
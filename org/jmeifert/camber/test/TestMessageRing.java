@@ -0,0 +1,133 @@
+package org.jmeifert.camber.test;
+
+import org.jmeifert.camber.data.Group;
+import org.jmeifert.camber.data.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * MessageRing is internal to the data package, so it is tested through the Group reads and writes built on it.
+ */
+public class TestMessageRing {
+    public static void main(String[] args) {
+        System.out.println("Testing MessageRing...");
+        System.out.println("Testing appending...");
+        Group group = new Group("ring", "password");
+        for(int i = 1; i <= 10; i++) {
+            group.addMessage(new Message("ring", "user", String.valueOf(i)));
+        }
+        String since = group.getMessagesSince("ring", 0);
+        if(!since.startsWith("10\n") || !numbers(since, 1).equals(range(1, 10))) {
+            System.err.println("Appending test failed (messages missing or out of order).");
+            return;
+        }
+        if(!numbers(group.getMessagesSince("ring", 7), 1).equals(range(8, 10))) {
+            System.err.println("Appending test failed (wrong messages since a sequence number).");
+            return;
+        }
+
+        System.out.println("Testing eviction and growth...");
+        for(int i = 11; i <= 2000; i++) { // Grows the ring past its first capacity, then evicts from the full cache
+            group.addMessage(new Message("ring", "user", String.valueOf(i)));
+        }
+        if(!numbers(group.getMessages("ring"), 0).equals(range(1901, 2000))) {
+            System.err.println("Eviction test failed (newest messages not kept in order).");
+            return;
+        }
+        List<Integer> cached = new ArrayList<>();
+        String page = group.getHistory("ring", 0);
+        while(!page.startsWith("0\n")) { // Page back through everything still cached
+            cached.addAll(0, numbers(page, 1));
+            page = group.getHistory("ring", Long.parseLong(page.substring(0, page.indexOf('\n'))));
+        }
+        if(cached.isEmpty() || cached.size() > 500 || !cached.equals(range(2001 - cached.size(), 2000))) {
+            System.err.println("Eviction test failed (oldest messages not evicted first).");
+            return;
+        }
+
+        System.out.println("Testing concurrent snapshots...");
+        Group raced = new Group("race", "password");
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            for(int i = 1; i <= 50000; i++) {
+                raced.addMessage(new Message("race", "user", String.valueOf(i)));
+            }
+            writing.set(false);
+        });
+        List<Thread> readers = new ArrayList<>();
+        for(int r = 0; r < 4; r++) {
+            readers.add(new Thread(() -> {
+                long seen = 0;
+                while(writing.get() && failure.get() == null) {
+                    String read = raced.getMessagesSince("race", seen);
+                    long highWater = Long.parseLong(read.substring(0, read.indexOf('\n')));
+                    List<Integer> got = numbers(read, 1);
+                    for(int i = 0; i < got.size(); i++) {
+                        if(got.get(i) <= seen || got.get(i) > highWater ||
+                                (i > 0 && got.get(i) != got.get(i - 1) + 1)) {
+                            failure.set("Snapshot " + got + " after " + seen + " up to " + highWater + ".");
+                            return;
+                        }
+                    }
+                    if(!got.isEmpty()) {
+                        seen = got.get(got.size() - 1);
+                    }
+                }
+            }));
+        }
+        writer.start();
+        for(Thread i : readers) {
+            i.start();
+        }
+        try {
+            writer.join();
+            for(Thread i : readers) {
+                i.join();
+            }
+        } catch(InterruptedException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        if(failure.get() != null) {
+            System.err.println("Concurrent snapshot test failed (torn snapshot). " + failure.get());
+            return;
+        }
+        if(!numbers(raced.getMessagesSince("race", 49990), 1).equals(range(49991, 50000))) {
+            System.err.println("Concurrent snapshot test failed (messages lost).");
+            return;
+        }
+        System.out.println("Test of MessageRing passed.");
+    }
+
+    /**
+     * Reads the numbers sent as the bodies of formatted messages.
+     * @param output Formatted messages, one per line
+     * @param skip Number of leading lines to skip
+     * @return The numbers, in order
+     */
+    private static List<Integer> numbers(String output, int skip) {
+        List<Integer> numbers = new ArrayList<>();
+        String[] lines = output.split("\n");
+        for(int i = skip; i < lines.length; i++) {
+            numbers.add(Integer.parseInt(lines[i].substring(lines[i].lastIndexOf(": ") + 2)));
+        }
+        return numbers;
+    }
+
+    /**
+     * @param first First number
+     * @param last Last number
+     * @return The numbers from first to last, in order
+     */
+    private static List<Integer> range(int first, int last) {
+        List<Integer> range = new ArrayList<>();
+        for(int i = first; i <= last; i++) {
+            range.add(i);
+        }
+        return range;
+    }
+}
@@ -0,0 +1,122 @@
+package org.jmeifert.camber.test;
+
+import org.jmeifert.camber.data.Group;
+import org.jmeifert.camber.data.Message;
+import org.jmeifert.camber.data.RetentionPolicy;
+import org.jmeifert.camber.data.ServerData;
+
+/*
+ * SearchIndex is internal to the data package, so it is tested through Group's searches.
+ */
+public class TestSearchIndex {
+    public static void main(String[] args) {
+        System.out.println("Testing SearchIndex...");
+        ServerData data = new ServerData();
+        data.createGroup("search", "password");
+        Group group = data.getGroup("search");
+        group.addMessage(new Message("ops", "alice", "Old deploy notes"));
+        try {
+            Thread.sleep(1100); // So since: can tell the first message from the rest
+        } catch(InterruptedException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        group.addMessage(new Message("ops", "alice", "Deploying now, the build failed again!"));
+        group.addMessage(new Message("ops", "bob", "Failed build? Deploy it anyway."));
+        group.addMessage(new Message("dev", "alice", "Nobody said the build failed"));
+        group.addMessage(new Message("dev", "carol", "Lunch?"));
+
+        System.out.println("Testing parsing...");
+        String[] malformed = {"", "   ", "\"build failed", "since:5x", "since:h", "since:1"};
+        for(String i : malformed) {
+            try {
+                group.search(i);
+                System.err.println("Parsing test failed (accepted '" + i + "').");
+                return;
+            } catch(IllegalArgumentException e) {
+                // Expected
+            }
+        }
+
+        System.out.println("Testing terms...");
+        if(!matches(group.search("deploy"), "Old deploy notes", "Deploy it anyway.")) {
+            System.err.println("Term test failed (whole words not matched).");
+            return;
+        }
+        if(!matches(group.search("BUILD failed"), "the build failed again!", "Deploy it anyway.",
+                "the build failed")) {
+            System.err.println("Term test failed (terms not matched regardless of case and order).");
+            return;
+        }
+        if(!group.search("build missing").isEmpty()) {
+            System.err.println("Term test failed (matched without every term).");
+            return;
+        }
+
+        System.out.println("Testing phrases...");
+        if(!matches(group.search("\"build failed\""), "the build failed again!", "the build failed")) {
+            System.err.println("Phrase test failed (terms out of order matched).");
+            return;
+        }
+        if(!matches(group.search("\"lunch\""), "Lunch?")) {
+            System.err.println("Phrase test failed (single word phrase).");
+            return;
+        }
+
+        System.out.println("Testing filters...");
+        if(!matches(group.search("\"build failed\" topic:ops"), "the build failed again!")) {
+            System.err.println("Filter test failed (topic:).");
+            return;
+        }
+        if(!matches(group.search("user:alice"), "Old deploy notes", "the build failed again!",
+                "the build failed")) {
+            System.err.println("Filter test failed (user:).");
+            return;
+        }
+        if(!matches(group.search("deploy since:1s"), "Deploy it anyway.") ||
+                !matches(group.search("deploy since:1h"), "Old deploy notes", "Deploy it anyway.")) {
+            System.err.println("Filter test failed (since:).");
+            return;
+        }
+
+        System.out.println("Testing removal on eviction...");
+        group.setRetention("ops", new RetentionPolicy(1, 0, 0));
+        data.applyRetention(64);
+        if(!matches(group.search("deploy"), "Deploy it anyway.") || !group.search("notes").isEmpty()) {
+            System.err.println("Removal test failed (messages evicted by retention still found).");
+            return;
+        }
+        for(int i = 0; i < 1000; i++) { // Pushes the topic's older messages out of the cache
+            group.addMessage(new Message("dev", "dave", "filler " + i));
+        }
+        if(!matches(group.search("build"), "Failed build? Deploy it anyway.") ||
+                !group.search("user:alice").isEmpty()) {
+            System.err.println("Removal test failed (messages evicted from the cache still found).");
+            return;
+        }
+        if(group.search("filler").split("\n").length != 100 || !group.search("filler").endsWith("filler 999\n")) {
+            System.err.println("Removal test failed (newest messages not found).");
+            return;
+        }
+        System.out.println("Test of SearchIndex passed.");
+    }
+
+    /**
+     * Checks that search results are exactly the messages expected, oldest first.
+     * @param results Formatted messages found, one per line
+     * @param endings How each expected message's line ends
+     * @return True if the results match
+     */
+    private static boolean matches(String results, String... endings) {
+        String[] lines = results.isEmpty() ? new String[0] : results.split("\n");
+        if(lines.length != endings.length) {
+            return false;
+        }
+        for(int i = 0; i < lines.length; i++) {
+            if(!lines[i].endsWith(endings[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,118 @@
+package org.jmeifert.camber.test;
+
+import org.jmeifert.camber.data.Group;
+import org.jmeifert.camber.data.Message;
+import org.jmeifert.camber.data.RetentionPolicy;
+import org.jmeifert.camber.data.ServerData;
+import org.jmeifert.camber.data.TopicInfo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class TestSnapshotRestore {
+    public static void main(String[] args) {
+        System.out.println("Testing snapshot restore...");
+        Path dir;
+        try {
+            dir = Files.createTempDirectory("camber-test");
+        } catch(IOException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        try {
+            System.out.println("Testing restore from a snapshot and the log after it...");
+            ServerData data = new ServerData(dir);
+            data.createGroup("snap", "password");
+            Group group = data.getGroup("snap");
+            List<Message> batch = new ArrayList<>();
+            for(int i = 1; i <= 600; i++) {
+                batch.add(new Message("a", "alice", "a " + i));
+            }
+            group.addMessages(batch);
+            for(int i = 1; i <= 20; i++) {
+                group.addMessage(new Message("b", "bob", "b " + i));
+            }
+            // Retention only evicts from the cache, so the snapshot holds fewer of the topic's messages than the log
+            group.setRetention("a", new RetentionPolicy(50, 0, 0));
+            data.applyRetention(64);
+            data.saveSnapshots();
+            for(int i = 601; i <= 630; i++) { // Only in the log, as if the server then crashed
+                group.addMessage(new Message("a", "alice", "a " + i));
+            }
+            if(!check(new ServerData(dir), 80)) {
+                System.err.println("Restore test failed (snapshot or log tail not restored).");
+                return;
+            }
+
+            System.out.println("Testing restore after a clean shutdown...");
+            ServerData restored = new ServerData(dir);
+            restored.close();
+            restored = new ServerData(dir);
+            if(!check(restored, 80)) {
+                System.err.println("Restore test failed (snapshot saved at shutdown not restored).");
+                return;
+            }
+            restored.close();
+
+            System.out.println("Testing restore from a damaged snapshot...");
+            Path snapshot;
+            try(Stream<Path> files = Files.walk(dir)) {
+                snapshot = files.filter(i -> i.endsWith("snapshot.bin")).findFirst().orElse(null);
+            }
+            if(snapshot == null) {
+                System.err.println("Damaged snapshot test failed (no snapshot saved).");
+                return;
+            }
+            byte[] damaged = Files.readAllBytes(snapshot);
+            damaged[damaged.length / 2] ^= 1;
+            Files.write(snapshot, damaged);
+            if(!check(new ServerData(dir), 100)) { // The whole log is replayed instead
+                System.err.println("Damaged snapshot test failed (log not replayed in full).");
+                return;
+            }
+        } catch(IOException e) {
+            System.err.println(e.getMessage());
+            return;
+        } finally {
+            try(Stream<Path> files = Files.walk(dir)) {
+                for(Path i : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(i);
+                }
+            } catch(IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+        System.out.println("Test of snapshot restore passed.");
+    }
+
+    /**
+     * Checks a restored group's messages, topics and sequence number.
+     * @param data The restored server data
+     * @param cached Number of topic "a"'s messages expected in the cache, up to one page
+     * @return True if the group was restored as expected
+     */
+    private static boolean check(ServerData data, int cached) {
+        Group group = data.getGroup("snap");
+        if(group == null || group.getLastSeq() != 650) {
+            return false;
+        }
+        String[] a = group.getMessages("a").split("\n");
+        String[] b = group.getMessages("b").split("\n");
+        if(a.length != cached || !a[0].endsWith(": a " + (631 - cached)) || !a[a.length - 1].endsWith(": a 630") ||
+                b.length != 20 || !b[19].endsWith(": b 20")) {
+            return false;
+        }
+        for(TopicInfo i : group.getTopicInfo()) {
+            if(i.getMessageCount() != (i.getName().equals("a") ? 630 : 20)) {
+                return false;
+            }
+        }
+        return group.getTopicInfo().size() == 2;
+    }
+}
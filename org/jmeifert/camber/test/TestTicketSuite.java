@@ -0,0 +1,106 @@
+package org.jmeifert.camber.test;
+
+import org.jmeifert.camber.security.TicketSuite;
+
+import java.util.Arrays;
+
+public class TestTicketSuite {
+    public static void main(String[] args) {
+        System.out.println("Testing TicketSuite...");
+        System.out.println("Testing instantiation...");
+        TicketSuite tickets = new TicketSuite();
+        byte[] contents = "The quick brown fox jumped over the lazy dog.".getBytes();
+        System.out.println("Testing issuing and redeeming...");
+        byte[] ticket = tickets.issue(contents);
+        try {
+            if(!Arrays.equals(tickets.redeem(ticket), contents)) {
+                System.err.println("Issuing and redeeming test failed (contents differ).");
+                return;
+            }
+        } catch(Exception e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        if(Arrays.equals(ticket, tickets.issue(contents))) {
+            System.err.println("Issuing test failed (same ticket twice).");
+            return;
+        }
+
+        System.out.println("Testing authentication...");
+        ticket[ticket.length / 2] ^= 1;
+        try {
+            tickets.redeem(ticket);
+            System.err.println("Authentication test failed (tampered ticket accepted).");
+            return;
+        } catch(Exception e) {
+            // Expected
+        }
+        try {
+            new TicketSuite().redeem(tickets.issue(contents));
+            System.err.println("Authentication test failed (other server's ticket accepted).");
+            return;
+        } catch(Exception e) {
+            // Expected
+        }
+
+        System.out.println("Testing expiry...");
+        TicketSuite shortLived = new TicketSuite(1);
+        ticket = shortLived.issue(contents);
+        try {
+            Thread.sleep(10);
+            shortLived.redeem(ticket);
+            System.err.println("Expiry test failed (expired ticket accepted).");
+            return;
+        } catch(Exception e) {
+            // Expected
+        }
+
+        System.out.println("Testing key derivation...");
+        byte[] key = new byte[32];
+        byte[] clientRandom = new byte[32];
+        byte[] serverRandom = new byte[32];
+        byte[] derived = TicketSuite.deriveKey(key, clientRandom, serverRandom);
+        serverRandom[0] = 1;
+        if(derived.length != 32 || Arrays.equals(derived, TicketSuite.deriveKey(key, clientRandom, serverRandom))) {
+            System.err.println("Key derivation test failed.");
+            return;
+        }
+
+        System.out.println("Testing resume proofs from a replayed ticket...");
+        ticket = tickets.issue(contents);
+        byte[] firstRandom = new byte[32];
+        byte[] secondRandom = new byte[32];
+        secondRandom[0] = 1;
+        byte[] firstProof = TicketSuite.prove(key, ticket, firstRandom);
+        byte[] secondProof = TicketSuite.prove(key, ticket, secondRandom);
+        if(firstProof.length != TicketSuite.PROOF_SIZE || Arrays.equals(firstProof, secondProof) ||
+                !TicketSuite.verify(key, ticket, firstRandom, firstProof) ||
+                !TicketSuite.verify(key, ticket, secondRandom, secondProof)) {
+            System.err.println("Resume proof test failed (proofs for the same ticket).");
+            return;
+        }
+        if(TicketSuite.verify(key, ticket, secondRandom, firstProof)) {
+            System.err.println("Resume proof test failed (replayed proof accepted with a new random value).");
+            return;
+        }
+        byte[] otherKey = new byte[32];
+        otherKey[0] = 1;
+        if(TicketSuite.verify(otherKey, ticket, firstRandom, firstProof) ||
+                TicketSuite.verify(key, tickets.issue(contents), firstRandom, firstProof)) {
+            System.err.println("Resume proof test failed (proof accepted for another key or ticket).");
+            return;
+        }
+        byte[] tampered = firstProof.clone();
+        tampered[0] ^= 1;
+        if(TicketSuite.verify(key, ticket, firstRandom, tampered)) {
+            System.err.println("Resume proof test failed (tampered proof accepted).");
+            return;
+        }
+        if(Arrays.equals(TicketSuite.deriveKey(key, firstRandom, serverRandom),
+                TicketSuite.deriveKey(key, secondRandom, serverRandom))) {
+            System.err.println("Resume proof test failed (replayed ticket resumed with the same key).");
+            return;
+        }
+        System.out.println("Test of TicketSuite passed.");
+    }
+}
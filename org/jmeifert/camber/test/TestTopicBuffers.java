@@ -0,0 +1,94 @@
+package org.jmeifert.camber.test;
+
+import org.jmeifert.camber.data.Group;
+import org.jmeifert.camber.data.Message;
+import org.jmeifert.camber.data.RetentionPolicy;
+import org.jmeifert.camber.data.ServerData;
+import org.jmeifert.camber.data.TopicInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestTopicBuffers {
+    public static void main(String[] args) {
+        System.out.println("Testing per-topic buffers...");
+        System.out.println("Testing topic reads...");
+        Group group = new Group("topics", "password");
+        for(int i = 0; i < 50; i++) {
+            group.addMessage(new Message("quiet", "alice", "quiet " + i));
+            group.addMessage(new Message("other", "bob", "other " + i));
+        }
+        String quiet = group.getMessages("quiet");
+        if(quiet.split("\n").length != 50 || quiet.contains("{other}") || !quiet.endsWith("quiet 49\n")) {
+            System.err.println("Topic read test failed (read other topics' messages).");
+            return;
+        }
+        if(!group.getMessages("missing").isEmpty()) {
+            System.err.println("Topic read test failed (read a topic with no messages).");
+            return;
+        }
+
+        System.out.println("Testing eviction from a noisy topic...");
+        List<Message> batch = new ArrayList<>();
+        for(int i = 0; i < 5000; i++) {
+            batch.add(new Message("noisy", "carol", "noisy " + i));
+        }
+        group.addMessages(batch);
+        if(group.getMessages("quiet").split("\n").length != 50 || group.getMessages("other").split("\n").length != 50) {
+            System.err.println("Eviction test failed (noisy topic pushed out a quiet topic's history).");
+            return;
+        }
+        if(!group.getMessages("noisy").endsWith("noisy 4999\n")) {
+            System.err.println("Eviction test failed (noisy topic lost its newest messages).");
+            return;
+        }
+        int noisy = 0;
+        String page = group.getHistory("noisy", 0);
+        while(!page.startsWith("0\n")) { // Page back through everything still cached
+            noisy += page.split("\n").length - 1;
+            page = group.getHistory("noisy", Long.parseLong(page.substring(0, page.indexOf('\n'))));
+        }
+        if(noisy == 0 || noisy + 100 > 500) {
+            System.err.println("Eviction test failed (group-wide budget not shared, " + noisy + " noisy messages).");
+            return;
+        }
+
+        System.out.println("Testing topic activity...");
+        long quietCount = -1;
+        for(TopicInfo i : group.getTopicInfo()) {
+            if(i.getName().equals("quiet")) {
+                quietCount = i.getMessageCount();
+            }
+        }
+        if(quietCount != 50 || group.getTopicInfo().size() != 3) {
+            System.err.println("Topic activity test failed.");
+            return;
+        }
+
+        System.out.println("Testing topics whose messages were all evicted...");
+        ServerData data = new ServerData();
+        data.createGroup("evicted", "password");
+        Group evicted = data.getGroup("evicted");
+        evicted.addMessage(new Message("gone", "alice", "gone 0"));
+        evicted.addMessage(new Message("kept", "bob", "kept 0"));
+        evicted.setRetention("gone", new RetentionPolicy(0, 1, 0));
+        try {
+            Thread.sleep(10);
+        } catch(InterruptedException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        data.applyRetention(64);
+        long goneCount = -1;
+        for(TopicInfo i : evicted.getTopicInfo()) {
+            if(i.getName().equals("gone")) {
+                goneCount = i.getMessageCount();
+            }
+        }
+        if(!evicted.getMessages("gone").isEmpty() || goneCount != 1 || !evicted.getTopics().contains("'gone'")) {
+            System.err.println("Topic activity test failed (topic dropped once its messages were evicted).");
+            return;
+        }
+        System.out.println("Test of per-topic buffers passed.");
+    }
+}
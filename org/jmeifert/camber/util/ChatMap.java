@@ -7,18 +7,87 @@ public class ChatMap {
     // Log level (0: Info, 1: Warning, 2: Error, 3: None)
     public static final int LOG_LEVEL = 0;
 
+    // Log events buffered for the log's drain thread before new ones are dropped (count, power of two)
+    public static final int LOG_BUFFER_SIZE = 8192;
+
+    // Time the log's drain thread waits for new events when there are none (ms)
+    public static final int LOG_DRAIN_INTERVAL = 50;
+
+    // Size at which the log moves on to a new file (bytes = MiB * 1024 * 1024)
+    public static final long LOG_FILE_SIZE = 8L * 1024 * 1024;
+
+    // Number of log files kept, including the current one (count)
+    public static final int LOG_FILE_COUNT = 5;
+
     // Max concurrent connections (count)
     public static final int MAX_CONCURRENT_CONNECTIONS = 1000;
 
+    // Max open connections in virtual thread mode (count)
+    public static final int MAX_CONNECTIONS = 50000;
+
+    // Number of selector event loop threads in selector mode (count)
+    public static final int SELECTOR_EVENT_LOOPS = 2;
+
+    // Number of worker threads serving ready requests in selector mode (count)
+    public static final int SELECTOR_WORKER_THREADS = 16;
+
+    // Max wait for the rest of a partially received request in selector mode (ms = s * 1000)
+    public static final int SELECTOR_READ_TIMEOUT = 10 * 1000;
+
+    // Number of threads delivering pushed messages to subscribed sessions (count)
+    public static final int PUSH_THREADS = 4;
+
+    // Max messages waiting to be pushed to one session before it is disconnected as too slow (count)
+    public static final int MAX_PUSH_QUEUE = 1000;
+
     // Size of the message cache for each group (count)
     public static final int GROUP_MESSAGE_CACHE_SIZE = 500;
 
+    // Time a temporary group must go unused before it is closed (ms = s * 1000)
+    public static final int GROUP_IDLE_TIMEOUT = 1800 * 1000;
+
+    // Time a topic with no cached messages stays in its group's topic list after its last message (ms = s * 1000)
+    public static final int TOPIC_IDLE_TIMEOUT = 7 * 24 * 3600 * 1000;
+
+    // Max topics each group keeps in its topic list, counting those with no cached messages (count)
+    public static final int MAX_TOPICS = 10000;
+
+    // Interval between checks for idle groups (ms = s * 1000)
+    public static final int GROUP_SWEEP_INTERVAL = 60 * 1000;
+
+    // Interval between retention sweeps, which evict messages beyond groups' retention policies (ms = s * 1000)
+    public static final int RETENTION_SWEEP_INTERVAL = 10 * 1000;
+
+    // Max messages a retention sweep evicts from a group before letting its writers in again (count)
+    public static final int RETENTION_BATCH_SIZE = 256;
+
+    // Memory all groups' message caches may use together (bytes = MiB * 1024 * 1024)
+    public static final long CACHE_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+    // Heap use after garbage collection above which message caches are shrunk (percent)
+    public static final int HEAP_PRESSURE_LIMIT = 80;
+
+    // Share of the message caches given up each check while the heap is under pressure (percent)
+    public static final int HEAP_PRESSURE_SHRINK = 25;
+
+    // Interval between checks of the cache memory budget and heap pressure (ms = s * 1000)
+    public static final int CACHE_BUDGET_CHECK_INTERVAL = 2 * 1000;
+
+    // Interval between snapshots of saved groups (ms = s * 1000)
+    public static final int SNAPSHOT_INTERVAL = 300 * 1000;
+
+    // Size at which a group's message log moves on to a new segment file (bytes = MiB * 1024 * 1024)
+    public static final int LOG_SEGMENT_SIZE = 16 * 1024 * 1024;
+
     // Max amount of recent messages to show to clients (count)
     public static final int MAX_MESSAGES_TO_OUTPUT = 100;
 
     // Server thread inactivity timeout (ms = s * 1000)
     public static final int INACTIVITY_TIMEOUT = 300 * 1000;
 
+    // Max number of messages or topics in one batch request (count)
+    public static final int MAX_BATCH_SIZE = 500;
+
     // Max message length (characters)
     public static final int MAX_MESSAGE_LENGTH = 500;
 
@@ -31,4 +100,16 @@ public class ChatMap {
     // AES key size (bits)
     public static final int AES_KEY_SIZE = 256;
 
+    // Time a session resumption ticket stays valid after it is issued (ms = s * 1000)
+    public static final int TICKET_LIFETIME = 3600 * 1000;
+
+    // Size of the random values each side contributes to a resumed session's key (bytes)
+    public static final int RESUME_RANDOM_SIZE = 32;
+
+    // RSA key pairs each client process keeps generated ahead of time (count)
+    public static final int KEY_PAIR_POOL_DEPTH = 4;
+
+    // Number of ready RSA key pairs at or below which the pool is refilled (count)
+    public static final int KEY_PAIR_POOL_REFILL_LEVEL = 1;
+
 }
@@ -0,0 +1,66 @@
+package org.jmeifert.camber.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packing provides functions for packing lists of strings into a single byte array and back, so several items
+ * can travel in one request body. Each item is its UTF-8 length as an unsigned varint, followed by its UTF-8 bytes.
+ */
+public class Packing {
+    /**
+     * Packs a list of strings.
+     * @param items Strings to pack
+     * @return Packed strings
+     */
+    public static byte[] pack(List<String> items) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (String i : items) {
+            byte[] b = i.getBytes(StandardCharsets.UTF_8);
+            int length = b.length;
+            while ((length & ~0x7F) != 0) {
+                output.write((length & 0x7F) | 0x80);
+                length >>>= 7;
+            }
+            output.write(length);
+            output.write(b, 0, b.length);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Unpacks a list of strings.
+     * @param packed Packed strings
+     * @param maxItems Max number of strings to accept
+     * @return Unpacked strings
+     * @throws IllegalArgumentException If the input is malformed or holds more than maxItems strings
+     */
+    public static List<String> unpack(byte[] packed, int maxItems) throws IllegalArgumentException {
+        ArrayList<String> items = new ArrayList<>();
+        int pos = 0;
+        while (pos < packed.length) {
+            if (items.size() == maxItems) {
+                throw new IllegalArgumentException("Packing: Too many items.");
+            }
+            int length = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (pos == packed.length || shift > 28) {
+                    throw new IllegalArgumentException("Packing: Malformed length.");
+                }
+                b = packed[pos++] & 0xFF;
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (length < 0 || length > packed.length - pos) {
+                throw new IllegalArgumentException("Packing: Item runs past end of input.");
+            }
+            items.add(new String(packed, pos, length, StandardCharsets.UTF_8));
+            pos += length;
+        }
+        return items;
+    }
+}